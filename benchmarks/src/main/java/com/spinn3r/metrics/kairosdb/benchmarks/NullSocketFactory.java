@@ -0,0 +1,55 @@
+package com.spinn3r.metrics.kairosdb.benchmarks;
+
+import javax.net.SocketFactory;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+
+/**
+ * Creates sockets which throw away everything written to them so that the
+ * benchmarks measure the reporter and not the network.
+ */
+class NullSocketFactory extends SocketFactory {
+
+    @Override
+    public Socket createSocket( String host, int port ) {
+        return new NullSocket();
+    }
+
+    @Override
+    public Socket createSocket( String host, int port, InetAddress localHost, int localPort ) {
+        return new NullSocket();
+    }
+
+    @Override
+    public Socket createSocket( InetAddress host, int port ) {
+        return new NullSocket();
+    }
+
+    @Override
+    public Socket createSocket( InetAddress address, int port, InetAddress localAddress, int localPort ) {
+        return new NullSocket();
+    }
+
+    static class NullSocket extends Socket {
+
+        private final OutputStream output = new OutputStream() {
+
+            @Override
+            public void write( int b ) {
+            }
+
+            @Override
+            public void write( byte[] b, int off, int len ) {
+            }
+
+        };
+
+        @Override
+        public OutputStream getOutputStream() {
+            return output;
+        }
+
+    }
+
+}
@@ -0,0 +1,180 @@
+package com.spinn3r.metrics.kairosdb.benchmarks;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.spinn3r.metrics.kairosdb.KairosDb;
+import com.spinn3r.metrics.kairosdb.KairosDbReporter;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures a full report cycle: reading every metric in the registry,
+ * computing snapshots, encoding the datapoints and writing them to a
+ * {@link KairosDb} client whose socket throws the bytes away.
+ *
+ * The registry holds 1,000, 10,000 or 100,000 metrics (one benchmark each)
+ * split evenly across gauges, counters, histograms, meters and timers.  The
+ * mix of types is the same for every {@code tagCardinality}: only how many
+ * host tag values each base name is reported with changes.
+ *
+ * The result is the average time per datapoint, as every report sends 33
+ * datapoints for each five metrics.  The GC profiler's
+ * {@code gc.alloc.rate.norm} is in bytes per datapoint too.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ReporterBenchmark {
+
+    // the number of datapoints sent for each type of metric.
+    private static final int GAUGE_DATAPOINTS = 1;
+    private static final int COUNTER_DATAPOINTS = 1;
+    private static final int HISTOGRAM_DATAPOINTS = 11;
+    private static final int METER_DATAPOINTS = 5;
+    private static final int TIMER_DATAPOINTS = 15;
+
+    // the datapoints for one metric of each type.
+    private static final int DATAPOINTS_PER_FIVE_METRICS
+        = GAUGE_DATAPOINTS + COUNTER_DATAPOINTS + HISTOGRAM_DATAPOINTS + METER_DATAPOINTS + TIMER_DATAPOINTS;
+
+    @State(Scope.Benchmark)
+    public abstract static class Registry {
+
+        @Param({"1", "100"})
+        public int tagCardinality;
+
+        KairosDbReporter reporter;
+
+        abstract int metrics();
+
+        @Setup
+        public void setUp() throws IOException {
+
+            MetricRegistry registry = new MetricRegistry();
+
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+
+            for (int i = 0; i < metrics(); i++) {
+
+                // every type gets the same names, whatever the cardinality.
+                int j = i / 5;
+                String name = String.format( "m%d?host=h%d", j / tagCardinality, j % tagCardinality );
+
+                switch ( i % 5 ) {
+
+                    case 0:
+                        final long value = i;
+                        registry.register( "benchmark.gauge." + name, (Gauge<Long>) () -> value );
+                        break;
+
+                    case 1:
+                        registry.counter( "benchmark.counter." + name ).inc( random.nextInt( 1000 ) );
+                        break;
+
+                    case 2:
+                        for (int k = 0; k < 100; k++) {
+                            registry.histogram( "benchmark.histogram." + name ).update( random.nextInt( 1000 ) );
+                        }
+                        break;
+
+                    case 3:
+                        registry.meter( "benchmark.meter." + name ).mark( random.nextInt( 1000 ) );
+                        break;
+
+                    default:
+                        Timer timer = registry.timer( "benchmark.timer." + name );
+                        for (int k = 0; k < 100; k++) {
+                            timer.update( random.nextInt( 1000 ), TimeUnit.MICROSECONDS );
+                        }
+                        break;
+
+                }
+
+            }
+
+            InetSocketAddress address = InetSocketAddress.createUnresolved( "localhost", 4242 );
+
+            reporter = KairosDbReporter.forRegistry( registry )
+                                       .withTag( "service", "benchmark" )
+                                       .withBufferSize( 64 * 1024 )
+                                       .withBatchSize( 0 )
+                                       .withPersistentConnection( true )
+                                       .build( new KairosDb( address, new NullSocketFactory() ) );
+
+        }
+
+        @TearDown
+        public void tearDown() {
+            reporter.stop();
+        }
+
+    }
+
+    public static class Registry1000 extends Registry {
+
+        @Override
+        int metrics() {
+            return 1000;
+        }
+
+    }
+
+    public static class Registry10000 extends Registry {
+
+        @Override
+        int metrics() {
+            return 10000;
+        }
+
+    }
+
+    public static class Registry100000 extends Registry {
+
+        @Override
+        int metrics() {
+            return 100000;
+        }
+
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(1000 / 5 * DATAPOINTS_PER_FIVE_METRICS)
+    public void report1000( Registry1000 registry ) {
+        registry.reporter.report();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(10000 / 5 * DATAPOINTS_PER_FIVE_METRICS)
+    public void report10000( Registry10000 registry ) {
+        registry.reporter.report();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(100000 / 5 * DATAPOINTS_PER_FIVE_METRICS)
+    public void report100000( Registry100000 registry ) {
+        registry.reporter.report();
+    }
+
+    public static void main( String[] args ) throws RunnerException {
+
+        Options options = new OptionsBuilder().include( ReporterBenchmark.class.getSimpleName() )
+                                              .addProfiler( GCProfiler.class )
+                                              .build();
+
+        new Runner( options ).run();
+
+    }
+
+}
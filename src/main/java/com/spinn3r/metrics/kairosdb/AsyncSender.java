@@ -0,0 +1,271 @@
+package com.spinn3r.metrics.kairosdb;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricSet;
+import com.google.common.base.Stopwatch;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends datapoints to KairosDB from a dedicated thread so that the reporter
+ * thread only has to capture values.
+ *
+ * The reporter adds datapoints to a bounded {@link DatapointBuffer} and wakes
+ * us up at the end of every report.  We then drain the buffer to the client in
+ * batches.  If the server is down the datapoints stay in the buffer (subject to
+ * its overflow policy) and we try again after the next report.
+ */
+class AsyncSender implements Runnable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger( AsyncSender.class );
+
+    // the number of datapoints we take from the queue at a time.
+    private static final int BATCH_SIZE = 1024;
+
+    private final KairosDbTransport client;
+
+    private final DatapointBuffer queue;
+
+    // private to the sender thread.
+    private final DatapointBuffer batch = new DatapointBuffer( BATCH_SIZE, OverflowPolicy.DROP_NEWEST );
+
+    private final Counter sent = new Counter();
+
+    private final Counter failed = new Counter();
+
+    private final Object lock = new Object();
+
+    private boolean pending = false;
+
+    private volatile boolean running = true;
+
+    // the number of sends which threw, written by the sender thread.
+    private volatile long errors = 0;
+
+    private volatile long lastSendBytes = 0;
+
+    private volatile long lastSendWrites = 0;
+
+    private Thread thread = null;
+
+    public AsyncSender( KairosDbTransport client, int capacity, OverflowPolicy overflowPolicy ) {
+        this.client = client;
+        this.queue = new DatapointBuffer( capacity, overflowPolicy );
+    }
+
+    public DatapointBuffer getQueue() {
+        return queue;
+    }
+
+    public synchronized void start() {
+
+        if ( thread != null ) {
+            return;
+        }
+
+        thread = new Thread( this, "kairosdb-sender" );
+        thread.setDaemon( true );
+        thread.start();
+
+    }
+
+    /**
+     * Tell the sender thread that there are new datapoints to send.
+     */
+    public void wakeUp() {
+
+        synchronized ( lock ) {
+            pending = true;
+            lock.notifyAll();
+        }
+
+    }
+
+    /**
+     * Send whatever is left in the queue and stop the sender thread.
+     */
+    public void stop( long timeout, TimeUnit unit ) throws InterruptedException {
+
+        running = false;
+        wakeUp();
+
+        Thread thread;
+
+        synchronized ( this ) {
+            thread = this.thread;
+        }
+
+        if ( thread != null ) {
+            thread.join( unit.toMillis( timeout ) );
+        }
+
+    }
+
+    @Override
+    public void run() {
+
+        try {
+
+            while ( true ) {
+
+                synchronized ( lock ) {
+
+                    while ( ! pending && running ) {
+                        lock.wait();
+                    }
+
+                    pending = false;
+
+                }
+
+                send();
+
+                if ( ! running ) {
+                    break;
+                }
+
+            }
+
+        } catch ( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+        } finally {
+            shutdown();
+        }
+
+    }
+
+    /**
+     * Drain the queue to the server.
+     */
+    protected void send() {
+
+        if ( queue.size() == 0 ) {
+            return;
+        }
+
+        Stopwatch stopwatch = Stopwatch.createStarted();
+
+        long bytesWritten = client.getBytesWritten();
+        long writes = client.getWrites();
+
+        // datapoints handed to the client which it may only have buffered,
+        // so they're lost if the flush fails.
+        long unflushed = 0;
+
+        try {
+
+            if ( client.isPersistent() ) {
+                client.ensureConnected();
+            } else {
+                client.connect();
+            }
+
+            while ( queue.drainTo( batch, BATCH_SIZE ) > 0 ) {
+
+                for (int i = 0; i < batch.size(); i++) {
+
+                    if ( batch.isDouble( i ) ) {
+                        client.send( batch.key( i ), batch.doubleValue( i ), batch.timestamp( i ) );
+                    } else {
+                        client.send( batch.key( i ), batch.longValue( i ), batch.timestamp( i ) );
+                    }
+
+                }
+
+                unflushed += batch.size();
+                batch.clear();
+
+            }
+
+            client.flush();
+
+            sent.inc( unflushed );
+
+        } catch ( Throwable t ) {
+
+            failed.inc( unflushed + batch.size() );
+            batch.clear();
+            ++errors;
+
+            LOGGER.warn( "Unable to send to server: " + client, t );
+
+        } finally {
+
+            if ( ! client.isPersistent() ) {
+                disconnect();
+            }
+
+            lastSendBytes = client.getBytesWritten() - bytesWritten;
+            lastSendWrites = client.getWrites() - writes;
+
+            LOGGER.debug( String.format( "Sending metrics to %s...done (duration=%s, bytes=%,d, writes=%,d)",
+                                         client, stopwatch.stop(), lastSendBytes, lastSendWrites ) );
+
+        }
+
+    }
+
+    private void disconnect() {
+
+        try {
+            client.close();
+        } catch ( IOException e ) {
+            LOGGER.debug( "Error disconnecting from server: " + client, e );
+        }
+
+    }
+
+    private void shutdown() {
+
+        try {
+            client.shutdown();
+        } catch ( IOException e ) {
+            LOGGER.debug( "Error disconnecting from server: " + client, e );
+        }
+
+    }
+
+    /**
+     * A count which goes up whenever datapoints the reporter handed us may
+     * not reach the server: when sending them failed, when the queue evicted
+     * them to make room, or when the client lost them without throwing.  It
+     * also goes up on every send that threw, even if we can't tell that any
+     * datapoints were lost.
+     */
+    public long getFailures() {
+        return failed.getCount() + errors + queue.getDropped() + client.getFailures();
+    }
+
+    public long getLastSendBytes() {
+        return lastSendBytes;
+    }
+
+    public long getLastSendWrites() {
+        return lastSendWrites;
+    }
+
+    /**
+     * The depth of the queue, the number of datapoints we dropped because it
+     * was full, and the number we've sent or failed to send.
+     */
+    public MetricSet getMetrics() {
+
+        return () -> {
+            Map<String,Metric> metrics = new LinkedHashMap<>();
+            metrics.put( "queue_depth", (Gauge<Integer>) queue::size );
+            metrics.put( "dropped", (Gauge<Long>) queue::getDropped );
+            metrics.put( "sent", sent );
+            metrics.put( "failed", failed );
+            return metrics;
+        };
+
+    }
+
+}
@@ -0,0 +1,210 @@
+package com.spinn3r.metrics.kairosdb;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Caps the number of distinct tag values and tag combinations each metric can
+ * have, so that a caller tagging by something unbounded (a user id, a URL)
+ * can't create millions of metrics.
+ *
+ * For every base metric name we remember the combinations of tags of its
+ * metrics in the registry, and how many of those use each value of each tag
+ * name.  Once a tag name has the maximum number of values, new values are
+ * replaced by {@link #OVERFLOW}.  Once the metric has the maximum number of
+ * combinations, every tag value of a new combination is replaced by
+ * {@link #OVERFLOW}, so all of them share a single metric.  Values and
+ * combinations already in use keep working.
+ *
+ * Only metrics that are actually registered count: {@link TaggedMetrics}
+ * tells us when they're added to and removed from the registry (say they
+ * expired), so a name that's never used for a metric takes no room, and
+ * removing the last metric using a value makes room for a new one.  Metrics
+ * registered concurrently may take the limits slightly over.
+ *
+ * Looking up values and combinations doesn't lock.
+ */
+public class CardinalityLimiter {
+
+    /**
+     * The value used in place of tag values over the limits.
+     */
+    public static final String OVERFLOW = "__overflow__";
+
+    private final int maxCombinations;
+
+    private final int maxValues;
+
+    private final ConcurrentHashMap<String,Limits> limits = new ConcurrentHashMap<>();
+
+    /**
+     * @param maxCombinations the most tag combinations (so metrics) each base
+     *                        metric name may have
+     * @param maxValues the most values each tag name of a metric may have
+     */
+    public CardinalityLimiter( int maxCombinations, int maxValues ) {
+
+        if ( maxCombinations <= 0 || maxValues <= 0 ) {
+            throw new IllegalArgumentException( "The limits must be positive: " + maxCombinations + ", " + maxValues );
+        }
+
+        this.maxCombinations = maxCombinations;
+        this.maxValues = maxValues;
+
+    }
+
+    /**
+     * Apply the limits to the (valid, de-duplicated) tags of the given metric.
+     * Nothing is counted until the metric is registered.
+     *
+     * @param tags the tags, by name
+     * @return the tags to use instead, or null if they're within the limits.
+     */
+    Map<String,Tag> limit( String name, Map<String,Tag> tags ) {
+
+        if ( tags.isEmpty() ) {
+            return null;
+        }
+
+        Limits metric = limits.computeIfAbsent( name, key -> new Limits() );
+
+        Map<String,Tag> result = null;
+
+        for (Tag tag : tags.values()) {
+
+            if ( ! metric.allows( tag ) ) {
+
+                if ( result == null ) {
+                    result = new TreeMap<>( tags );
+                }
+
+                result.put( tag.getName(), Tag.of( tag.getName(), OVERFLOW ) );
+
+            }
+
+        }
+
+        String combination = TaggedMetrics.format( ( result != null ? result : tags ).values() );
+
+        if ( ! metric.allows( combination ) ) {
+
+            result = new TreeMap<>();
+
+            for (String tagName : tags.keySet()) {
+                result.put( tagName, Tag.of( tagName, OVERFLOW ) );
+            }
+
+        }
+
+        return result;
+
+    }
+
+    /**
+     * Count a combination of tags of the given metric, which has been
+     * registered, along with its values.
+     *
+     * @param combination the tags as they appear in the metric's name
+     *                    (name=value pairs joined by '&amp;')
+     */
+    void add( String name, String combination ) {
+
+        // only metrics we've been asked to limit.
+        Limits metric = limits.get( name );
+
+        if ( metric != null ) {
+            metric.add( combination );
+        }
+
+    }
+
+    /**
+     * Forget a combination of tags of the given metric, which has been
+     * removed, along with those of its values no other combination uses.
+     *
+     * @param combination the tags as they appear in the metric's name
+     *                    (name=value pairs joined by '&amp;')
+     */
+    void remove( String name, String combination ) {
+
+        Limits metric = limits.get( name );
+
+        if ( metric != null ) {
+            metric.remove( combination );
+        }
+
+    }
+
+    /**
+     * What's registered of a single metric.
+     */
+    private class Limits {
+
+        private final Set<String> combinations = ConcurrentHashMap.newKeySet();
+
+        // the number of combinations using each value, by tag name.
+        private final ConcurrentHashMap<String,ConcurrentHashMap<String,Integer>> values = new ConcurrentHashMap<>();
+
+        boolean allows( Tag tag ) {
+
+            if ( OVERFLOW.equals( tag.getValue() ) ) {
+                return true;
+            }
+
+            Map<String,Integer> used = values.get( tag.getName() );
+
+            return used == null || used.size() < maxValues || used.containsKey( tag.getValue() );
+
+        }
+
+        boolean allows( String combination ) {
+            return combinations.size() < maxCombinations || combinations.contains( combination );
+        }
+
+        // adding and removing lock so that the counts and the combinations
+        // agree.
+        synchronized void add( String combination ) {
+
+            if ( ! combinations.add( combination ) ) {
+                return;
+            }
+
+            for (String tag : combination.split( "&" )) {
+
+                int separator = tag.indexOf( '=' );
+                String value = tag.substring( separator + 1 );
+
+                if ( ! OVERFLOW.equals( value ) ) {
+                    values.computeIfAbsent( tag.substring( 0, separator ), key -> new ConcurrentHashMap<>() )
+                          .merge( value, 1, Integer::sum );
+                }
+
+            }
+
+        }
+
+        synchronized void remove( String combination ) {
+
+            if ( ! combinations.remove( combination ) ) {
+                return;
+            }
+
+            for (String tag : combination.split( "&" )) {
+
+                int separator = tag.indexOf( '=' );
+                Map<String,Integer> used = values.get( tag.substring( 0, separator ) );
+
+                if ( used != null ) {
+                    // forgotten once no combination uses it.
+                    used.computeIfPresent( tag.substring( separator + 1 ), (value, count) -> count > 1 ? count - 1 : null );
+                }
+
+            }
+
+        }
+
+    }
+
+}
@@ -0,0 +1,219 @@
+package com.spinn3r.metrics.kairosdb;
+
+/**
+ * A bounded ring buffer of datapoints stored as primitives (one array per
+ * column) so that capturing a datapoint doesn't allocate.  The arrays start
+ * small and double as datapoints are added, up to the capacity, so a large
+ * buffer that's rarely used doesn't cost its full size.
+ *
+ * Doubles are stored as their raw long bits alongside a flag so that we can
+ * format them the same way the reporter does when they're finally sent.
+ *
+ * Adding and draining are synchronized.  The index based accessors are not
+ * and are meant for a buffer that's private to a single thread (the batch
+ * that a sender drains into, or the reporter's retry buffer).
+ */
+class DatapointBuffer {
+
+    /**
+     * Roughly how much memory each datapoint takes: the key reference, the
+     * timestamp, the value and the flag.
+     */
+    static final int BYTES_PER_DATAPOINT = 8 + 8 + 8 + 1;
+
+    // the size of the arrays before anything is added.
+    private static final int INITIAL_SIZE = 16;
+
+    private final int capacity;
+
+    private SeriesKey[] keys;
+
+    private long[] timestamps;
+
+    private long[] values;
+
+    private boolean[] doubles;
+
+    private final OverflowPolicy overflowPolicy;
+
+    private int head = 0;
+
+    private int size = 0;
+
+    private long dropped = 0;
+
+    public DatapointBuffer( int capacity, OverflowPolicy overflowPolicy ) {
+
+        if ( capacity <= 0 ) {
+            throw new IllegalArgumentException( "Capacity must be positive: " + capacity );
+        }
+
+        int size = Math.min( capacity, INITIAL_SIZE );
+
+        this.capacity = capacity;
+        this.keys = new SeriesKey[ size ];
+        this.timestamps = new long[ size ];
+        this.values = new long[ size ];
+        this.doubles = new boolean[ size ];
+        this.overflowPolicy = overflowPolicy;
+
+    }
+
+    public boolean add( SeriesKey key, long timestamp, long value ) {
+        return add( key, timestamp, value, false );
+    }
+
+    public boolean add( SeriesKey key, long timestamp, double value ) {
+        return add( key, timestamp, Double.doubleToRawLongBits( value ), true );
+    }
+
+    /**
+     * Add a datapoint, applying the overflow policy if we're full.
+     *
+     * @return false if the datapoint was dropped.
+     */
+    public synchronized boolean add( SeriesKey key, long timestamp, long value, boolean isDouble ) {
+
+        if ( size == keys.length && keys.length < capacity ) {
+            grow();
+        }
+
+        if ( size == keys.length ) {
+
+            ++dropped;
+
+            if ( overflowPolicy == OverflowPolicy.DROP_NEWEST ) {
+                return false;
+            }
+
+            removeFirst();
+
+        }
+
+        int index = index( size );
+
+        keys[ index ] = key;
+        timestamps[ index ] = timestamp;
+        values[ index ] = value;
+        doubles[ index ] = isDouble;
+
+        ++size;
+
+        return true;
+
+    }
+
+    /**
+     * Move up to max of the oldest datapoints into the given buffer.
+     *
+     * @return the number of datapoints moved.
+     */
+    public synchronized int drainTo( DatapointBuffer target, int max ) {
+
+        int count = 0;
+
+        while ( size > 0 && count < max ) {
+
+            target.add( keys[ head ], timestamps[ head ], values[ head ], doubles[ head ] );
+            removeFirst();
+            ++count;
+
+        }
+
+        return count;
+
+    }
+
+    public SeriesKey key( int i ) {
+        return keys[ index( i ) ];
+    }
+
+    public long timestamp( int i ) {
+        return timestamps[ index( i ) ];
+    }
+
+    public boolean isDouble( int i ) {
+        return doubles[ index( i ) ];
+    }
+
+    public long longValue( int i ) {
+        return values[ index( i ) ];
+    }
+
+    public double doubleValue( int i ) {
+        return Double.longBitsToDouble( values[ index( i ) ] );
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    /**
+     * The number of datapoints we've dropped because we were full.
+     */
+    public synchronized long getDropped() {
+        return dropped;
+    }
+
+    /**
+     * Remove the given number of the oldest datapoints.
+     */
+    public synchronized void remove( int count ) {
+        for (int i = 0; i < count && size > 0; i++) {
+            removeFirst();
+        }
+    }
+
+    public synchronized void clear() {
+        while ( size > 0 ) {
+            removeFirst();
+        }
+        head = 0;
+    }
+
+    /**
+     * Double the arrays (up to the capacity), moving the datapoints to the
+     * start so that the ring doesn't wrap.
+     */
+    private void grow() {
+
+        int length = (int) Math.min( (long) keys.length * 2, capacity );
+
+        SeriesKey[] keys = new SeriesKey[ length ];
+        long[] timestamps = new long[ length ];
+        long[] values = new long[ length ];
+        boolean[] doubles = new boolean[ length ];
+
+        for (int i = 0; i < size; i++) {
+            int index = index( i );
+            keys[ i ] = this.keys[ index ];
+            timestamps[ i ] = this.timestamps[ index ];
+            values[ i ] = this.values[ index ];
+            doubles[ i ] = this.doubles[ index ];
+        }
+
+        this.keys = keys;
+        this.timestamps = timestamps;
+        this.values = values;
+        this.doubles = doubles;
+
+        head = 0;
+
+    }
+
+    private void removeFirst() {
+        // don't hold on to the key so that evicted series can be collected.
+        keys[ head ] = null;
+        head = ( head + 1 ) % keys.length;
+        --size;
+    }
+
+    private int index( int i ) {
+        return ( head + i ) % keys.length;
+    }
+
+}
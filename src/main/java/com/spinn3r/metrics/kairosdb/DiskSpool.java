@@ -0,0 +1,476 @@
+package com.spinn3r.metrics.kairosdb;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricSet;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A FIFO of encoded datapoints (telnet "put" lines) stored in memory-mapped
+ * segment files, used to keep datapoints while the server is unreachable.
+ *
+ * Lines are appended to the newest segment and read from the oldest so they
+ * are replayed in the order (and so timestamp order) they were written.  Each
+ * segment starts with a small header holding its read and write positions, so
+ * a spool left behind by a previous process is picked up where it stopped.
+ *
+ * The spool is capped at a maximum size: when it's full the oldest segment is
+ * dropped to make room for new datapoints.
+ *
+ * Not thread safe; it's only used by the thread sending to the server.
+ */
+class DiskSpool {
+
+    // the largest segment we create, so that a large spool is dropped in
+    // reasonably sized pieces.
+    static final int MAX_SEGMENT_SIZE = 16 * 1024 * 1024;
+
+    // the smallest segment we create.
+    static final int MIN_SEGMENT_SIZE = 64 * 1024;
+
+    // write position and read position.
+    private static final int HEADER_SIZE = 8;
+
+    private static final Pattern SEGMENT_NAME = Pattern.compile( "spool-(\\d+)\\.dat" );
+
+    private final File directory;
+
+    private final int segmentSize;
+
+    private final int maxSegments;
+
+    // oldest first.
+    private final ArrayDeque<Segment> segments = new ArrayDeque<>();
+
+    private long nextSequence = 0;
+
+    // false once closed, until we're opened again.
+    private boolean open = true;
+
+    private final Counter droppedBytes = new Counter();
+
+    // the unread bytes in every segment, written by the thread using the
+    // spool and read by the metrics.
+    private volatile long unreadBytes = 0;
+
+    /**
+     * @param directory where to store the segment files
+     * @param maxBytes the maximum size of the spool on disk
+     */
+    DiskSpool( File directory, long maxBytes ) throws IOException {
+
+        if ( maxBytes < MIN_SEGMENT_SIZE * 2 ) {
+            throw new IllegalArgumentException( "The spool needs at least " + MIN_SEGMENT_SIZE * 2 + " bytes: " + maxBytes );
+        }
+
+        if ( ! directory.isDirectory() && ! directory.mkdirs() ) {
+            throw new IOException( "Unable to create spool directory: " + directory );
+        }
+
+        this.directory = directory;
+        this.segmentSize = (int)Math.max( MIN_SEGMENT_SIZE, Math.min( MAX_SEGMENT_SIZE, maxBytes / 8 ) );
+        this.maxSegments = (int)Math.max( 2, maxBytes / segmentSize );
+
+        recover();
+
+    }
+
+    /**
+     * Append the given encoded lines (from the position to the limit of the
+     * buffer).  They must be complete lines.
+     *
+     * @return false if the lines are too large to ever fit in a segment, in
+     * which case they're dropped.
+     */
+    public boolean append( ByteBuffer lines ) throws IOException {
+
+        int length = lines.remaining();
+
+        if ( length > segmentSize - HEADER_SIZE ) {
+            droppedBytes.inc( length );
+            lines.position( lines.limit() );
+            return false;
+        }
+
+        Segment tail = segments.peekLast();
+
+        if ( tail == null || tail.free() < length ) {
+            tail = roll();
+        }
+
+        tail.append( lines );
+
+        return true;
+
+    }
+
+    /**
+     * Copy whole lines, oldest first, into the given buffer until it's full or
+     * we've copied the given number of lines.  The lines stay in the spool
+     * until {@link #commit()} is called, so they're read again if sending them
+     * fails.  Lines which can never fit in the buffer are skipped.
+     *
+     * @return the number of lines copied.
+     */
+    public int read( ByteBuffer target, int maxLines ) throws IOException {
+
+        Segment head = head();
+
+        if ( head == null ) {
+            return 0;
+        }
+
+        return head.read( target, maxLines );
+
+    }
+
+    /**
+     * The lines returned by {@link #read(ByteBuffer, int)} have been sent so
+     * remove them from the spool.
+     */
+    public void commit() throws IOException {
+
+        Segment head = segments.peekFirst();
+
+        if ( head != null ) {
+            head.commit();
+        }
+
+    }
+
+    /**
+     * True if there's nothing left to replay.
+     */
+    public boolean isEmpty() throws IOException {
+        return head() == null;
+    }
+
+    /**
+     * The number of bytes waiting to be replayed.
+     */
+    public long size() {
+        return unreadBytes;
+    }
+
+    /**
+     * Write the spooled lines to disk.  Only the newest segment has new
+     * lines; {@link #close()} writes every segment.
+     */
+    public void force() {
+
+        Segment tail = segments.peekLast();
+
+        if ( tail != null ) {
+            tail.map.force();
+        }
+
+    }
+
+    /**
+     * Pick up the segments on disk again after {@link #close()}.  Does
+     * nothing if the spool is already open.
+     */
+    public void open() throws IOException {
+
+        if ( ! open ) {
+            recover();
+            open = true;
+        }
+
+    }
+
+    /**
+     * Write every segment (lines and read positions) to disk and close the
+     * segment files.  The spool is empty until it's opened again.
+     */
+    public void close() throws IOException {
+
+        if ( ! open ) {
+            return;
+        }
+
+        for (Segment segment : segments) {
+            segment.map.force();
+            segment.close();
+        }
+
+        segments.clear();
+        unreadBytes = 0;
+        open = false;
+
+    }
+
+    /**
+     * The number of bytes of lines we've dropped because they didn't fit.
+     */
+    public long getDroppedBytes() {
+        return droppedBytes.getCount();
+    }
+
+    /**
+     * The number of bytes waiting to be replayed and the number we dropped
+     * because the spool was full.
+     */
+    public MetricSet getMetrics() {
+
+        return () -> {
+            Map<String,Metric> metrics = new LinkedHashMap<>();
+            metrics.put( "spool_bytes", (Gauge<Long>) this::size );
+            metrics.put( "spool_dropped_bytes", droppedBytes );
+            return metrics;
+        };
+
+    }
+
+    /**
+     * The oldest segment with lines left to read, deleting any segments in
+     * front of it which have been completely replayed.
+     */
+    private Segment head() throws IOException {
+
+        while ( ! segments.isEmpty() ) {
+
+            Segment head = segments.peekFirst();
+
+            if ( head.unread() > 0 ) {
+                return head;
+            }
+
+            if ( head == segments.peekLast() ) {
+                // keep writing to it from the start.
+                head.reset();
+                return null;
+            }
+
+            segments.removeFirst().delete();
+
+        }
+
+        return null;
+
+    }
+
+    private Segment roll() throws IOException {
+
+        while ( segments.size() >= maxSegments ) {
+            Segment oldest = segments.removeFirst();
+            droppedBytes.inc( oldest.unread() );
+            unreadBytes -= oldest.unread();
+            oldest.delete();
+        }
+
+        Segment segment = new Segment( new File( directory, String.format( "spool-%019d.dat", nextSequence++ ) ), true );
+        segments.addLast( segment );
+
+        return segment;
+
+    }
+
+    /**
+     * Open the segments left behind by a previous process.
+     */
+    private void recover() throws IOException {
+
+        File[] files = directory.listFiles( (dir, name) -> SEGMENT_NAME.matcher( name ).matches() );
+
+        if ( files == null ) {
+            return;
+        }
+
+        Arrays.sort( files );
+
+        for (File file : files) {
+
+            Matcher matcher = SEGMENT_NAME.matcher( file.getName() );
+            matcher.matches();
+
+            nextSequence = Math.max( nextSequence, Long.parseLong( matcher.group( 1 ) ) + 1 );
+
+            if ( file.length() < HEADER_SIZE || file.length() > Integer.MAX_VALUE ) {
+                delete( file );
+                continue;
+            }
+
+            Segment segment = new Segment( file, false );
+
+            if ( segment.isValid() ) {
+                segments.addLast( segment );
+                unreadBytes += segment.unread();
+            } else {
+                segment.delete();
+            }
+
+        }
+
+        // never append to a recovered segment written with a different size
+        // limit.
+        if ( ! segments.isEmpty() && segments.peekLast().capacity() != segmentSize ) {
+            roll();
+        }
+
+    }
+
+    private static void delete( File file ) throws IOException {
+        if ( file.exists() && ! file.delete() ) {
+            throw new IOException( "Unable to delete spool segment: " + file );
+        }
+    }
+
+    private class Segment {
+
+        private final File file;
+
+        private final RandomAccessFile raf;
+
+        private final FileChannel channel;
+
+        private final MappedByteBuffer map;
+
+        private int writePosition;
+
+        private int readPosition;
+
+        // the position we've read (but not committed) up to.
+        private int pendingPosition;
+
+        Segment( File file, boolean create ) throws IOException {
+
+            this.file = file;
+            this.raf = new RandomAccessFile( file, "rw" );
+            this.channel = raf.getChannel();
+            this.map = channel.map( FileChannel.MapMode.READ_WRITE, 0, create ? segmentSize : raf.length() );
+
+            if ( create ) {
+                writePosition = HEADER_SIZE;
+                readPosition = HEADER_SIZE;
+                writeHeader();
+            } else {
+                writePosition = map.getInt( 0 );
+                readPosition = map.getInt( 4 );
+            }
+
+            pendingPosition = readPosition;
+
+        }
+
+        boolean isValid() {
+            return readPosition >= HEADER_SIZE && readPosition <= writePosition && writePosition <= map.capacity();
+        }
+
+        int capacity() {
+            return map.capacity();
+        }
+
+        int free() {
+            return map.capacity() - writePosition;
+        }
+
+        int unread() {
+            return writePosition - readPosition;
+        }
+
+        void append( ByteBuffer lines ) {
+
+            int length = lines.remaining();
+
+            ByteBuffer target = map.duplicate();
+            target.position( writePosition );
+            target.put( lines );
+
+            writePosition += length;
+            unreadBytes += length;
+            writeHeader();
+
+        }
+
+        int read( ByteBuffer target, int maxLines ) {
+
+            int lines = 0;
+            int lineStart = readPosition;
+            int i = readPosition;
+
+            for (; i < writePosition && lines < maxLines; i++) {
+
+                if ( map.get( i ) != '\n' ) {
+                    continue;
+                }
+
+                int length = i + 1 - lineStart;
+
+                if ( length > target.capacity() ) {
+                    // it will never fit so skip it.
+                    droppedBytes.inc( length );
+                    lineStart = i + 1;
+                    continue;
+                }
+
+                if ( length > target.remaining() ) {
+                    break;
+                }
+
+                ByteBuffer line = map.duplicate();
+                line.limit( i + 1 );
+                line.position( lineStart );
+                target.put( line );
+
+                lineStart = i + 1;
+                ++lines;
+
+            }
+
+            if ( i == writePosition && lineStart < writePosition ) {
+                // a partial line left behind by a crash, which will never be
+                // completed.
+                droppedBytes.inc( writePosition - lineStart );
+                lineStart = writePosition;
+            }
+
+            pendingPosition = lineStart;
+
+            return lines;
+
+        }
+
+        void commit() {
+            unreadBytes -= pendingPosition - readPosition;
+            readPosition = pendingPosition;
+            writeHeader();
+        }
+
+        void reset() {
+            writePosition = HEADER_SIZE;
+            readPosition = HEADER_SIZE;
+            pendingPosition = HEADER_SIZE;
+            writeHeader();
+        }
+
+        void close() throws IOException {
+            raf.close();
+        }
+
+        void delete() throws IOException {
+            close();
+            DiskSpool.delete( file );
+        }
+
+        private void writeHeader() {
+            map.putInt( 0, writePosition );
+            map.putInt( 4, readPosition );
+        }
+
+    }
+
+}
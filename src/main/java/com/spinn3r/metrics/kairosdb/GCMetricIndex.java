@@ -2,91 +2,201 @@ package com.spinn3r.metrics.kairosdb;
 
 import com.codahale.metrics.*;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Contains code for running garbage collection and purging of old metrics that
  * are no longer being used.
+ *
+ * The reporter touches a metric whenever it sees it being used: a derived
+ * counter which is non-zero or, with {@link ExpirationPolicy#EXPIRE}, a
+ * counter, meter, timer or histogram whose count has changed.  Metrics which
+ * haven't been touched for the expiration interval are removed from the
+ * registry.
+ *
+ * Touched metrics are kept in generation buckets: each bucket holds the
+ * metrics touched during one slice of the GC interval.  A GC only looks at
+ * the buckets which have aged past the interval, so it costs as much as the
+ * number of metrics which might be expiring rather than the size of the
+ * registry.  A metric touched again is moved to the current bucket the first
+ * time it's touched in each generation, and the entry left in its old bucket
+ * is skipped when that bucket expires.
  */
 public class GCMetricIndex {
 
+    /**
+     * The number of buckets the GC interval is divided into.  Metrics are
+     * removed up to one bucket (an eighth of the interval) late.
+     */
+    static final int GENERATIONS = 8;
+
+    /**
+     * How long a metric may go untouched before it's removed, by default.
+     */
+    public static final long DEFAULT_EXPIRATION_INTERVAL = TimeUnit.MINUTES.toMillis( 5 );
+
     private MetricRegistry registry;
 
     private Clock clock;
 
     private boolean enabled;
 
-    private long garbageCollectionInterval = 5 * 60 * 1000;
+    // true if counters are reset every report, so one which is non-zero is
+    // still in use.
+    private boolean deriveCounters;
+
+    private long garbageCollectionInterval;
+
+    // when enabled, we keep a side index of metrics that are being used, if
+    // they're not used for a while, we GC them.
+
+    private final Map<String,Entry> entries = new HashMap<>();
+
+    // oldest first.
+    private final ArrayDeque<Bucket> buckets = new ArrayDeque<>();
 
+    /**
+     * An index of derived counters which expires them after the default
+     * interval.
+     */
     public GCMetricIndex(MetricRegistry registry, Clock clock, boolean enabled) {
+        this( registry, clock, enabled, ExpirationPolicy.NONE, DEFAULT_EXPIRATION_INTERVAL );
+    }
+
+    /**
+     * @param deriveCounters true if counters are reset every report
+     * @param expirationPolicy whether we expire metrics other than derived
+     *                         counters
+     * @param expirationInterval how long (in milliseconds) a metric may go
+     *                           untouched before it's removed
+     */
+    public GCMetricIndex(MetricRegistry registry, Clock clock, boolean deriveCounters, ExpirationPolicy expirationPolicy, long expirationInterval) {
+
+        if ( expirationInterval <= 0 ) {
+            throw new IllegalArgumentException( "The expiration interval must be positive: " + expirationInterval );
+        }
+
         this.registry = registry;
         this.clock = clock;
-        this.enabled = enabled;
+        this.deriveCounters = deriveCounters;
+        this.enabled = deriveCounters || expirationPolicy == ExpirationPolicy.EXPIRE;
+        this.garbageCollectionInterval = expirationInterval;
     }
 
-    // when garbageCollectAndDeriveTimers is enabled, we keep a side index of
-    // metrics that are being used, if they're not used for a while, we GC them.
-
-    protected Map<String,Long> lastUpdatedIndex = new ConcurrentHashMap<>();
+    public boolean isEnabled() {
+        return enabled;
+    }
 
-    public void gc() {
+    public synchronized void gc() {
 
         if ( ! enabled )
             return;
 
-        this.registry.removeMatching( new MetricFilter() {
+        // every metric touched in this generation or earlier was last
+        // touched more than an interval ago.
+        long expired = generation( clock.getTime() - garbageCollectionInterval ) - 1;
 
-            @Override
-            public boolean matches(String name, Metric metric) {
+        while ( ! buckets.isEmpty() && buckets.peekFirst().generation <= expired ) {
 
-                if ( metric instanceof Counter) {
+            for (Entry entry : buckets.removeFirst().entries) {
 
-                    Counter counter = (Counter)metric;
+                if ( entry.bucket.generation > expired ) {
+                    // touched again since.
+                    continue;
+                }
 
-                    if ( counter.getCount() > 0 ) {
-                        // it's obviously being used so we can't remove it.
-                        return false;
-                    }
+                Metric metric = registry.getMetrics().get( entry.name );
 
-                    if ( ! lastUpdatedIndex.containsKey( name ) ) {
-                        // it isn't in the GC index so it we can't remove it yet
-                        return false;
-                    }
+                if ( deriveCounters && metric instanceof Counter && ((Counter) metric).getCount() > 0 ) {
+                    // it's obviously being used so we can't remove it.
+                    add( entry, generation( clock.getTime() ) );
+                    continue;
+                }
 
+                entries.remove( entry.name );
 
-                    long lastUpdated = lastUpdatedIndex.get( name );
-                    long now = clock.getTime();
+                if ( metric != null ) {
+                    registry.remove( entry.name );
+                }
 
-                    boolean remove = lastUpdated < ( now - garbageCollectionInterval );
+            }
 
-                    if ( remove ) {
-                        lastUpdatedIndex.remove( name );
-                    }
+        }
 
-                    return remove;
+    }
 
-                }
+    public synchronized void touch( String metric ) {
 
-                return false;
+        if ( ! enabled )
+            return;
 
-            }
+        long generation = generation( clock.getTime() );
 
-        } );
+        Entry entry = entries.get( metric );
 
+        if ( entry == null ) {
+            entry = new Entry( metric );
+            entries.put( metric, entry );
+        } else if ( entry.bucket.generation >= generation ) {
+            // already in the current bucket.
+            return;
+        }
+
+        add( entry, generation );
 
     }
 
-    public void touch( String metric ) {
+    public synchronized int size() {
+        return entries.size();
+    }
 
-        if ( ! enabled )
-            return;
+    private void add( Entry entry, long generation ) {
+
+        Bucket tail = buckets.peekLast();
+
+        // if the clock went backwards keep adding to the newest bucket.
+        if ( tail == null || tail.generation < generation ) {
+            tail = new Bucket( generation );
+            buckets.addLast( tail );
+        }
+
+        entry.bucket = tail;
+        tail.entries.add( entry );
+
+    }
 
-        lastUpdatedIndex.put( metric, clock.getTime() );
+    private long generation( long time ) {
+        return Math.floorDiv( time, Math.max( 1, garbageCollectionInterval / GENERATIONS ) );
     }
 
-    public int size() {
-        return lastUpdatedIndex.size();
+    private static class Entry {
+
+        private final String name;
+
+        // the bucket it was last added to.
+        private Bucket bucket;
+
+        Entry( String name ) {
+            this.name = name;
+        }
+
+    }
+
+    private static class Bucket {
+
+        private final long generation;
+
+        private final List<Entry> entries = new ArrayList<>();
+
+        Bucket( long generation ) {
+            this.generation = generation;
+        }
+
     }
 
 }
@@ -0,0 +1,180 @@
+package com.spinn3r.metrics.kairosdb;
+
+import com.codahale.metrics.Reservoir;
+import com.codahale.metrics.Snapshot;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.HistogramIterationValue;
+import org.HdrHistogram.Recorder;
+
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A reservoir backed by an HdrHistogram {@link Recorder}.  Recording a value
+ * is wait-free and doesn't allocate, and the memory used is fixed by the range
+ * and precision rather than by the number of values.  Every value is counted
+ * (there's no sampling), to within the given number of significant digits.
+ *
+ * Snapshots are interval snapshots: each call to {@link #getSnapshot()} covers
+ * the values recorded since the previous call and resets the reservoir.  It's
+ * meant to be read by a single reporter, once per report.  To keep the memory
+ * fixed the histogram behind a snapshot is reused by the next one, so a
+ * snapshot is only valid until the next call to {@link #getSnapshot()}.
+ *
+ * Values outside the trackable range are clamped to it.
+ *
+ * @see TaggedMetrics#intervalTimer(String)
+ * @see TaggedMetrics#intervalHistogram(String)
+ */
+public class HdrReservoir implements Reservoir {
+
+    /**
+     * The default number of significant digits we keep.
+     */
+    public static final int DEFAULT_SIGNIFICANT_DIGITS = 2;
+
+    /**
+     * The smallest duration an interval timer distinguishes (in nanoseconds).
+     */
+    public static final long TIMER_LOWEST_DISCERNIBLE_VALUE = TimeUnit.MICROSECONDS.toNanos( 1 );
+
+    /**
+     * The longest duration an interval timer tracks (in nanoseconds).
+     */
+    public static final long TIMER_HIGHEST_TRACKABLE_VALUE = TimeUnit.HOURS.toNanos( 1 );
+
+    /**
+     * The largest value an interval histogram tracks by default.
+     */
+    public static final long HISTOGRAM_HIGHEST_TRACKABLE_VALUE = Integer.MAX_VALUE;
+
+    private final Recorder recorder;
+
+    private final long highestTrackableValue;
+
+    // the histogram of the last interval, recycled for the next one.
+    private Histogram interval = null;
+
+    /**
+     * @param lowestDiscernibleValue the smallest value which is distinguished
+     *                               from 0
+     * @param highestTrackableValue the largest value we track
+     * @param significantDigits the precision we keep, from 0 to 5
+     */
+    public HdrReservoir( long lowestDiscernibleValue, long highestTrackableValue, int significantDigits ) {
+        this.recorder = new Recorder( lowestDiscernibleValue, highestTrackableValue, significantDigits );
+        this.highestTrackableValue = highestTrackableValue;
+    }
+
+    /**
+     * A reservoir for durations in nanoseconds, from a microsecond to an hour.
+     */
+    public static HdrReservoir forTimer() {
+        return new HdrReservoir( TIMER_LOWEST_DISCERNIBLE_VALUE, TIMER_HIGHEST_TRACKABLE_VALUE, DEFAULT_SIGNIFICANT_DIGITS );
+    }
+
+    /**
+     * A reservoir for values from 0 to {@link #HISTOGRAM_HIGHEST_TRACKABLE_VALUE}.
+     */
+    public static HdrReservoir forHistogram() {
+        return new HdrReservoir( 1, HISTOGRAM_HIGHEST_TRACKABLE_VALUE, DEFAULT_SIGNIFICANT_DIGITS );
+    }
+
+    /**
+     * The number of values in the most recent snapshot.
+     */
+    @Override
+    public synchronized int size() {
+        return interval == null ? 0 : (int)Math.min( Integer.MAX_VALUE, interval.getTotalCount() );
+    }
+
+    @Override
+    public void update( long value ) {
+        recorder.recordValue( Math.max( 0, Math.min( value, highestTrackableValue ) ) );
+    }
+
+    /**
+     * The values recorded since the last snapshot.
+     */
+    @Override
+    public synchronized Snapshot getSnapshot() {
+        interval = recorder.getIntervalHistogram( interval );
+        return new HdrSnapshot( interval );
+    }
+
+    static class HdrSnapshot extends Snapshot {
+
+        private final Histogram histogram;
+
+        HdrSnapshot( Histogram histogram ) {
+            this.histogram = histogram;
+        }
+
+        @Override
+        public double getValue( double quantile ) {
+            if ( quantile < 0.0 || quantile > 1.0 || Double.isNaN( quantile ) ) {
+                throw new IllegalArgumentException( quantile + " is not in [0..1]" );
+            }
+            return histogram.getValueAtPercentile( quantile * 100.0 );
+        }
+
+        /**
+         * Every recorded value (at the precision we keep), so this is as large
+         * as the number of values in the interval.
+         */
+        @Override
+        public long[] getValues() {
+
+            long[] values = new long[ size() ];
+            int i = 0;
+
+            for (HistogramIterationValue value : histogram.recordedValues()) {
+                for (long count = 0; count < value.getCountAtValueIteratedTo() && i < values.length; count++) {
+                    values[ i++ ] = value.getValueIteratedTo();
+                }
+            }
+
+            return values;
+
+        }
+
+        @Override
+        public int size() {
+            return (int)Math.min( Integer.MAX_VALUE, histogram.getTotalCount() );
+        }
+
+        @Override
+        public long getMax() {
+            return histogram.getTotalCount() == 0 ? 0 : histogram.getMaxValue();
+        }
+
+        @Override
+        public double getMean() {
+            return histogram.getTotalCount() == 0 ? 0 : histogram.getMean();
+        }
+
+        @Override
+        public long getMin() {
+            return histogram.getTotalCount() == 0 ? 0 : histogram.getMinValue();
+        }
+
+        @Override
+        public double getStdDev() {
+            return histogram.getTotalCount() == 0 ? 0 : histogram.getStdDeviation();
+        }
+
+        @Override
+        public void dump( OutputStream output ) {
+            try ( PrintWriter out = new PrintWriter( new OutputStreamWriter( output, StandardCharsets.UTF_8 ) ) ) {
+                for (long value : getValues()) {
+                    out.printf( "%d%n", value );
+                }
+            }
+        }
+
+    }
+
+}
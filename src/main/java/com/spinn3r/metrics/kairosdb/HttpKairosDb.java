@@ -0,0 +1,394 @@
+package com.spinn3r.metrics.kairosdb;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricSet;
+
+/**
+ * Sends datapoints to KairosDB by posting gzip compressed JSON batches to the
+ * {@code /api/v1/datapoints} REST endpoint.
+ *
+ * Datapoints are grouped by series so the name and tags of each series are
+ * sent once per batch, followed by all of its datapoints.  A batch is posted
+ * when it reaches the batch size and when the transport is flushed.  If
+ * posting fails the batch is kept for the next flush, unless KairosDB
+ * rejected it as invalid.
+ *
+ * The JVM keeps HTTP connections alive between requests so this transport is
+ * always persistent; connecting and closing only start and finish a batch.
+ */
+public class HttpKairosDb implements KairosDbTransport {
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	/**
+	 * The default number of datapoints we send per request.
+	 */
+	public static final int DEFAULT_BATCH_SIZE = 10000;
+
+	private static final int CONNECT_TIMEOUT = (int) TimeUnit.SECONDS.toMillis(10);
+	private static final int READ_TIMEOUT = (int) TimeUnit.SECONDS.toMillis(30);
+
+	private final URL url;
+	private final int batchSize;
+
+	private Map<String, String> tags = new LinkedHashMap<String, String>();
+
+	private boolean connected = false;
+
+	// the datapoints waiting to be posted, by metric name and then tags.
+	private final Map<String, Map<Map<String, String>, StringBuilder>> batch = new LinkedHashMap<>();
+
+	// datapoints in the current batch
+	private int batched = 0;
+
+	// datapoints dropped because their value wasn't a number.
+	private final Counter invalidValues = new Counter();
+
+	// only written by the thread sending (one at a time, such as a pooled
+	// connection's writer) but read by others, so volatile is enough.
+	private volatile long bytesWritten = 0;
+	private volatile long writes = 0;
+
+	/**
+	 * Creates a new KairosDB client which posts to the given server.
+	 *
+	 * @param server
+	 *            the base URL of the KairosDB server, e.g. http://localhost:8080
+	 *            or http://proxy/kairos
+	 */
+	public HttpKairosDb(URL server) {
+		this(server, DEFAULT_BATCH_SIZE);
+	}
+
+	/**
+	 * Creates a new KairosDB client which posts to the given server.
+	 *
+	 * @param server
+	 *            the base URL of the KairosDB server, e.g. http://localhost:8080
+	 *            or http://proxy/kairos
+	 * @param batchSize
+	 *            the maximum number of datapoints to post in one request
+	 */
+	public HttpKairosDb(URL server, int batchSize) {
+		if (batchSize <= 0) {
+			throw new IllegalArgumentException("Batch size must be positive: " + batchSize);
+		}
+		try {
+			this.url = datapointsUrl(server);
+		} catch (MalformedURLException e) {
+			throw new IllegalArgumentException("Invalid server URL: " + server, e);
+		}
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * The datapoints endpoint under the given base URL, keeping any context
+	 * path it has (e.g. http://proxy/kairos/api/v1/datapoints).
+	 */
+	static URL datapointsUrl(URL server) throws MalformedURLException {
+		String base = server.toExternalForm();
+		if (!base.endsWith("/")) {
+			base += "/";
+		}
+		return new URL(new URL(base), "api/v1/datapoints");
+	}
+
+	@Override
+	public void connect() throws IllegalStateException, IOException {
+		if (connected) {
+			throw new IllegalStateException("Already connected");
+		}
+		connected = true;
+	}
+
+	@Override
+	public void ensureConnected() throws IOException {
+		connected = true;
+	}
+
+	@Override
+	public boolean isConnected() {
+		return connected;
+	}
+
+	@Override
+	public boolean isPersistent() {
+		return true;
+	}
+
+	@Override
+	public void setTags(Map<String, String> tags) {
+		this.tags = tags;
+	}
+
+	@Override
+	public void send(String name, String value, long timestamp, Map<String, String> tags) throws IOException {
+		if (!connected) {
+			throw new IllegalStateException("Not connected");
+		}
+
+		if (!isNumber(value)) {
+			// it goes into the JSON as is, so anything else (including NaN
+			// and the infinities, which JSON has no representation for)
+			// would make KairosDB reject the whole batch.
+			invalidValues.inc();
+			return;
+		}
+
+		Map<Map<String, String>, StringBuilder> series = batch.get(name);
+
+		if (series == null) {
+			series = new LinkedHashMap<>();
+			batch.put(name, series);
+		}
+
+		StringBuilder datapoints = series.get(tags);
+
+		if (datapoints == null) {
+			datapoints = new StringBuilder();
+			series.put(tags, datapoints);
+		} else {
+			datapoints.append(',');
+		}
+
+		datapoints.append('[').append(timestamp).append(',').append(value).append(']');
+
+		if (++batched >= batchSize) {
+			flush();
+		}
+	}
+
+	@Override
+	public void flush() throws IOException {
+		if (batched == 0) {
+			return;
+		}
+
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+
+		try (Writer writer = new OutputStreamWriter(new GZIPOutputStream(body), UTF_8)) {
+			writeJson(writer);
+		}
+
+		// if the post fails the batch is kept and posted again (with
+		// whatever's been added to it) by the next flush.
+		post(body);
+		clearBatch();
+	}
+
+	private void clearBatch() {
+		batch.clear();
+		batched = 0;
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			flush();
+		} finally {
+			connected = false;
+		}
+	}
+
+	@Override
+	public long getBytesWritten() {
+		return bytesWritten;
+	}
+
+	@Override
+	public long getWrites() {
+		return writes;
+	}
+
+	/**
+	 * The number of datapoints dropped because their value wasn't a number
+	 * (including NaN and the infinities), as "invalid_values".
+	 */
+	public MetricSet getMetrics() {
+		return () -> {
+			Map<String, Metric> metrics = new LinkedHashMap<>();
+			metrics.put("invalid_values", invalidValues);
+			return metrics;
+		};
+	}
+
+	private void post(ByteArrayOutputStream body) throws IOException {
+		HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+		connection.setRequestMethod("POST");
+		connection.setDoOutput(true);
+		connection.setConnectTimeout(CONNECT_TIMEOUT);
+		connection.setReadTimeout(READ_TIMEOUT);
+		connection.setRequestProperty("Content-Type", "application/json");
+		connection.setRequestProperty("Content-Encoding", "gzip");
+		connection.setFixedLengthStreamingMode(body.size());
+
+		try (OutputStream output = connection.getOutputStream()) {
+			body.writeTo(output);
+		}
+
+		bytesWritten += body.size();
+		++writes;
+
+		int status = connection.getResponseCode();
+
+		if (status / 100 == 4) {
+			// KairosDB rejected the batch, so posting it again won't help.
+			clearBatch();
+		}
+
+		if (status / 100 != 2) {
+			throw new IOException(String.format("KairosDB at %s returned %d: %s", url, status, read(connection.getErrorStream())));
+		}
+
+		// read the (normally empty) response so the connection can be reused.
+		read(connection.getInputStream());
+	}
+
+	private void writeJson(Writer writer) throws IOException {
+		writer.write('[');
+
+		boolean first = true;
+
+		for (Entry<String, Map<Map<String, String>, StringBuilder>> series : batch.entrySet()) {
+			for (Entry<Map<String, String>, StringBuilder> entry : series.getValue().entrySet()) {
+				if (!first) {
+					writer.write(',');
+				}
+				first = false;
+
+				writer.write("{\"name\":");
+				writeString(writer, series.getKey());
+
+				writer.write(",\"tags\":{");
+
+				Map<String, String> mergedTags = new LinkedHashMap<>(this.tags.size() + entry.getKey().size());
+				mergedTags.putAll(this.tags);
+				mergedTags.putAll(entry.getKey());
+
+				boolean firstTag = true;
+				for (Entry<String, String> tag : mergedTags.entrySet()) {
+					if (!firstTag) {
+						writer.write(',');
+					}
+					firstTag = false;
+					writeString(writer, tag.getKey());
+					writer.write(':');
+					writeString(writer, tag.getValue());
+				}
+
+				writer.write("},\"datapoints\":[");
+				writer.append(entry.getValue());
+				writer.write("]}");
+			}
+		}
+
+		writer.write(']');
+	}
+
+	private static void writeString(Writer writer, String s) throws IOException {
+		writer.write('"');
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c == '"' || c == '\\') {
+				writer.write('\\');
+				writer.write(c);
+			} else if (c < 0x20) {
+				writer.write(String.format("\\u%04x", (int) c));
+			} else {
+				writer.write(c);
+			}
+		}
+		writer.write('"');
+	}
+
+	/**
+	 * True if the given value is a JSON number, as Long.toString() and
+	 * Double.toString() (or NumberEncoder) give us for finite values.
+	 */
+	static boolean isNumber(String value) {
+		int length = value.length();
+		int i = 0;
+
+		if (i < length && value.charAt(i) == '-') {
+			++i;
+		}
+
+		// the integer part, with no leading zeros.
+		if (i < length && value.charAt(i) == '0') {
+			++i;
+		} else {
+			int start = i;
+			i = skipDigits(value, i);
+			if (i == start) {
+				return false;
+			}
+		}
+
+		if (i < length && value.charAt(i) == '.') {
+			int start = ++i;
+			i = skipDigits(value, i);
+			if (i == start) {
+				return false;
+			}
+		}
+
+		if (i < length && (value.charAt(i) == 'e' || value.charAt(i) == 'E')) {
+			++i;
+			if (i < length && (value.charAt(i) == '+' || value.charAt(i) == '-')) {
+				++i;
+			}
+			int start = i;
+			i = skipDigits(value, i);
+			if (i == start) {
+				return false;
+			}
+		}
+
+		return i == length;
+	}
+
+	private static int skipDigits(String value, int i) {
+		while (i < value.length() && value.charAt(i) >= '0' && value.charAt(i) <= '9') {
+			++i;
+		}
+		return i;
+	}
+
+	private static String read(InputStream input) throws IOException {
+		if (input == null) {
+			return "";
+		}
+		try (InputStream in = input) {
+			ByteArrayOutputStream output = new ByteArrayOutputStream();
+			byte[] data = new byte[1024];
+			int count;
+			while ((count = in.read(data)) != -1) {
+				output.write(data, 0, count);
+			}
+			return output.toString("UTF-8");
+		}
+	}
+
+	@Override
+	public String toString() {
+		return url.toString();
+	}
+
+}
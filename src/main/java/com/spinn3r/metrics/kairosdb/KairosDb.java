@@ -1,33 +1,140 @@
 package com.spinn3r.metrics.kairosdb;
 
-import java.io.BufferedWriter;
-import java.io.Closeable;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
-import java.io.Writer;
+import java.io.OutputStream;
 import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Pattern;
 
 import javax.net.SocketFactory;
 
-public class KairosDb implements Closeable {
+import com.codahale.metrics.Clock;
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricSet;
+
+/**
+ * Sends datapoints to KairosDB using the telnet protocol.
+ */
+public class KairosDb implements KairosDbTransport {
 
 	private static final Pattern WHITESPACE = Pattern.compile("[\\s]+");
-	private static final Charset UTF_8 = Charset.forName("UTF-8");
+	static final Charset UTF_8 = Charset.forName("UTF-8");
+	private static final Charset US_ASCII = Charset.forName("US-ASCII");
+	private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
+	/**
+	 * The default size of the output buffer, in bytes.
+	 */
+	public static final int DEFAULT_BUFFER_SIZE = 8192;
+
+	/**
+	 * The default delay before the first reconnect attempt, in milliseconds.
+	 */
+	public static final long DEFAULT_INITIAL_BACKOFF = TimeUnit.SECONDS.toMillis(1);
+
+	/**
+	 * The default maximum delay between reconnect attempts, in milliseconds.
+	 */
+	public static final long DEFAULT_MAX_BACKOFF = TimeUnit.MINUTES.toMillis(1);
 
 	private final InetSocketAddress address;
 	private final SocketFactory socketFactory;
 	private final Charset charset;
 
+	// true when ASCII characters can be copied straight into the buffer
+	// without going through the charset encoder.
+	private final boolean asciiCompatible;
+
 	private Socket socket;
-	private Writer writer;
+	private OutputStream output;
+
+	// the buffer we're currently encoding datapoints into.
+	private ByteBuffer buffer;
+
+	// the heap buffer used with a socket, kept between connections so that
+	// we don't allocate a (potentially large) buffer every report.
+	private ByteBuffer socketBuffer;
 	private Map<String, String> tags = new LinkedHashMap<String, String>();
 
+	// the global tags, encoded once when they're set.
+	private byte[] encodedTags = new byte[0];
+
+	// bumped whenever the global tags change so that the encodings cached on
+	// each SeriesKey are rebuilt.
+	private int tagsVersion = 0;
+
+	private int bufferSize = DEFAULT_BUFFER_SIZE;
+
+	// the number of datapoints we send before flushing.  1 flushes every
+	// datapoint and 0 only flushes when the buffer fills or flush() is called.
+	private int batchSize = 1;
+
+	// datapoints written since the last flush
+	private int batched = 0;
+
+	// only written by the thread sending (one at a time, such as a pooled
+	// connection's writer) but read by others, so volatile is enough.
+	private volatile long bytesWritten = 0;
+	private volatile long writes = 0;
+
+	// when true we keep the connection open between reports and reconnect
+	// (with backoff) when it breaks.
+	private boolean persistent = false;
+
+	private long initialBackoff = DEFAULT_INITIAL_BACKOFF;
+	private long maxBackoff = DEFAULT_MAX_BACKOFF;
+
+	private Clock clock = Clock.defaultClock();
+
+	// consecutive failed connection attempts, used to compute the backoff.
+	private int consecutiveFailures = 0;
+
+	// we don't try to connect again before this time.
+	private long nextConnectTime = 0;
+
+	private boolean connectedBefore = false;
+
+	private final Counter connects = new Counter();
+	private final Counter reconnects = new Counter();
+	private final Counter connectFailures = new Counter();
+	private final Counter writeFailures = new Counter();
+
+	// where we keep datapoints while the server is unreachable, if anywhere.
+	private DiskSpool spool;
+
+	// true while we're writing datapoints to the spool instead of the server.
+	private boolean spooling = false;
+
+	// the buffer we encode datapoints into while spooling.
+	private ByteBuffer spoolBuffer;
+
+	// set when the connection broke part way through a datapoint whose start
+	// we no longer have, so the rest of it has to be thrown away.
+	private boolean partialLine = false;
+
+	// true when the last byte written to the server wasn't the end of a
+	// datapoint.
+	private boolean midLine = false;
+
+	// datapoints per second we replay from the spool.
+	private int replayRate;
+
+	// the number of datapoints we're allowed to replay right now, topped up
+	// at the replay rate.
+	private double replayPermits = 0;
+	private long lastReplay = 0;
+
+	private final Counter spooled = new Counter();
+	private final Counter replayed = new Counter();
+
 	/**
 	 * Creates a new KairosDB client which connects to the given address using
 	 * the default {@link SocketFactory}.
@@ -52,6 +159,19 @@ public class KairosDb implements Closeable {
 		this(address, socketFactory, UTF_8);
 	}
 
+	/**
+	 * Creates a new KairosDB client for subclasses which provide their own
+	 * connection to the server.
+	 *
+	 * @param address
+	 *            the address of the KairosDB server
+	 * @param charset
+	 *            the character set used by the server
+	 */
+	protected KairosDb(InetSocketAddress address, Charset charset) {
+		this(address, null, charset);
+	}
+
 	/**
 	 * Creates a new KairosDB client which connects to the given address and
 	 * socket factory using the given character set.
@@ -67,6 +187,7 @@ public class KairosDb implements Closeable {
 		this.address = address;
 		this.socketFactory = socketFactory;
 		this.charset = charset;
+		this.asciiCompatible = UTF_8.equals(charset) || US_ASCII.equals(charset) || ISO_8859_1.equals(charset);
 	}
 
 	/**
@@ -77,17 +198,323 @@ public class KairosDb implements Closeable {
 	 * @throws IOException
 	 *             if there is an error connecting
 	 */
+	@Override
 	public void connect() throws IllegalStateException, IOException {
-		if (socket != null) {
+		if (isConnected() || spooling) {
 			throw new IllegalStateException("Already connected");
 		}
 
+		if (spool != null) {
+			spool.open();
+		}
+
+		try {
+			open();
+		} catch (IOException e) {
+			if (spool == null) {
+				throw e;
+			}
+			startSpooling();
+		}
+	}
+
+	private void open() throws IOException {
+		try {
+			openConnection(address);
+		} catch (IOException e) {
+			connectFailures.inc();
+			closeQuietly();
+			throw e;
+		}
+
+		connects.inc();
+
+		if (connectedBefore) {
+			reconnects.inc();
+		}
+
+		connectedBefore = true;
+
+		buffer = acquireBuffer();
+		batched = 0;
+		midLine = false;
+	}
+
+	/**
+	 * Opens the connection to the server.  Subclasses override this, along
+	 * with {@link #closeConnection()}, {@link #isConnected()},
+	 * {@link #acquireBuffer()} and {@link #drain(ByteBuffer, boolean)}, to
+	 * send datapoints over a different transport.
+	 *
+	 * @param address
+	 *            the address of the KairosDB server
+	 * @throws IOException
+	 *             if there is an error connecting
+	 */
+	protected void openConnection(InetSocketAddress address) throws IOException {
 		this.socket = socketFactory.createSocket(address.getAddress(), address.getPort());
-		this.writer = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), charset));
+		this.output = socket.getOutputStream();
+	}
+
+	/**
+	 * Closes the connection to the server, releasing any buffers that were
+	 * handed out by {@link #acquireBuffer()}.
+	 *
+	 * @throws IOException
+	 *             if there is an error closing the connection
+	 */
+	protected void closeConnection() throws IOException {
+		try {
+			if (socket != null) {
+				socket.close();
+			}
+		} finally {
+			this.socket = null;
+			this.output = null;
+		}
+	}
+
+	/**
+	 * Gets the (empty) buffer we encode datapoints into once connected.
+	 */
+	protected ByteBuffer acquireBuffer() {
+		if (socketBuffer == null || socketBuffer.capacity() != bufferSize) {
+			socketBuffer = ByteBuffer.allocate(bufferSize);
+		}
+		socketBuffer.clear();
+		return socketBuffer;
+	}
+
+	/**
+	 * Hands the encoded datapoints in the given buffer to the connection.
+	 * Called when the buffer is full and when we flush.
+	 *
+	 * @param buffer
+	 *            the buffer, in write mode, holding the encoded datapoints
+	 * @param flush
+	 *            true if the caller wants the datapoints written now
+	 * @return the (empty) buffer to encode the following datapoints into
+	 * @throws IOException
+	 *             if there is an error writing to the server
+	 */
+	protected ByteBuffer drain(ByteBuffer buffer, boolean flush) throws IOException {
+		if (buffer.position() > 0) {
+			output.write(buffer.array(), 0, buffer.position());
+			recordWrite(buffer.position());
+			buffer.flip();
+			written(buffer);
+			buffer.clear();
+		}
+		if (flush) {
+			output.flush();
+		}
+		return buffer;
+	}
+
+	/**
+	 * Records a single write (system call) of the given number of bytes.
+	 */
+	protected void recordWrite(long bytes) {
+		bytesWritten += bytes;
+		++writes;
+	}
+
+	/**
+	 * Records that the given buffer (in read mode) has been completely
+	 * written, so that we know whether the server has part of a datapoint
+	 * when writing fails.
+	 */
+	protected void written(ByteBuffer buffer) {
+		if (buffer.limit() > 0) {
+			midLine = buffer.get(buffer.limit() - 1) != '\n';
+		}
+	}
+
+	/**
+	 * The encoded datapoints which haven't been written to the server, in
+	 * order, after writing to it has failed.  Called before the connection is
+	 * closed.  Each buffer is in read mode and the position of the first is
+	 * how much of it was written.
+	 */
+	protected ByteBuffer[] unwritten() {
+		if (buffer == null) {
+			return new ByteBuffer[0];
+		}
+		ByteBuffer data = buffer.duplicate();
+		data.flip();
+		return new ByteBuffer[] { data };
+	}
+
+	protected int getBufferSize() {
+		return bufferSize;
+	}
+
+	/**
+	 * Connects to the KairosDB server unless we already have a connection.
+	 * Failed attempts back off exponentially (with jitter) so that we don't
+	 * hammer a server which is down.
+	 *
+	 * With a spool we start spooling instead of failing.
+	 *
+	 * @throws IOException
+	 *             if there is an error connecting or we're still backing off
+	 *             from a previous failure
+	 */
+	@Override
+	public void ensureConnected() throws IOException {
+		if (isConnected()) {
+			return;
+		}
+
+		if (spool != null) {
+			spool.open();
+		}
+
+		long now = clock.getTime();
+
+		if (now < nextConnectTime) {
+			if (spool == null) {
+				throw new IOException(String.format("Not reconnecting to %s for another %,d ms", this, nextConnectTime - now));
+			}
+			if (!spooling) {
+				startSpooling();
+			}
+			return;
+		}
+
+		if (spooling) {
+			stopSpooling();
+		}
+
+		try {
+			open();
+			consecutiveFailures = 0;
+			nextConnectTime = 0;
+		} catch (IOException e) {
+			++consecutiveFailures;
+			nextConnectTime = now + backoff(consecutiveFailures);
+			if (spool == null) {
+				throw e;
+			}
+			startSpooling();
+		}
 	}
 
-	void setTags(Map<String, String> tags) {
+	/**
+	 * The delay before the next connection attempt after the given number of
+	 * consecutive failures.  Doubles every failure up to the maximum and then
+	 * picks a random delay in the upper half so that a fleet of clients
+	 * doesn't reconnect in lockstep.
+	 */
+	long backoff(int failures) {
+		long backoff = maxBackoff;
+		if (failures <= 31 && initialBackoff << (failures - 1) < maxBackoff) {
+			backoff = initialBackoff << (failures - 1);
+		}
+		long half = backoff / 2;
+		return half + ThreadLocalRandom.current().nextLong(backoff - half + 1);
+	}
+
+	/**
+	 * True if we keep the connection open between reports.
+	 */
+	@Override
+	public boolean isPersistent() {
+		return persistent;
+	}
+
+	/**
+	 * True if we currently have a connection to the server.
+	 */
+	@Override
+	public boolean isConnected() {
+		return output != null;
+	}
+
+	/**
+	 * Counters for connections, reconnections and connection and write
+	 * failures, and when spooling the datapoints spooled and replayed.  Register these with a {@link com.codahale.metrics.MetricRegistry}
+	 * to track the health of the connection.
+	 */
+	public MetricSet getMetrics() {
+		return () -> {
+			Map<String, Metric> metrics = new LinkedHashMap<>();
+			metrics.put("connects", connects);
+			metrics.put("reconnects", reconnects);
+			metrics.put("connect_failures", connectFailures);
+			metrics.put("write_failures", writeFailures);
+			if (spool != null) {
+				metrics.put("spooled", spooled);
+				metrics.put("replayed", replayed);
+				metrics.putAll(spool.getMetrics().getMetrics());
+			}
+			return metrics;
+		};
+	}
+
+	void setPersistent(boolean persistent) {
+		this.persistent = persistent;
+	}
+
+	void setBackoff(long initialBackoff, long maxBackoff, TimeUnit unit) {
+		if (initialBackoff <= 0 || maxBackoff < initialBackoff) {
+			throw new IllegalArgumentException("Invalid backoff: " + initialBackoff + " to " + maxBackoff);
+		}
+		this.initialBackoff = unit.toMillis(initialBackoff);
+		this.maxBackoff = unit.toMillis(maxBackoff);
+	}
+
+	/**
+	 * Keep datapoints in the given spool while the server is unreachable
+	 * (when connecting fails or the connection breaks) and replay them, at
+	 * most the given number per second, once we can connect again.
+	 */
+	void setSpool(DiskSpool spool, int replayRate) {
+		if (replayRate <= 0) {
+			throw new IllegalArgumentException("Replay rate must be positive: " + replayRate);
+		}
+		this.spool = spool;
+		this.replayRate = replayRate;
+	}
+
+	/**
+	 * True while datapoints are being written to the spool because the server
+	 * is unreachable.
+	 */
+	boolean isSpooling() {
+		return spooling;
+	}
+
+	/**
+	 * The address of the server, as it was given to us.
+	 */
+	InetSocketAddress getAddress() {
+		return address;
+	}
+
+	void setClock(Clock clock) {
+		this.clock = clock;
+	}
+
+	@Override
+	public void setTags(Map<String, String> tags) {
 		this.tags = tags;
+		this.encodedTags = encode(tagString(tags));
+		++tagsVersion;
+	}
+
+	void setBufferSize(int bufferSize) {
+		if (bufferSize <= 0) {
+			throw new IllegalArgumentException("Buffer size must be positive: " + bufferSize);
+		}
+		this.bufferSize = bufferSize;
+	}
+
+	void setBatchSize(int batchSize) {
+		if (batchSize < 0) {
+			throw new IllegalArgumentException("Batch size must not be negative: " + batchSize);
+		}
+		this.batchSize = batchSize;
 	}
 
 	/**
@@ -105,48 +532,527 @@ public class KairosDb implements Closeable {
 	 * @throws IOException
 	 *             if there was an error sending the metric
 	 */
+	@Override
 	public void send(String name, String value, long timestamp, Map<String, String> tags ) throws IOException {
-		Writer writer = getWriter();
-		writer.write("put ");
-		writer.write(sanitize(name));
-		writer.write(' ');
-		writer.write(Long.toString(timestamp));
-		writer.write(' ');
-		writer.write(sanitize(value));
+		checkConnected();
+		write("put ");
+		write(sanitize(name));
+		write(' ');
+		write(timestamp);
+		write(' ');
+		write(sanitize(value));
 
-        Map<String,String> mergedTags = new LinkedHashMap<>( this.tags.size() + tags.size() );
+		if (overridesGlobalTags(tags)) {
+			Map<String,String> mergedTags = new LinkedHashMap<>( this.tags.size() + tags.size() );
 
-        mergedTags.putAll( this.tags );
-        mergedTags.putAll( tags );
+			mergedTags.putAll( this.tags );
+			mergedTags.putAll( tags );
 
-		for (Entry<String, String> entry : mergedTags.entrySet()) {
-			writer.write(' ');
-			writer.write(entry.getKey());
-			writer.write('=');
-			writer.write(entry.getValue());
+			writeTags(mergedTags);
+		} else {
+			write(encodedTags);
+			writeTags(tags);
 		}
-		writer.write('\n');
-		writer.flush();
+		write('\n');
+
+		sent();
 	}
 
+	/**
+	 * Sends the given measurement for a series.  The series name and its
+	 * (merged) tags are encoded the first time we see the series and reused
+	 * after that, so we only have to encode the timestamp and the value.
+	 *
+	 * @param series
+	 *            the series
+	 * @param value
+	 *            the value of the metric
+	 * @param timestamp
+	 *            the timestamp of the metric
+	 * @throws IOException
+	 *             if there was an error sending the metric
+	 */
+	@Override
+	public void send(SeriesKey series, String value, long timestamp) throws IOException {
+		checkConnected();
+
+		EncodedSeries encoded = encoded(series);
+
+		write(encoded.prefix);
+		write(timestamp);
+		write(' ');
+		write(sanitize(value));
+		write(encoded.suffix);
+
+		sent();
+	}
+
+	/**
+	 * Sends the given measurement for a series, writing the value's digits
+	 * straight into the buffer.
+	 *
+	 * @see #send(SeriesKey, String, long)
+	 */
+	@Override
+	public void send(SeriesKey series, long value, long timestamp) throws IOException {
+		checkConnected();
+
+		EncodedSeries encoded = encoded(series);
+
+		write(encoded.prefix);
+		write(timestamp);
+		write(' ');
+		write(value);
+		write(encoded.suffix);
+
+		sent();
+	}
+
+	/**
+	 * Sends the given measurement for a series, writing the value's digits
+	 * straight into the buffer.
+	 *
+	 * @see #send(SeriesKey, String, long)
+	 */
+	@Override
+	public void send(SeriesKey series, double value, long timestamp) throws IOException {
+		checkConnected();
+
+		EncodedSeries encoded = encoded(series);
+
+		write(encoded.prefix);
+		write(timestamp);
+		write(' ');
+		write(value);
+		write(encoded.suffix);
+
+		sent();
+	}
+
+	/**
+	 * The cached encoding of the given series, encoding it if we haven't
+	 * yet (or our global tags have changed since).
+	 */
+	private EncodedSeries encoded(SeriesKey series) {
+		EncodedSeries encoded = series.getEncoded();
+
+		if (encoded == null || encoded.owner != this || encoded.tagsVersion != tagsVersion) {
+			encoded = encode(series);
+			series.setEncoded(encoded);
+		}
+
+		return encoded;
+	}
+
+	/**
+	 * The encoded form of a series: "put name " and " tags\n".
+	 */
+	static final class EncodedSeries {
+
+		private final KairosDb owner;
+		private final int tagsVersion;
+		private final byte[] prefix;
+		private final byte[] suffix;
+
+		private EncodedSeries(KairosDb owner, int tagsVersion, byte[] prefix, byte[] suffix) {
+			this.owner = owner;
+			this.tagsVersion = tagsVersion;
+			this.prefix = prefix;
+			this.suffix = suffix;
+		}
+
+	}
+
+	private EncodedSeries encode(SeriesKey series) {
+		Map<String,String> mergedTags = new LinkedHashMap<>( this.tags.size() + series.getTags().size() );
+
+		mergedTags.putAll( this.tags );
+		mergedTags.putAll( series.getTags() );
+
+		return new EncodedSeries(this,
+		                         tagsVersion,
+		                         encode("put " + sanitize(series.getName()) + " "),
+		                         encode(tagString(mergedTags) + "\n"));
+	}
+
+	private byte[] encode(String s) {
+		return s.getBytes(charset);
+	}
+
+	/**
+	 * True if the given tags replace any of the global tags, in which case
+	 * we can't use the encoded global tags.
+	 */
+	private boolean overridesGlobalTags(Map<String, String> tags) {
+		if (this.tags.isEmpty()) {
+			return false;
+		}
+		for (String key : tags.keySet()) {
+			if (this.tags.containsKey(key)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void writeTags(Map<String, String> tags) throws IOException {
+		for (Entry<String, String> entry : tags.entrySet()) {
+			write(' ');
+			write(entry.getKey());
+			write('=');
+			write(entry.getValue());
+		}
+	}
+
+	private static String tagString(Map<String, String> tags) {
+		if (tags.isEmpty()) {
+			return "";
+		}
+		StringBuilder result = new StringBuilder();
+		for (Entry<String, String> entry : tags.entrySet()) {
+			result.append(' ').append(entry.getKey()).append('=').append(entry.getValue());
+		}
+		return result.toString();
+	}
+
+	/**
+	 * A datapoint has been written, so flush if we've reached the batch size.
+	 */
+	private void sent() throws IOException {
+		if (spooling) {
+			spoolLine();
+		} else if (batchSize > 0 && ++batched >= batchSize) {
+			flush();
+		}
+	}
+
+	/**
+	 * Writes any buffered measurements to the server.
+	 *
+	 * @throws IOException
+	 *             if there was an error sending the buffered metrics
+	 */
+	@Override
+	public void flush() throws IOException {
+		checkConnected();
+
+		if (spooling) {
+			spool.force();
+			return;
+		}
+
+		try {
+			buffer = drain(buffer, true);
+		} catch (IOException e) {
+			onWriteFailure(e, true);
+			return;
+		}
+		batched = 0;
+
+		if (spool != null) {
+			replay();
+		}
+	}
+
+	/**
+	 * The total number of bytes this client has written to the server.
+	 */
+	@Override
+	public long getBytesWritten() {
+		return bytesWritten;
+	}
+
+	/**
+	 * The total number of writes this client has issued to the socket.  Each
+	 * write is a single system call.
+	 */
+	@Override
+	public long getWrites() {
+		return writes;
+	}
+
+	/**
+	 * The number of bytes of datapoints the spool has dropped because it was
+	 * full, if we have one.  Anything else we fail to write is thrown or
+	 * spooled.
+	 */
+	@Override
+	public long getFailures() {
+		return spool != null ? spool.getDroppedBytes() : 0;
+	}
+
+	/**
+	 * Closes the connection, first writing any buffered measurements.  The
+	 * spool stays open for the next connection.
+	 */
 	@Override
 	public void close() throws IOException {
-		if (socket != null) {
-			socket.close();
+		try {
+			if (spooling) {
+				stopSpooling();
+			} else if (isConnected() && buffer.position() > 0) {
+				flush();
+			}
+		} finally {
+			this.buffer = null;
+			closeConnection();
+		}
+	}
+
+	/**
+	 * Closes the connection and the spool's files.  The spool is opened
+	 * again if we connect again.
+	 */
+	@Override
+	public void shutdown() throws IOException {
+		try {
+			close();
+		} finally {
+			if (spool != null) {
+				spool.close();
+			}
 		}
-		this.socket = null;
-		this.writer = null;
 	}
 
 	private String sanitize(String s) {
 		return WHITESPACE.matcher(s).replaceAll("-");
 	}
 
-	private Writer getWriter() {
-		if (writer == null) {
+	private void write(char c) throws IOException {
+		if (c < 0x80 && asciiCompatible) {
+			if (!buffer.hasRemaining()) {
+				drain();
+			}
+			buffer.put((byte) c);
+		} else {
+			write(String.valueOf(c));
+		}
+	}
+
+	private void write(String s) throws IOException {
+		if (asciiCompatible) {
+			for (int i = 0; i < s.length(); i++) {
+				char c = s.charAt(i);
+				if (c >= 0x80) {
+					// hand the rest of the string to the charset so that
+					// multi-byte characters and surrogate pairs are encoded
+					// correctly.
+					write(s.substring(i).getBytes(charset));
+					return;
+				}
+				if (!buffer.hasRemaining()) {
+					drain();
+				}
+				buffer.put((byte) c);
+			}
+		} else {
+			write(s.getBytes(charset));
+		}
+	}
+
+	private void write(long value) throws IOException {
+		if (asciiCompatible && ensureRemaining(NumberEncoder.MAX_LENGTH)) {
+			NumberEncoder.put(buffer, value);
+		} else {
+			write(Long.toString(value));
+		}
+	}
+
+	private void write(double value) throws IOException {
+		if (asciiCompatible && ensureRemaining(NumberEncoder.MAX_LENGTH)) {
+			NumberEncoder.put(buffer, value);
+		} else {
+			write(Double.toString(value));
+		}
+	}
+
+	/**
+	 * Drains the buffer if it doesn't have room for the given number of
+	 * bytes.
+	 *
+	 * @return true if it has room now, false if the buffer is too small.
+	 */
+	private boolean ensureRemaining(int length) throws IOException {
+		if (buffer.remaining() < length) {
+			drain();
+		}
+		return buffer.remaining() >= length;
+	}
+
+	private void write(byte[] bytes) throws IOException {
+		int offset = 0;
+		while (offset < bytes.length) {
+			if (!buffer.hasRemaining()) {
+				drain();
+			}
+			int length = Math.min(buffer.remaining(), bytes.length - offset);
+			buffer.put(bytes, offset, length);
+			offset += length;
+		}
+	}
+
+	/**
+	 * The buffer is full so hand it to the connection.
+	 */
+	private void drain() throws IOException {
+		if (spooling) {
+			// we only spool whole lines so make room for the rest of this one.
+			ByteBuffer larger = ByteBuffer.allocate(buffer.capacity() * 2);
+			buffer.flip();
+			larger.put(buffer);
+			buffer = spoolBuffer = larger;
+			return;
+		}
+
+		try {
+			buffer = drain(buffer, false);
+		} catch (IOException e) {
+			// we're part way through a datapoint, the start of which is
+			// spooled with the rest of the buffer.
+			onWriteFailure(e, true);
+		}
+	}
+
+	/**
+	 * The socket is broken so drop it.  A persistent client reconnects on the
+	 * next call to ensureConnected().  With a spool we carry on writing to
+	 * the spool, starting with the datapoints which weren't written if we're
+	 * to keep them, otherwise they're lost and the failure is rethrown.
+	 */
+	private void onWriteFailure(IOException e, boolean keepUnwritten) throws IOException {
+		writeFailures.inc();
+		batched = 0;
+
+		ByteBuffer[] unwritten = spool != null && keepUnwritten ? unwritten() : null;
+
+		closeQuietly();
+		if (spool == null) {
+			throw e;
+		}
+		startSpooling();
+
+		if (unwritten != null) {
+			spoolUnwritten(unwritten);
+		}
+	}
+
+	/**
+	 * Move the datapoints which weren't written into the spool, from the
+	 * start of the first one the server may not have all of.  Datapoints
+	 * are idempotent so it doesn't matter if it had some of them.  A
+	 * datapoint we're part way through encoding is finished in the spool.
+	 */
+	private void spoolUnwritten(ByteBuffer[] unwritten) throws IOException {
+		// whether we've lost the start of the first datapoint.
+		boolean skip = midLine;
+
+		if (unwritten.length > 0) {
+			ByteBuffer first = unwritten[0];
+			int start = first.position();
+			while (start > 0 && first.get(start - 1) != '\n') {
+				--start;
+			}
+			if (start > 0) {
+				skip = false;
+			}
+			first.position(start);
+		}
+
+		for (ByteBuffer data : unwritten) {
+			while (data.hasRemaining()) {
+				byte b = data.get();
+				if (skip) {
+					skip = b != '\n';
+					continue;
+				}
+				if (!buffer.hasRemaining()) {
+					drain();
+				}
+				buffer.put(b);
+				if (b == '\n') {
+					spoolLine();
+				}
+			}
+		}
+
+		// the datapoint we lost the start of isn't over yet.
+		partialLine = skip;
+	}
+
+	private void startSpooling() {
+		if (spoolBuffer == null) {
+			spoolBuffer = ByteBuffer.allocate(bufferSize);
+		}
+		spoolBuffer.clear();
+		buffer = spoolBuffer;
+		spooling = true;
+	}
+
+	private void stopSpooling() {
+		spool.force();
+		spooling = false;
+		partialLine = false;
+		buffer = null;
+	}
+
+	/**
+	 * Move the datapoint we just encoded into the spool.
+	 */
+	private void spoolLine() throws IOException {
+		buffer.flip();
+		if (partialLine) {
+			// the start of this datapoint went to the broken connection.
+			partialLine = false;
+		} else if (spool.append(buffer)) {
+			spooled.inc();
+		}
+		buffer.clear();
+	}
+
+	/**
+	 * Send spooled datapoints, as many as the replay rate allows.  They stay
+	 * in the spool until they've been handed to the connection.
+	 */
+	private void replay() throws IOException {
+		long now = clock.getTime();
+
+		if (lastReplay == 0) {
+			lastReplay = now;
+			replayPermits = replayRate;
+		}
+
+		// allow up to a minute's worth to build up between reports.
+		replayPermits = Math.min(replayPermits + replayRate * (now - lastReplay) / 1000.0, replayRate * 60.0);
+		lastReplay = now;
+
+		while (replayPermits >= 1 && !spool.isEmpty()) {
+			int lines = spool.read(buffer, (int) replayPermits);
+			try {
+				buffer = drain(buffer, true);
+			} catch (IOException e) {
+				// they're still in the spool.
+				onWriteFailure(e, false);
+				return;
+			}
+			spool.commit();
+			replayed.inc(lines);
+			replayPermits -= lines;
+		}
+	}
+
+	private void closeQuietly() {
+		this.buffer = null;
+		try {
+			closeConnection();
+		} catch (IOException e) {
+			// we're already handling a failure.
+		}
+	}
+
+	private void checkConnected() {
+		if (!isConnected() && !spooling) {
 			throw new IllegalStateException("Not connected");
 		}
-		return writer;
 	}
 
     @Override
@@ -1,11 +1,20 @@
 package com.spinn3r.metrics.kairosdb;
 
+import java.io.File;
 import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
 import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.Set;
 import java.util.SortedMap;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
 import java.util.regex.Pattern;
 
@@ -14,7 +23,7 @@ import com.google.common.base.Stopwatch;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import static com.spinn3r.metrics.kairosdb.TaggedMetrics.parse;
+import static com.spinn3r.metrics.kairosdb.MetricField.*;
 
 /**
  * A reporter which publishes metric values to a KairosDB server.
@@ -27,9 +36,16 @@ public class KairosDbReporter extends ScheduledReporter {
 	private static final Pattern TAG_PATTERN = Pattern.compile("[\\p{Alnum}\\.\\-_/]+");
 	private static final Logger LOGGER = LoggerFactory.getLogger(KairosDbReporter.class);
 
+	/**
+	 * The prefix of our own metrics when they're reported.
+	 *
+	 * @see Builder#withSelfReporting(boolean)
+	 */
+	public static final String SELF_PREFIX = "kairosdb_reporter.";
+
     private final MetricRegistry registry;
 
-	private final KairosDb client;
+	private final KairosDbTransport client;
 	private final Clock clock;
 	private final String prefix;
 
@@ -37,47 +53,176 @@ public class KairosDbReporter extends ScheduledReporter {
 
     protected GCMetricIndex gcMetricIndex = null;
 
+	// when true we expire meters, timers, histograms and (non-derived)
+	// counters whose count stops changing.
+	private final boolean expireByCount;
+
+	// the parsed names, tags and prefixed series for every metric we report so
+	// that we don't rebuild them every report.  Evicted when the metric leaves
+	// the registry.
+	protected final RegistryCache<MetricSeries> seriesCache;
+
 	private ReportWaiter reportWaiter = new ReportWaiter();
 
-	private KairosDbReporter(MetricRegistry registry,
-							 KairosDb kairosDb,
-							 Clock clock,
-							 String prefix,
-							 TimeUnit rateUnit,
-							 TimeUnit durationUnit,
-							 MetricFilter filter,
-							 boolean garbageCollectAndDeriveTimers) throws IOException {
-
-		super(registry, "kairosdb-reporter", filter, rateUnit, durationUnit);
-		this.registry = registry;
-		this.client = kairosDb;
-		this.clock = clock;
-		this.prefix = prefix;
-		this.garbageCollectAndDeriveTimers = garbageCollectAndDeriveTimers;
-		this.gcMetricIndex = new GCMetricIndex( registry, clock, garbageCollectAndDeriveTimers );
-
-	}
-
-	private KairosDbReporter(MetricRegistry registry,
-							 KairosDb kairosDb,
-							 Clock clock,
-							 String prefix,
-							 TimeUnit rateUnit,
-							 TimeUnit durationUnit,
-							 ScheduledExecutorService executor,
-							 MetricFilter filter,
-							 boolean garbageCollectAndDeriveTimers) throws IOException {
-
-		super(registry, "kairosdb-reporter", filter, rateUnit, durationUnit, executor);
-		this.registry = registry;
-		this.client = kairosDb;
-		this.clock = clock;
-		this.prefix = prefix;
-		this.garbageCollectAndDeriveTimers = garbageCollectAndDeriveTimers;
-		this.gcMetricIndex = new GCMetricIndex( registry, clock, garbageCollectAndDeriveTimers );
+	// bytes and socket writes used by the most recent report.
+	private volatile long lastReportBytes = 0;
+	private volatile long lastReportWrites = 0;
+
+	// when set, report() only captures datapoints and this sends them.
+	private final AsyncSender sender;
+
+	private final SnapshotCollector snapshotCollector;
+
+	// when positive we skip datapoints which haven't changed since we last
+	// sent them, unless it was at least this many milliseconds ago.
+	private final long heartbeat;
+
+	private final Counter suppressed = new Counter();
+
+	// bumped whenever a report fails, so that values sent before the failure
+	// aren't treated as unchanged by change-only reporting.
+	private long changeEpoch = 0;
+
+	// the transport's failures as of the previous report.
+	private long lastFailures = 0;
+
+	// datapoints we couldn't send, retried next report.  Null unless the
+	// reporter was built with a retry buffer.
+	private final DatapointBuffer retries;
+
+	private final Counter retried = new Counter();
+
+	// datapoints dropped from the retry buffer to make room, which we know
+	// were lost.
+	private final Counter retryDropped = new Counter();
+
+	// the number of datapoints at the head of the retry buffer we've sent
+	// this report, both retried ones and new ones, removed once they've been
+	// flushed.
+	private int unflushed = 0;
+
+	// how many of those were retried.
+	private int retrying = 0;
+
+	// datapoints sent this report which were dropped from the retry buffer
+	// before they were flushed, lost if the flush fails.
+	private int evicted = 0;
+
+	// true once sending has failed during the current report, so the rest of
+	// its datapoints go straight to the retry buffer.
+	private boolean queueing = false;
+
+	// the reporter's own timers, histograms and counters.
+	private final ReporterMetrics metrics = new ReporterMetrics();
+
+	// the datapoints reported during the current report.
+	private int reportDatapoints = 0;
+
+	// when true our own metrics are reported with the registry's.
+	private final boolean selfReporting;
+
+	// when true each phase of a report is logged at INFO rather than DEBUG.
+	private final boolean phaseLogging;
+
+	// the fields we report for each type of metric, and the snapshot fields
+	// among them which we need to compute.
+	private final Set<MetricField> timerFields;
+	private final Set<MetricField> timerSnapshotFields;
+	private final Set<MetricField> histogramFields;
+	private final Set<MetricField> histogramSnapshotFields;
+	private final Set<MetricField> meterFields;
+
+	private final MetricFilter filter;
+	private final ScheduledExecutorService executor;
+
+	// when spreading reports across the period: the number of slices, and
+	// whether to offset the schedule by a random amount.
+	private final int slices;
+	private final boolean startJitter;
+
+	// the slices left to report this period, the next one to report, and the
+	// period boundary they're all timestamped with.
+	private ReportSlice[] pendingSlices = null;
+	private int nextSlice = 0;
+	private long cycleTimestamp = 0;
+
+	// while reporting a slice: its timestamp, and whether it's the last slice
+	// of the period.  Otherwise -1 and true.
+	private long sliceTimestamp = -1;
+	private boolean endOfCycle = true;
+
+	private KairosDbReporter(Builder builder, KairosDbTransport transport) throws IOException {
+		this(builder, transport, builder.executor != null ? builder.executor : defaultExecutor());
+	}
+
+	private KairosDbReporter(Builder builder, KairosDbTransport transport, ScheduledExecutorService executor) throws IOException {
+
+		super(builder.registry,
+			  "kairosdb-reporter",
+			  builder.filter,
+			  builder.rateUnit,
+			  builder.durationUnit,
+			  executor);
+
+		// ScheduledReporter doesn't share these and we need them to schedule
+		// slices.
+		this.executor = executor;
+		this.filter = builder.filter;
+		this.slices = builder.slices;
+		this.startJitter = builder.startJitter;
+		this.registry = builder.registry;
+		this.client = transport;
+		this.clock = builder.clock;
+		this.prefix = builder.prefix;
+		this.seriesCache = new RegistryCache<>( name -> new MetricSeries( prefix, TaggedMetrics.parse( name ) ) );
+		this.garbageCollectAndDeriveTimers = builder.garbageCollectAndDeriveCounters;
+		this.gcMetricIndex = new GCMetricIndex( registry, clock, garbageCollectAndDeriveTimers, builder.expirationPolicy, builder.expirationInterval );
+		this.expireByCount = builder.expirationPolicy == ExpirationPolicy.EXPIRE;
+		this.snapshotCollector = new SnapshotCollector( builder.snapshotExecutor );
+		this.heartbeat = builder.heartbeat;
+		this.selfReporting = builder.selfReporting;
+		this.phaseLogging = builder.phaseLogging;
+		this.timerFields = builder.timerFields;
+		this.timerSnapshotFields = snapshotFields(timerFields);
+		this.histogramFields = builder.histogramFields;
+		this.histogramSnapshotFields = snapshotFields(histogramFields);
+		this.meterFields = builder.meterFields;
+
+		if ( builder.retryBytes > 0 ) {
+			int capacity = (int) Math.min( Integer.MAX_VALUE, Math.max( 1, builder.retryBytes / DatapointBuffer.BYTES_PER_DATAPOINT ) );
+			this.retries = new DatapointBuffer( capacity, OverflowPolicy.DROP_OLDEST );
+		} else {
+			this.retries = null;
+		}
+		registry.addListener( seriesCache );
+
+		if ( builder.asyncCapacity > 0 ) {
+			this.sender = new AsyncSender( transport, builder.asyncCapacity, builder.overflowPolicy );
+			this.sender.start();
+		} else {
+			this.sender = null;
+		}
 
 	}
 
+	private static Set<MetricField> snapshotFields(Set<MetricField> fields) {
+		EnumSet<MetricField> result = EnumSet.copyOf(MetricField.SNAPSHOT_FIELDS);
+		result.retainAll(fields);
+		return result;
+	}
+
+	/**
+	 * The executor we use when the builder isn't given one; the same single
+	 * daemon thread that ScheduledReporter would create for us.
+	 */
+	private static ScheduledExecutorService defaultExecutor() {
+		return Executors.newSingleThreadScheduledExecutor( runnable -> {
+			Thread thread = new Thread( runnable, "kairosdb-reporter" );
+			thread.setDaemon( true );
+			return thread;
+		} );
+	}
+
 	/**
 	 * Returns a new {@link Builder} for {@link KairosDbReporter}.
 	 * 
@@ -93,6 +238,81 @@ public class KairosDbReporter extends ScheduledReporter {
 		return reportWaiter;
 	}
 
+	/**
+	 * The number of bytes written to the server during the most recent report.
+	 */
+	public long getLastReportBytes() {
+		if ( sender != null ) {
+			return sender.getLastSendBytes();
+		}
+		return lastReportBytes;
+	}
+
+	/**
+	 * The number of socket writes (system calls) issued during the most recent
+	 * report.
+	 */
+	public long getLastReportWrites() {
+		if ( sender != null ) {
+			return sender.getLastSendWrites();
+		}
+		return lastReportWrites;
+	}
+
+	/**
+	 * The total number of datapoints we skipped because they hadn't changed.
+	 * Always 0 unless the reporter was built with
+	 * {@link Builder#withChangeOnlyReporting(long, TimeUnit)}.
+	 */
+	public long getSuppressedDatapoints() {
+		return suppressed.getCount();
+	}
+
+	/**
+	 * Metrics for the asynchronous sender: the depth of its queue, the number
+	 * of datapoints dropped because the queue was full, and the number sent
+	 * or lost to send failures.  Empty unless the reporter was built with
+	 * {@link Builder#withAsyncSender(int, OverflowPolicy)}.
+	 */
+	public MetricSet getSenderMetrics() {
+		if ( sender != null ) {
+			return sender.getMetrics();
+		}
+		return Collections::emptyMap;
+	}
+
+	/**
+	 * Metrics for the retry buffer: the number of datapoints waiting to be
+	 * retried, the number we've retried and the number dropped because the
+	 * buffer was full.  Empty unless the reporter was built with
+	 * {@link Builder#withRetryBuffer(long)}.
+	 */
+	public MetricSet getRetryMetrics() {
+		if ( retries == null ) {
+			return Collections::emptyMap;
+		}
+		return () -> {
+			Map<String, Metric> metrics = new LinkedHashMap<>();
+			metrics.put( "queued", (Gauge<Integer>) retries::size );
+			metrics.put( "retried", (Gauge<Long>) retried::getCount );
+			metrics.put( "dropped", (Gauge<Long>) retryDropped::getCount );
+			return metrics;
+		};
+	}
+
+	/**
+	 * The reporter's own metrics: timers for the whole report and each of its
+	 * phases (connecting, each type of metric, flushing, ...), histograms of
+	 * the datapoints, bytes and writes of each report, and counters of the
+	 * datapoints reported and of failures.  They're kept in their own
+	 * registry and are only reported if the reporter was built with
+	 * {@link Builder#withSelfReporting(boolean)}, but the registry can also be
+	 * registered with (or reported by) anything else.
+	 */
+	public MetricRegistry getReporterMetrics() {
+		return metrics.registry;
+	}
+
 	/**
 	 * A builder for {@link KairosDbReporter} instances. Defaults to not using a
 	 * prefix, using the default clock, converting rates to events/second,
@@ -108,6 +328,30 @@ public class KairosDbReporter extends ScheduledReporter {
 		private Map<String, String> tags;
         private boolean garbageCollectAndDeriveCounters = false;
 		private ScheduledExecutorService executor = null;
+		private int bufferSize = KairosDb.DEFAULT_BUFFER_SIZE;
+		private int batchSize = 1;
+		private boolean persistentConnection = false;
+		private long initialBackoff = KairosDb.DEFAULT_INITIAL_BACKOFF;
+		private long maxBackoff = KairosDb.DEFAULT_MAX_BACKOFF;
+		private boolean nonBlocking = false;
+		private int asyncCapacity = 0;
+		private OverflowPolicy overflowPolicy = OverflowPolicy.DROP_OLDEST;
+		private ExecutorService snapshotExecutor = null;
+		private long heartbeat = 0;
+		private File spoolDirectory = null;
+		private long spoolSize = 0;
+		private int replayRate = 0;
+		private long retryBytes = 0;
+		private int connections = 1;
+		private boolean selfReporting = false;
+		private boolean phaseLogging = false;
+		private Set<MetricField> timerFields = MetricField.TIMER_FIELDS;
+		private Set<MetricField> histogramFields = MetricField.HISTOGRAM_FIELDS;
+		private Set<MetricField> meterFields = MetricField.METER_FIELDS;
+		private ExpirationPolicy expirationPolicy = ExpirationPolicy.NONE;
+		private long expirationInterval = GCMetricIndex.DEFAULT_EXPIRATION_INTERVAL;
+		private int slices = 1;
+		private boolean startJitter = false;
 
 		private Builder(MetricRegistry registry) {
 			this.registry = registry;
@@ -138,6 +382,71 @@ public class KairosDbReporter extends ScheduledReporter {
             return this;
         }
 
+		/**
+		 * With {@link ExpirationPolicy#EXPIRE}, remove counters, meters,
+		 * timers and histograms from the registry once their count hasn't
+		 * changed for the given interval, so that idle metrics (such as those
+		 * for a tag value which is no longer used) don't stay around forever.
+		 * Gauges are never expired.  The interval also applies to
+		 * {@link #garbageCollectAndDeriveCounters(boolean)}.  Defaults to
+		 * {@link ExpirationPolicy#NONE} and five minutes.
+		 *
+		 * A removed metric is recreated the next time it's looked up in the
+		 * registry, so code updating metrics which may expire should look
+		 * them up each time (as {@link TaggedMetrics} does) rather than
+		 * keeping a reference.
+		 *
+		 * @param expirationPolicy
+		 *            whether to expire idle metrics
+		 * @param interval
+		 *            how long a metric may be idle before it's removed
+		 * @param unit
+		 *            the unit of the interval
+		 * @return {@code this}
+		 */
+		public Builder withExpiration(ExpirationPolicy expirationPolicy, long interval, TimeUnit unit) {
+			if (interval <= 0) {
+				throw new IllegalArgumentException("The expiration interval must be positive: " + interval);
+			}
+			this.expirationPolicy = expirationPolicy;
+			this.expirationInterval = unit.toMillis(interval);
+			return this;
+		}
+
+		/**
+		 * Spread each report across the reporting period rather than sending
+		 * everything at once.  The metrics are split into the given number of
+		 * slices (by the hash of their name, so each metric is always in the
+		 * same slice) and one slice is reported every period / slices.  Every
+		 * datapoint is still timestamped with the start of the period.
+		 *
+		 * @param slices
+		 *            the number of slices to split each report into
+		 * @return {@code this}
+		 */
+		public Builder withReportSlices(int slices) {
+			if (slices <= 0) {
+				throw new IllegalArgumentException("We need at least one slice: " + slices);
+			}
+			this.slices = slices;
+			return this;
+		}
+
+		/**
+		 * Offset the reporting schedule by a random fraction of the period
+		 * (of a slice, with {@link #withReportSlices(int)}) so that hosts
+		 * started at the same time don't all report at the same moment.
+		 * Datapoints are still timestamped with the start of the period.
+		 *
+		 * @param startJitter
+		 *            true to offset the schedule randomly
+		 * @return {@code this}
+		 */
+		public Builder withStartJitter(boolean startJitter) {
+			this.startJitter = startJitter;
+			return this;
+		}
+
 		/**
 		 * Use the given {@link Clock} instance for the time.
 		 * 
@@ -207,6 +516,279 @@ public class KairosDbReporter extends ScheduledReporter {
 			return this;
 		}
 
+		/**
+		 * Use an output buffer of the given size when writing to the server.
+		 * A large buffer lets a whole report go out in a few large writes
+		 * rather than one write per datapoint.
+		 *
+		 * @param bufferSize
+		 *            the size of the output buffer, in bytes
+		 * @return {@code this}
+		 */
+		public Builder withBufferSize(int bufferSize) {
+			this.bufferSize = bufferSize;
+			return this;
+		}
+
+		/**
+		 * Flush to the server after every {@code batchSize} datapoints.  The
+		 * default of 1 flushes every datapoint.  0 disables batch flushing so
+		 * we only write when the buffer is full and at the end of each report.
+		 *
+		 * @param batchSize
+		 *            the number of datapoints to send between flushes
+		 * @return {@code this}
+		 */
+		public Builder withBatchSize(int batchSize) {
+			this.batchSize = batchSize;
+			return this;
+		}
+
+		/**
+		 * Keep the connection to the server open between reports instead of
+		 * connecting and disconnecting every report.  A broken connection is
+		 * detected when we write to it and we reconnect on the next report,
+		 * backing off exponentially while the server is unreachable.
+		 *
+		 * @param persistentConnection
+		 *            true to keep the connection open
+		 * @return {@code this}
+		 */
+		public Builder withPersistentConnection(boolean persistentConnection) {
+			this.persistentConnection = persistentConnection;
+			return this;
+		}
+
+		/**
+		 * The range of delays between reconnect attempts when using a
+		 * persistent connection.  The delay doubles every failed attempt, up
+		 * to the maximum, with random jitter.
+		 *
+		 * @param initialBackoff
+		 *            the delay after the first failure
+		 * @param maxBackoff
+		 *            the maximum delay
+		 * @param unit
+		 *            the unit of both delays
+		 * @return {@code this}
+		 */
+		public Builder withReconnectBackoff(long initialBackoff, long maxBackoff, TimeUnit unit) {
+			this.initialBackoff = unit.toMillis(initialBackoff);
+			this.maxBackoff = unit.toMillis(maxBackoff);
+			return this;
+		}
+
+		/**
+		 * Use a non-blocking {@link NioKairosDb} client, which encodes
+		 * datapoints into pooled direct buffers, when building the reporter
+		 * with {@link #build(InetSocketAddress)}.
+		 *
+		 * @param nonBlocking
+		 *            true to use a non-blocking client
+		 * @return {@code this}
+		 */
+		public Builder withNonBlockingTransport(boolean nonBlocking) {
+			this.nonBlocking = nonBlocking;
+			return this;
+		}
+
+		/**
+		 * Open the given number of connections to the server when building
+		 * the reporter with {@link #build(InetSocketAddress)}.  The series of
+		 * each report are split across the connections, each with its own
+		 * writer thread.  See {@link PooledKairosDb}.
+		 *
+		 * @param connections
+		 *            the number of connections
+		 * @return {@code this}
+		 */
+		public Builder withConnections(int connections) {
+			if (connections <= 0) {
+				throw new IllegalArgumentException("We need at least one connection: " + connections);
+			}
+			this.connections = connections;
+			return this;
+		}
+
+		/**
+		 * Send datapoints from a dedicated thread.  Each report only captures
+		 * values into a bounded queue, so a slow or unreachable server doesn't
+		 * delay the reporter.
+		 *
+		 * @param capacity
+		 *            the maximum number of datapoints waiting to be sent
+		 * @param overflowPolicy
+		 *            what to do with new datapoints when the queue is full
+		 * @return {@code this}
+		 */
+		public Builder withAsyncSender(int capacity, OverflowPolicy overflowPolicy) {
+			this.asyncCapacity = capacity;
+			this.overflowPolicy = overflowPolicy;
+			return this;
+		}
+
+		/**
+		 * Compute timer and histogram snapshots on the given executor, such
+		 * as {@link java.util.concurrent.ForkJoinPool#commonPool()}, instead
+		 * of the reporter thread.  Worthwhile with thousands of timers and
+		 * histograms since every snapshot copies and sorts its reservoir.
+		 * Datapoints are still written in the same order.
+		 *
+		 * @param snapshotExecutor
+		 *            the executor to compute snapshots on, or null to compute
+		 *            them on the reporter thread
+		 * @return {@code this}
+		 */
+		public Builder withSnapshotExecutor(ExecutorService snapshotExecutor) {
+			this.snapshotExecutor = snapshotExecutor;
+			return this;
+		}
+
+		/**
+		 * Only send a datapoint when its value has changed since we last sent
+		 * it, or when we last sent it at least one heartbeat ago.  Cuts the
+		 * volume for metrics which sit at the same value for long periods,
+		 * while the heartbeat keeps the series alive in KairosDB.
+		 *
+		 * @param heartbeat
+		 *            how often we resend a value which hasn't changed
+		 * @param unit
+		 *            the unit of the heartbeat
+		 * @return {@code this}
+		 */
+		public Builder withChangeOnlyReporting(long heartbeat, TimeUnit unit) {
+			if (heartbeat <= 0) {
+				throw new IllegalArgumentException("Heartbeat must be positive: " + heartbeat);
+			}
+			this.heartbeat = unit.toMillis(heartbeat);
+			return this;
+		}
+
+		/**
+		 * Keep datapoints in memory-mapped files in the given directory while
+		 * the server is unreachable, and replay them once we can connect
+		 * again.  Replay is rate limited so that a long outage doesn't
+		 * overwhelm the server when it comes back.  When the spool is full we
+		 * drop the oldest datapoints.  Only applies to {@link KairosDb}
+		 * clients.
+		 *
+		 * @param directory
+		 *            where to keep the spool files
+		 * @param maxBytes
+		 *            the maximum size of the spool on disk
+		 * @param replayRate
+		 *            the maximum number of datapoints per second to replay
+		 * @return {@code this}
+		 */
+		public Builder withSpool(File directory, long maxBytes, int replayRate) {
+			this.spoolDirectory = directory;
+			this.spoolSize = maxBytes;
+			this.replayRate = replayRate;
+			return this;
+		}
+
+		/**
+		 * Keep the datapoints we fail to send (because we couldn't connect or
+		 * the connection broke) in memory and retry them at the start of the
+		 * next report.  When the buffer is full the oldest datapoints are
+		 * dropped.  Only applies when sending from the reporter thread.
+		 *
+		 * Every datapoint stays in the buffer until the report it was sent
+		 * in has been flushed, so it should hold at least one report.
+		 *
+		 * @param maxBytes
+		 *            roughly how much memory the buffered datapoints may use
+		 * @return {@code this}
+		 */
+		public Builder withRetryBuffer(long maxBytes) {
+			this.retryBytes = maxBytes;
+			return this;
+		}
+
+		/**
+		 * Also report the reporter's own metrics (see
+		 * {@link KairosDbReporter#getReporterMetrics()}) with every report,
+		 * named with the {@link #SELF_PREFIX} (after the prefix given to
+		 * {@link #prefixedWith(String)}, if any).  They aren't filtered.
+		 *
+		 * @param selfReporting
+		 *            true to report our own metrics
+		 * @return {@code this}
+		 */
+		public Builder withSelfReporting(boolean selfReporting) {
+			this.selfReporting = selfReporting;
+			return this;
+		}
+
+		/**
+		 * Log the start and duration of each phase of every report at INFO
+		 * (rather than DEBUG).  The durations are always recorded in
+		 * {@link KairosDbReporter#getReporterMetrics()}.
+		 *
+		 * @param phaseLogging
+		 *            true to log each phase at INFO
+		 * @return {@code this}
+		 */
+		public Builder withPhaseLogging(boolean phaseLogging) {
+			this.phaseLogging = phaseLogging;
+			return this;
+		}
+
+		/**
+		 * Only report the given fields of timers, for example
+		 * {@code timerFields(P99, MAX, M1_RATE)}.  Fields which aren't
+		 * reported aren't computed either, and when no snapshot fields (max,
+		 * mean, min, stddev or a percentile) are reported we don't take
+		 * snapshots of timers at all.  Defaults to every field.
+		 *
+		 * @param fields
+		 *            the snapshot and meter fields to report
+		 * @return {@code this}
+		 */
+		public Builder timerFields(MetricField... fields) {
+			this.timerFields = fields(MetricField.TIMER_FIELDS, "timers", fields);
+			return this;
+		}
+
+		/**
+		 * Only report the given fields of histograms, for example
+		 * {@code histogramFields(COUNT, P99)}.  Fields which aren't reported
+		 * aren't computed either (see {@link #timerFields(MetricField...)}).
+		 * Defaults to every field.
+		 *
+		 * @param fields
+		 *            the count and snapshot fields to report
+		 * @return {@code this}
+		 */
+		public Builder histogramFields(MetricField... fields) {
+			this.histogramFields = fields(MetricField.HISTOGRAM_FIELDS, "histograms", fields);
+			return this;
+		}
+
+		/**
+		 * Only report the given fields of meters, for example
+		 * {@code meterFields(COUNT, M1_RATE)}.  Defaults to every field.
+		 *
+		 * @param fields
+		 *            the count and rate fields to report
+		 * @return {@code this}
+		 */
+		public Builder meterFields(MetricField... fields) {
+			this.meterFields = fields(MetricField.METER_FIELDS, "meters", fields);
+			return this;
+		}
+
+		private static Set<MetricField> fields(Set<MetricField> supported, String type, MetricField... fields) {
+			EnumSet<MetricField> result = EnumSet.noneOf(MetricField.class);
+			for (MetricField field : fields) {
+				if (!supported.contains(field)) {
+					throw new IllegalArgumentException("We don't report " + field + " for " + type + ": " + supported);
+				}
+				result.add(field);
+			}
+			return Collections.unmodifiableSet(result);
+		}
+
 		/**
 		 * Only report metrics which match the given filter.
 		 * 
@@ -221,20 +803,71 @@ public class KairosDbReporter extends ScheduledReporter {
 
 		/**
 		 * Builds a {@link KairosDbReporter} with the given properties, sending
-		 * metrics using the given {@link KairosDb} client.
-		 * 
-		 * @param kairosDb
-		 *            a {@link KairosDb} client
+		 * metrics to the KairosDB server at the given address.
+		 *
+		 * @param address
+		 *            the address of the KairosDB server
 		 * @return a {@link KairosDbReporter}
 		 */
-		public KairosDbReporter build(KairosDb kairosDb) throws IOException {
-			kairosDb.setTags(tags);
-			if ( executor != null ) {
-				return new KairosDbReporter(registry, kairosDb, clock, prefix, rateUnit, durationUnit, executor, filter, garbageCollectAndDeriveCounters);
+		public KairosDbReporter build(InetSocketAddress address) throws IOException {
+			if ( connections == 1 ) {
+				return build(client(address));
+			}
+
+			KairosDb[] clients = new KairosDb[connections];
+			for (int i = 0; i < connections; i++) {
+				clients[i] = client(address);
+			}
+			return build(new PooledKairosDb(clients));
+		}
+
+		private KairosDb client(InetSocketAddress address) {
+			if ( nonBlocking ) {
+				return new NioKairosDb(address);
 			} else {
-				return new KairosDbReporter(registry, kairosDb, clock, prefix, rateUnit, durationUnit, filter, garbageCollectAndDeriveCounters);
+				return new KairosDb(address);
+			}
+		}
+
+		/**
+		 * Builds a {@link KairosDbReporter} with the given properties, sending
+		 * metrics using the given transport, such as a {@link KairosDb} or
+		 * {@link HttpKairosDb} client.  The buffer, batch, connection and
+		 * spool settings only apply to {@link KairosDb} clients (including
+		 * the clients of a {@link ShardedKairosDb} or {@link PooledKairosDb}).
+		 * 
+		 * @param transport
+		 *            a {@link KairosDbTransport}
+		 * @return a {@link KairosDbReporter}
+		 */
+		public KairosDbReporter build(KairosDbTransport transport) throws IOException {
+			transport.setTags(tags);
+			if (transport instanceof KairosDb) {
+				configure((KairosDb) transport, spoolDirectory);
+			} else if (transport instanceof PooledKairosDb) {
+				int connection = 0;
+				for (KairosDb kairosDb : ((PooledKairosDb) transport).getConnections()) {
+					configure(kairosDb, spoolDirectory != null ? new File(spoolDirectory, "connection-" + connection++) : null);
+				}
+			} else if (transport instanceof ShardedKairosDb) {
+				int shard = 0;
+				for (KairosDb kairosDb : ((ShardedKairosDb) transport).getShards()) {
+					// each server gets its own spool.
+					configure(kairosDb, spoolDirectory != null ? new File(spoolDirectory, "shard-" + shard++) : null);
+				}
 			}
+			return new KairosDbReporter(this, transport);
+		}
 
+		private void configure(KairosDb kairosDb, File spoolDirectory) throws IOException {
+			kairosDb.setBufferSize(bufferSize);
+			kairosDb.setBatchSize(batchSize);
+			kairosDb.setPersistent(persistentConnection);
+			kairosDb.setBackoff(initialBackoff, maxBackoff, TimeUnit.MILLISECONDS);
+			kairosDb.setClock(clock);
+			if (spoolDirectory != null) {
+				kairosDb.setSpool(new DiskSpool(spoolDirectory, spoolSize), replayRate);
+			}
 		}
 
 		private void validateTag(String tagName, String tagValue) {
@@ -261,17 +894,41 @@ public class KairosDbReporter extends ScheduledReporter {
 					   SortedMap<String, Meter> meters,
 					   SortedMap<String, Timer> timers) {
 
-        final long timestamp = clock.getTime();
+        final long timestamp = sliceTimestamp >= 0 ? sliceTimestamp : clock.getTime();
 
 		Stopwatch stopwatch = Stopwatch.createStarted();
+		Timer.Context context = metrics.report.time();
+
+		final long bytesWritten = client.getBytesWritten();
+		final long writes = client.getWrites();
 
 		try {
 
 			LOGGER.info( String.format( "Reporting metrics to %s..." , client ) );
 
-			connect();
+			queueing = false;
+			// anything left from a report which failed part way is retried.
+			unflushed = 0;
+			retrying = 0;
+			lostEvicted();
+			reportDatapoints = 0;
+
+			checkFailures();
+
+			if ( sender == null ) {
+				if ( retries == null ) {
+					connect();
+				} else {
+					try {
+						connect();
+						withTiming("Retrying", metrics.retry, this::retry);
+					} catch (IOException e) {
+						queueForRetry(e);
+					}
+				}
+			}
 
-			withTiming( "Reporting gauges", () -> {
+			withTiming( "Reporting gauges", metrics.gauges, () -> {
 
 				for (Map.Entry<String, Gauge> entry : gauges.entrySet()) {
 					LOGGER.debug("Reporting: " + entry.getKey());
@@ -280,7 +937,7 @@ public class KairosDbReporter extends ScheduledReporter {
 
 			} );
 
-			withTiming( "Reporting counters", () -> {
+			withTiming( "Reporting counters", metrics.counters, () -> {
 				for (Map.Entry<String, Counter> entry : counters.entrySet()) {
 					LOGGER.debug("Reporting: " + entry.getKey());
 					reportCounter(entry.getKey(), entry.getValue(), timestamp);
@@ -288,28 +945,57 @@ public class KairosDbReporter extends ScheduledReporter {
 
 			} );
 
-			withTiming("Reporting histograms", () -> {
+			withTiming("Reporting histograms", metrics.histograms, () -> {
+				SnapshotValues[] snapshots = histogramSnapshotFields.isEmpty() ? null : snapshotCollector.collect( new ArrayList<>( histograms.values() ), histogramSnapshotFields );
+				int i = 0;
 				for (Map.Entry<String, Histogram> entry : histograms.entrySet()) {
 					LOGGER.debug("Reporting: " + entry.getKey());
-					reportHistogram(entry.getKey(), entry.getValue(), timestamp);
+					reportHistogram(entry.getKey(), entry.getValue(), snapshots != null ? snapshots[i++] : null, timestamp);
 				}
 			} );
 
-			withTiming("Reporting meters", () -> {
+			withTiming("Reporting meters", metrics.meters, () -> {
 				for (Map.Entry<String, Meter> entry : meters.entrySet()) {
 					LOGGER.debug("Reporting: " + entry.getKey());
 					reportMetered(entry.getKey(), entry.getValue(), timestamp);
 				}
 			} );
 
-			withTiming("Reporting timers", () -> {
+			withTiming("Reporting timers", metrics.timers, () -> {
+				SnapshotValues[] snapshots = timerSnapshotFields.isEmpty() ? null : snapshotCollector.collect( new ArrayList<>( timers.values() ), timerSnapshotFields );
+				int i = 0;
 				for (Map.Entry<String, Timer> entry : timers.entrySet()) {
 					LOGGER.debug("Reporting: " + entry.getKey());
-					reportTimer(entry.getKey(), entry.getValue(), timestamp);
+					reportTimer(entry.getKey(), entry.getValue(), snapshots != null ? snapshots[i++] : null, timestamp);
 				}
 			} );
 
-			withTiming("Finalizing", () -> {
+			if ( selfReporting && endOfCycle ) {
+				// as of the end of the previous report and the phases of this
+				// one so far.
+				reportSelf(timestamp);
+			}
+
+			if ( sender != null ) {
+				sender.wakeUp();
+			} else if ( ! queueing ) {
+				try {
+					withTiming("Flushing", metrics.flush, client::flush);
+					retried();
+				} catch (IOException e) {
+					if ( retries == null ) {
+						throw e;
+					}
+					// whatever was buffered is still in the retry buffer.
+					queueForRetry(e);
+				}
+			}
+
+			withTiming("Finalizing", metrics.finalize, () -> {
+				if ( ! endOfCycle ) {
+					return;
+				}
+
 				gcMetricIndex.gc();
 
 				// count down so that anyone listening to the current latch
@@ -321,106 +1007,412 @@ public class KairosDbReporter extends ScheduledReporter {
 			} );
 
         } catch (Throwable t) {
+			// what we've written so far may be lost, so don't suppress it.
+			++changeEpoch;
+			metrics.reportFailures.inc();
 			LOGGER.warn("Unable to report to server", client, t);
 		} finally {
 
+			if ( sender == null && ! client.isPersistent() ) {
+				try {
+					disconnect();
+				} catch (IOException e) {
+					LOGGER.debug("Error disconnecting from server", client, e);
+				}
+			}
+
+			lastReportBytes = client.getBytesWritten() - bytesWritten;
+			lastReportWrites = client.getWrites() - writes;
+
+			metrics.reportDatapoints.update(reportDatapoints);
+			metrics.reportBytes.update(lastReportBytes);
+			metrics.reportWrites.update(lastReportWrites);
+			context.stop();
+
+			LOGGER.info( String.format( "Reporting metrics to %s...done (duration=%s, bytes=%,d, writes=%,d)" ,
+										client, stopwatch.stop(), lastReportBytes, lastReportWrites ) );
+
+		}
+
+	}
+
+	/**
+	 * Starts reporting at the given period, spread across the period and
+	 * offset as configured by {@link Builder#withReportSlices(int)} and
+	 * {@link Builder#withStartJitter(boolean)}.
+	 */
+	@Override
+	public void start(long period, TimeUnit unit) {
+		if ( slices == 1 && ! startJitter ) {
+			super.start(period, unit);
+			return;
+		}
+
+		final long periodMillis = unit.toMillis(period);
+		final long sliceNanos = unit.toNanos(period) / slices;
+		final long offset = startJitter ? ThreadLocalRandom.current().nextLong(Math.max(1, periodMillis / slices)) : 0;
+
+		// the first slice starts on a period boundary, plus the offset.
+		long initialDelay = Math.floorMod(offset - clock.getTime(), periodMillis);
+
+		executor.scheduleAtFixedRate(() -> {
 			try {
-				disconnect();
-			} catch (IOException e) {
-				LOGGER.debug("Error disconnecting from server", client, e);
+				reportSlice(periodMillis, offset);
+			} catch (RuntimeException e) {
+				LOGGER.error("Unable to report slice", e);
 			}
+		}, TimeUnit.MILLISECONDS.toNanos(initialDelay), sliceNanos, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Report the next slice of the current period, splitting the registry
+	 * into slices at the start of each period.
+	 *
+	 * @param periodMillis
+	 *            the reporting period
+	 * @param offset
+	 *            how far after the period boundary the first slice starts
+	 */
+	@SuppressWarnings( "rawtypes" )
+	synchronized void reportSlice(long periodMillis, long offset) {
+		if ( nextSlice == 0 ) {
+			// round to the nearest boundary in case we're run a little early.
+			long sliceMillis = periodMillis / slices;
+			cycleTimestamp = Math.floorDiv(clock.getTime() - offset + sliceMillis / 2, periodMillis) * periodMillis;
+
+			pendingSlices = ReportSlice.split(slices,
+											  registry.getGauges(filter),
+											  registry.getCounters(filter),
+											  registry.getHistograms(filter),
+											  registry.getMeters(filter),
+											  registry.getTimers(filter));
+		}
 
-			LOGGER.info( String.format( "Reporting metrics to %s...done (duration=%s)" , client, stopwatch.stop() ) );
+		ReportSlice slice = pendingSlices[nextSlice];
+		nextSlice = (nextSlice + 1) % slices;
 
+		sliceTimestamp = cycleTimestamp;
+		endOfCycle = nextSlice == 0;
+
+		try {
+			report(slice.gauges, slice.counters, slice.histograms, slice.meters, slice.timers);
+		} finally {
+			sliceTimestamp = -1;
+			endOfCycle = true;
+
+			if ( nextSlice == 0 ) {
+				pendingSlices = null;
+			}
 		}
+	}
 
+	@Override
+	public void stop() {
+		try {
+			super.stop();
+		} finally {
+			registry.removeListener( seriesCache );
+
+			if ( sender != null ) {
+				try {
+					sender.stop( 30, TimeUnit.SECONDS );
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			} else {
+				try {
+					client.shutdown();
+				} catch (IOException e) {
+					LOGGER.debug("Error disconnecting from server", client, e);
+				}
+			}
+		}
 	}
 
 	private void connect() throws IOException {
 
-		withTiming("Connecting to: " + client, client::connect);
+		try {
+
+			if ( client.isPersistent() ) {
+
+				// every report, as a transport with several connections is
+				// connected while only some of them are.
+				withTiming("Connecting to: " + client, metrics.connect, client::ensureConnected);
+
+			} else {
+				withTiming("Connecting to: " + client, metrics.connect, client::connect);
+			}
 
+		} catch (IOException e) {
+			metrics.connectFailures.inc();
+			throw e;
+		}
 
 	}
 
 	private void disconnect() throws IOException {
-		withTiming("Disconnecting from: " + client, client::close);
+		withTiming("Disconnecting from: " + client, metrics.disconnect, client::close);
 	}
 
-	private void withTiming( String message, IORunnable runnable ) throws IOException {
+	/**
+	 * Run a phase of the report, recording its duration in the given timer
+	 * and, if enabled, logging it.
+	 */
+	private void withTiming( String message, Timer timer, IORunnable runnable ) throws IOException {
 
-		Stopwatch stopwatch = Stopwatch.createStarted();
+		boolean log = phaseLogging ? LOGGER.isInfoEnabled() : LOGGER.isDebugEnabled();
+
+		if ( log ) {
+			logPhase( String.format( "%s ... ", message ) );
+		}
+
+		long start = System.nanoTime();
 
 		try {
-			LOGGER.info( String.format( "%s ... ", message ) );
 			runnable.run();
 		} finally {
-			LOGGER.info( String.format( "%s ... done (duration=%s)", message, stopwatch.stop() ) );
+			long duration = System.nanoTime() - start;
+			timer.update( duration, TimeUnit.NANOSECONDS );
+
+			if ( log ) {
+				logPhase( String.format( "%s ... done (duration=%,d ms)", message, TimeUnit.NANOSECONDS.toMillis( duration ) ) );
+			}
 		}
 
 	}
 
-	private void reportTimer(String name, Timer timer, long timestamp) throws IOException {
-        TaggedMetric taggedMetric = parse( name );
-        reportTimer( taggedMetric.getName(), timer, timestamp, taggedMetric.getTags() );
-    }
+	private void logPhase( String message ) {
+		if ( phaseLogging ) {
+			LOGGER.info( message );
+		} else {
+			LOGGER.debug( message );
+		}
+	}
 
-    private void reportTimer(String name, Timer timer, long timestamp, Map<String,String> tags) throws IOException {
-		final Snapshot snapshot = timer.getSnapshot();
+	/**
+	 * Report our own metrics.
+	 */
+	private void reportSelf(long timestamp) throws IOException {
+		for (Map.Entry<String, Counter> entry : metrics.registry.getCounters().entrySet()) {
+			send(seriesCache.get( SELF_PREFIX + entry.getKey() ).key(COUNT), entry.getValue().getCount(), timestamp);
+		}
+		for (Map.Entry<String, Histogram> entry : metrics.registry.getHistograms().entrySet()) {
+			reportHistogram(seriesCache.get( SELF_PREFIX + entry.getKey() ), entry.getValue(), snapshot(entry.getValue(), histogramSnapshotFields), timestamp);
+		}
+		for (Map.Entry<String, Timer> entry : metrics.registry.getTimers().entrySet()) {
+			reportTimer(seriesCache.get( SELF_PREFIX + entry.getKey() ), entry.getValue(), snapshot(entry.getValue(), timerSnapshotFields), timestamp);
+		}
+	}
+
+	private static SnapshotValues snapshot(Sampling sampling, Set<MetricField> fields) {
+		return fields.isEmpty() ? null : new SnapshotValues( sampling.getSnapshot(), fields );
+	}
+
+	/**
+	 * Send the datapoints we failed to send in earlier reports, oldest first.
+	 * They stay queued until they've been flushed (see {@link #retried()}),
+	 * as sending may only have buffered them.
+	 */
+	private void retry() throws IOException {
+		for (; unflushed < retries.size(); unflushed++) {
+			if (retries.isDouble(unflushed)) {
+				client.send(retries.key(unflushed), retries.doubleValue(unflushed), retries.timestamp(unflushed));
+			} else {
+				client.send(retries.key(unflushed), retries.longValue(unflushed), retries.timestamp(unflushed));
+			}
+		}
+		retrying = unflushed;
+	}
+
+	/**
+	 * The report has been flushed, so the datapoints we sent (retried or
+	 * not) have been written and can be dropped from the queue.
+	 */
+	private void retried() {
+		if ( unflushed > 0 ) {
+			retries.remove(unflushed);
+			unflushed = 0;
+		}
+		retried.inc(retrying);
+		retrying = 0;
+		evicted = 0;
+	}
+
+	/**
+	 * Add a datapoint to the retry buffer, accounting for the oldest one if
+	 * it's dropped to make room.
+	 */
+	private boolean queue(SeriesKey key, long timestamp, long bits, boolean isDouble) {
+		long dropped = retries.getDropped();
+		boolean accepted = retries.add(key, timestamp, bits, isDouble);
+		if ( retries.getDropped() != dropped ) {
+			if ( unflushed > 0 ) {
+				// sent but not flushed yet, so only lost if the flush fails.
+				--unflushed;
+				++evicted;
+			} else {
+				retryDropped.inc();
+				// it may have been marked as sent, so don't suppress it.
+				++changeEpoch;
+			}
+		}
+		return accepted;
+	}
 
-		client.send(prefix(name, "max"), format(convertDuration(snapshot.getMax())), timestamp, tags);
-		client.send(prefix(name, "mean"), format(convertDuration(snapshot.getMean())), timestamp, tags);
-		client.send(prefix(name, "min"), format(convertDuration(snapshot.getMin())), timestamp, tags);
-		client.send(prefix(name, "stddev"), format(convertDuration(snapshot.getStdDev())), timestamp, tags);
-		client.send(prefix(name, "p50"), format(convertDuration(snapshot.getMedian())), timestamp, tags);
-		client.send(prefix(name, "p75"), format(convertDuration(snapshot.get75thPercentile())), timestamp, tags);
-		client.send(prefix(name, "p95"), format(convertDuration(snapshot.get95thPercentile())), timestamp, tags);
-		client.send(prefix(name, "p98"), format(convertDuration(snapshot.get98thPercentile())), timestamp, tags);
-		client.send(prefix(name, "p99"), format(convertDuration(snapshot.get99thPercentile())), timestamp, tags);
-		client.send(prefix(name, "p999"), format(convertDuration(snapshot.get999thPercentile())), timestamp, tags);
+	/**
+	 * The datapoints we dropped from the retry buffer before they were
+	 * flushed won't be flushed, so they're lost.
+	 */
+	private void lostEvicted() {
+		if ( evicted > 0 ) {
+			retryDropped.inc(evicted);
+			evicted = 0;
+			++changeEpoch;
+		}
+	}
+
+	/**
+	 * If the transport (or the async sender) has lost datapoints since the
+	 * previous report without telling us, what we sent may not have arrived,
+	 * so don't suppress it.
+	 */
+	private void checkFailures() {
+		long failures = sender != null ? sender.getFailures() : client.getFailures();
+		if ( failures != lastFailures ) {
+			LOGGER.warn( String.format( "Datapoints were lost sending to %s (%,d failures)", client, failures - lastFailures ) );
+			lastFailures = failures;
+			++changeEpoch;
+		}
+	}
 
-		reportMetered(name, timer, timestamp, tags);
+	/**
+	 * Sending failed so queue the rest of this report for the next one.
+	 */
+	private void queueForRetry(IOException e) {
+		// what we've written so far may be lost, so don't suppress it.
+		++changeEpoch;
+		// the datapoints we sent are still queued, so they're retried next
+		// report, except for those we've already dropped.
+		unflushed = 0;
+		retrying = 0;
+		lostEvicted();
+		if ( ! queueing ) {
+			metrics.sendFailures.inc();
+			LOGGER.warn("Unable to send to server, queueing datapoints for retry: " + client, e);
+			queueing = true;
+		}
+	}
+
+	private void reportTimer(String name, Timer timer, SnapshotValues snapshot, long timestamp) throws IOException {
+		final MetricSeries series = seriesCache.get( name );
+		expire( name, series, timer.getCount() );
+		reportTimer( series, timer, snapshot, timestamp );
+	}
+
+	private void reportTimer(MetricSeries series, Timer timer, SnapshotValues snapshot, long timestamp) throws IOException {
+		if ( snapshot != null ) {
+			reportSnapshot(series, timerFields, snapshot, true, timestamp);
+		}
+
+		reportMetered(series, timer, timerFields, timestamp);
 	}
 
     private void reportMetered(String name, Metered meter, long timestamp) throws IOException {
-        TaggedMetric taggedMetric = parse( name );
-        reportMetered( taggedMetric.getName(), meter, timestamp, taggedMetric.getTags() );
+        final MetricSeries series = seriesCache.get( name );
+        expire( name, series, meter.getCount() );
+        reportMetered( series, meter, meterFields, timestamp );
     }
 
-    private void reportMetered(String name, Metered meter, long timestamp, Map<String,String> tags) throws IOException {
-        client.send(prefix(name, "count"), format(meter.getCount()), timestamp, tags);
-        client.send(prefix(name, "m1_rate"), format(convertRate(meter.getOneMinuteRate())), timestamp, tags);
-        client.send(prefix(name, "m5_rate"), format(convertRate(meter.getFiveMinuteRate())), timestamp, tags);
-        client.send(prefix(name, "m15_rate"), format(convertRate(meter.getFifteenMinuteRate())), timestamp, tags);
-        client.send(prefix(name, "mean_rate"), format(convertRate(meter.getMeanRate())), timestamp, tags);
+    private void reportMetered(MetricSeries series, Metered meter, Set<MetricField> fields, long timestamp) throws IOException {
+        if ( fields.contains(COUNT) ) {
+            send(series.key(COUNT), meter.getCount(), timestamp);
+        }
+        if ( fields.contains(M1_RATE) ) {
+            send(series.key(M1_RATE), convertRate(meter.getOneMinuteRate()), timestamp);
+        }
+        if ( fields.contains(M5_RATE) ) {
+            send(series.key(M5_RATE), convertRate(meter.getFiveMinuteRate()), timestamp);
+        }
+        if ( fields.contains(M15_RATE) ) {
+            send(series.key(M15_RATE), convertRate(meter.getFifteenMinuteRate()), timestamp);
+        }
+        if ( fields.contains(MEAN_RATE) ) {
+            send(series.key(MEAN_RATE), convertRate(meter.getMeanRate()), timestamp);
+        }
     }
 
-    private void reportHistogram(String name, Histogram histogram, long timestamp) throws IOException {
-        TaggedMetric taggedMetric = parse( name );
-        reportHistogram( taggedMetric.getName(), histogram, timestamp, taggedMetric.getTags() );
-    }
+	private void reportHistogram(String name, Histogram histogram, SnapshotValues snapshot, long timestamp) throws IOException {
+		final MetricSeries series = seriesCache.get( name );
+		expire( name, series, histogram.getCount() );
+		reportHistogram( series, histogram, snapshot, timestamp );
+	}
+
+	private void reportHistogram(MetricSeries series, Histogram histogram, SnapshotValues snapshot, long timestamp) throws IOException {
+		if ( histogramFields.contains(COUNT) ) {
+			send(series.key(COUNT), histogram.getCount(), timestamp);
+		}
+
+		if ( snapshot != null ) {
+			reportSnapshot(series, histogramFields, snapshot, false, timestamp);
+		}
+	}
+
+	/**
+	 * Send the given snapshot fields, converting them to our duration unit
+	 * if they're durations.
+	 */
+	private void reportSnapshot(MetricSeries series, Set<MetricField> fields, SnapshotValues snapshot, boolean durations, long timestamp) throws IOException {
+		if ( fields.contains(MAX) ) {
+			if ( durations ) {
+				send(series.key(MAX), convertDuration(snapshot.max), timestamp);
+			} else {
+				send(series.key(MAX), snapshot.max, timestamp);
+			}
+		}
+		if ( fields.contains(MEAN) ) {
+			send(series.key(MEAN), value(snapshot.mean, durations), timestamp);
+		}
+		if ( fields.contains(MIN) ) {
+			if ( durations ) {
+				send(series.key(MIN), convertDuration(snapshot.min), timestamp);
+			} else {
+				send(series.key(MIN), snapshot.min, timestamp);
+			}
+		}
+		if ( fields.contains(STDDEV) ) {
+			send(series.key(STDDEV), value(snapshot.stdDev, durations), timestamp);
+		}
+		if ( fields.contains(P50) ) {
+			send(series.key(P50), value(snapshot.p50, durations), timestamp);
+		}
+		if ( fields.contains(P75) ) {
+			send(series.key(P75), value(snapshot.p75, durations), timestamp);
+		}
+		if ( fields.contains(P95) ) {
+			send(series.key(P95), value(snapshot.p95, durations), timestamp);
+		}
+		if ( fields.contains(P98) ) {
+			send(series.key(P98), value(snapshot.p98, durations), timestamp);
+		}
+		if ( fields.contains(P99) ) {
+			send(series.key(P99), value(snapshot.p99, durations), timestamp);
+		}
+		if ( fields.contains(P999) ) {
+			send(series.key(P999), value(snapshot.p999, durations), timestamp);
+		}
+	}
 
-	private void reportHistogram(String name, Histogram histogram, long timestamp, Map<String,String> tags) throws IOException {
-		final Snapshot snapshot = histogram.getSnapshot();
-		client.send(prefix(name, "count"), format(histogram.getCount()), timestamp, tags);
-		client.send(prefix(name, "max"), format(snapshot.getMax()), timestamp, tags);
-		client.send(prefix(name, "mean"), format(snapshot.getMean()), timestamp, tags);
-		client.send(prefix(name, "min"), format(snapshot.getMin()), timestamp, tags);
-		client.send(prefix(name, "stddev"), format(snapshot.getStdDev()), timestamp, tags);
-		client.send(prefix(name, "p50"), format(snapshot.getMedian()), timestamp, tags);
-		client.send(prefix(name, "p75"), format(snapshot.get75thPercentile()), timestamp, tags);
-		client.send(prefix(name, "p95"), format(snapshot.get95thPercentile()), timestamp, tags);
-		client.send(prefix(name, "p98"), format(snapshot.get98thPercentile()), timestamp, tags);
-		client.send(prefix(name, "p99"), format(snapshot.get99thPercentile()), timestamp, tags);
-		client.send(prefix(name, "p999"), format(snapshot.get999thPercentile()), timestamp, tags);
+	private double value(double value, boolean duration) {
+		return duration ? convertDuration(value) : value;
 	}
 
     private void reportCounter(String name, Counter counter, long timestamp) throws IOException {
 
         long count = counter.getCount();
 
-        TaggedMetric taggedMetric = parse( name );
-        reportCounter( taggedMetric.getName(), counter, count, timestamp, taggedMetric.getTags() );
+        final MetricSeries series = seriesCache.get( name );
+
+        send(series.key(COUNT), count, timestamp);
 
         if ( garbageCollectAndDeriveTimers ) {
 
@@ -429,54 +1421,90 @@ public class KairosDbReporter extends ScheduledReporter {
             }
 
             counter.dec( count );
+        } else {
+            expire( name, series, count );
         }
 
     }
 
-	private void reportCounter(String name, Counter counter, long count, long timestamp, Map<String,String> tags) throws IOException {
+    /**
+     * Touch the metric in the GC index if its count shows it's still being
+     * used, when we're expiring idle metrics.
+     */
+    private void expire(String name, MetricSeries series, long count) {
+        if ( expireByCount && series.countChanged( count ) ) {
+            gcMetricIndex.touch( name );
+        }
+    }
 
-        client.send(prefix(name, "count"), format(count), timestamp, tags);
+    private void reportGauge(String name, Gauge<?> gauge, long timestamp) throws IOException {
+		final Object value = gauge.getValue();
+		if (value instanceof Float || value instanceof Double) {
+			send(seriesCache.get( name ).key(VALUE), ((Number) value).doubleValue(), timestamp);
+		} else if (value instanceof Byte || value instanceof Short || value instanceof Integer || value instanceof Long) {
+			send(seriesCache.get( name ).key(VALUE), ((Number) value).longValue(), timestamp);
+		}
+	}
 
+	private void send(SeriesKey key, long value, long timestamp) throws IOException {
+		send(key, value, false, timestamp);
 	}
 
-    private void reportGauge(String name, Gauge<?> gauge, long timestamp) throws IOException {
-        TaggedMetric taggedMetric = parse( name );
-        reportGauge( taggedMetric.getName(), gauge, timestamp, taggedMetric.getTags() );
-    }
+	private void send(SeriesKey key, double value, long timestamp) throws IOException {
+		send(key, Double.doubleToLongBits(value), true, timestamp);
+	}
 
-    private void reportGauge(String name, Gauge<?> gauge, long timestamp, Map<String,String> tags) throws IOException {
-		final String value = format(gauge.getValue());
-		if (value != null) {
-			client.send(prefix(name), value, timestamp, tags);
+	/**
+	 * Send a datapoint given its raw value (a double's bits when isDouble)
+	 * unless it's unchanged, queueing it when the server can't take it.
+	 */
+	private void send(SeriesKey key, long bits, boolean isDouble, long timestamp) throws IOException {
+		++reportDatapoints;
+		metrics.datapoints.inc();
+		if ( heartbeat > 0 && key.unchanged(bits, isDouble, timestamp, heartbeat, changeEpoch) ) {
+			suppressed.inc();
+			return;
 		}
-	}
 
-	private String format(Object o) {
-		if (o instanceof Float) {
-			return format(((Float) o).doubleValue());
-		} else if (o instanceof Double) {
-			return format(((Double) o).doubleValue());
-		} else if (o instanceof Byte) {
-			return format(((Byte) o).longValue());
-		} else if (o instanceof Short) {
-			return format(((Short) o).longValue());
-		} else if (o instanceof Integer) {
-			return format(((Integer) o).longValue());
-		} else if (o instanceof Long) {
-			return format(((Long) o).longValue());
+		boolean accepted;
+
+		if ( sender != null ) {
+			accepted = sender.getQueue().add(key, timestamp, bits, isDouble);
+		} else if ( queueing ) {
+			accepted = queue(key, timestamp, bits, isDouble);
+		} else {
+			try {
+				if ( isDouble ) {
+					client.send(key, Double.longBitsToDouble(bits), timestamp);
+				} else {
+					client.send(key, bits, timestamp);
+				}
+				accepted = true;
+				if ( retries != null ) {
+					// keep it until the report has been flushed, as sending
+					// may only have buffered it.
+					queue(key, timestamp, bits, isDouble);
+					++unflushed;
+				}
+			} catch (IOException e) {
+				if ( retries == null ) {
+					throw e;
+				}
+				queueForRetry(e);
+				accepted = queue(key, timestamp, bits, isDouble);
+			}
 		}
-		return null;
-	}
 
-	private String prefix(String... components) {
-		return MetricRegistry.name(prefix, components);
+		if ( heartbeat > 0 && accepted ) {
+			key.sent(bits, isDouble, timestamp, changeEpoch);
+		}
 	}
 
-	private String format(long n) {
+	static String format(long n) {
 		return Long.toString(n);
 	}
 
-	private String format(double v) {
-		return Double.toString(v);
+	static String format(double v) {
+		return NumberEncoder.toString(v);
 	}
 }
@@ -0,0 +1,137 @@
+package com.spinn3r.metrics.kairosdb;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Sends datapoints to a KairosDB server.  {@link KairosDb} (and
+ * {@link NioKairosDb}) use the telnet protocol and {@link HttpKairosDb} posts
+ * JSON batches to the REST API.
+ */
+public interface KairosDbTransport extends Closeable {
+
+	/**
+	 * Connects to the KairosDB server.
+	 *
+	 * @throws IllegalStateException
+	 *             if the transport is already connected
+	 * @throws IOException
+	 *             if there is an error connecting
+	 */
+	void connect() throws IllegalStateException, IOException;
+
+	/**
+	 * Connects to the KairosDB server unless we already have a connection.
+	 *
+	 * @throws IOException
+	 *             if there is an error connecting
+	 */
+	void ensureConnected() throws IOException;
+
+	/**
+	 * True if we currently have a connection to the server.
+	 */
+	boolean isConnected();
+
+	/**
+	 * True if the connection should stay open between reports.
+	 */
+	boolean isPersistent();
+
+	/**
+	 * Sends the given measurement to the server.  Transports may buffer the
+	 * measurement until {@link #flush()} is called.
+	 *
+	 * @param name
+	 *            the name of the metric
+	 * @param value
+	 *            the value of the metric
+	 * @param timestamp
+	 *            the timestamp of the metric
+	 * @param tags
+	 *            a map from name to value for tags to include as part of this metric.
+	 * @throws IOException
+	 *             if there was an error sending the metric
+	 */
+	void send(String name, String value, long timestamp, Map<String, String> tags) throws IOException;
+
+	/**
+	 * Sends a measurement for a series the reporter reuses every report.
+	 * Transports which can cache something per series (such as its encoding)
+	 * override this; by default it's sent by name.
+	 *
+	 * @see #send(String, String, long, Map)
+	 */
+	default void send(SeriesKey series, String value, long timestamp) throws IOException {
+		send(series.getName(), value, timestamp, series.getTags());
+	}
+
+	/**
+	 * Sends a measurement for a series.  Transports which can write the
+	 * value without formatting it as a string first override this.
+	 *
+	 * @see #send(SeriesKey, String, long)
+	 */
+	default void send(SeriesKey series, long value, long timestamp) throws IOException {
+		send(series, KairosDbReporter.format(value), timestamp);
+	}
+
+	/**
+	 * Sends a measurement for a series.  Transports which can write the
+	 * value without formatting it as a string first override this.
+	 *
+	 * @see #send(SeriesKey, String, long)
+	 */
+	default void send(SeriesKey series, double value, long timestamp) throws IOException {
+		send(series, KairosDbReporter.format(value), timestamp);
+	}
+
+	/**
+	 * Writes any buffered measurements to the server.
+	 *
+	 * @throws IOException
+	 *             if there was an error sending the buffered metrics
+	 */
+	void flush() throws IOException;
+
+	/**
+	 * Closes the transport for good: closes the connection (see
+	 * {@link #close()}) and releases anything kept between connections, such
+	 * as a spool's files.
+	 *
+	 * @throws IOException
+	 *             if there was an error closing the connection
+	 */
+	default void shutdown() throws IOException {
+		close();
+	}
+
+	/**
+	 * Tags to add to every measurement we send.
+	 */
+	void setTags(Map<String, String> tags);
+
+	/**
+	 * A count which goes up whenever datapoints which the transport had
+	 * accepted were lost without {@link #send(String, String, long, Map)} or
+	 * {@link #flush()} throwing, for example when one of several connections
+	 * broke or a full spool dropped them.  Callers which remember what
+	 * they've sent compare this between reports.  Transports which throw on
+	 * every failure return 0.
+	 */
+	default long getFailures() {
+		return 0;
+	}
+
+	/**
+	 * The total number of bytes written to the server.
+	 */
+	long getBytesWritten();
+
+	/**
+	 * The total number of writes (system calls or requests) made to the server.
+	 */
+	long getWrites();
+
+}
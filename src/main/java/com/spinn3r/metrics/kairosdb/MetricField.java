@@ -0,0 +1,74 @@
+package com.spinn3r.metrics.kairosdb;
+
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * The individual fields (series) we report for each metric.  The suffix is
+ * appended to the metric name to build the name of the series in KairosDB.
+ */
+public enum MetricField {
+
+    /**
+     * The value of a gauge which is reported without a suffix.
+     */
+    VALUE( null ),
+
+    COUNT( "count" ),
+
+    MAX( "max" ),
+
+    MEAN( "mean" ),
+
+    MIN( "min" ),
+
+    STDDEV( "stddev" ),
+
+    P50( "p50" ),
+
+    P75( "p75" ),
+
+    P95( "p95" ),
+
+    P98( "p98" ),
+
+    P99( "p99" ),
+
+    P999( "p999" ),
+
+    M1_RATE( "m1_rate" ),
+
+    M5_RATE( "m5_rate" ),
+
+    M15_RATE( "m15_rate" ),
+
+    MEAN_RATE( "mean_rate" ),
+
+    ;
+
+    /**
+     * The fields computed from a snapshot of a timer or histogram.
+     */
+    static final Set<MetricField> SNAPSHOT_FIELDS = Collections.unmodifiableSet( EnumSet.range( MAX, P999 ) );
+
+    /**
+     * The fields of a meter (and of the meter in a timer).
+     */
+    static final Set<MetricField> METER_FIELDS = Collections.unmodifiableSet( EnumSet.of( COUNT, M1_RATE, M5_RATE, M15_RATE, MEAN_RATE ) );
+
+    static final Set<MetricField> HISTOGRAM_FIELDS = Collections.unmodifiableSet( EnumSet.range( COUNT, P999 ) );
+
+    static final Set<MetricField> TIMER_FIELDS = Collections.unmodifiableSet( EnumSet.range( COUNT, MEAN_RATE ) );
+
+    private final String suffix;
+
+    MetricField(String suffix) {
+        this.suffix = suffix;
+    }
+
+    public String getSuffix() {
+        return suffix;
+    }
+
+}
@@ -0,0 +1,82 @@
+package com.spinn3r.metrics.kairosdb;
+
+import com.codahale.metrics.MetricRegistry;
+
+/**
+ * Describes all the series we report for a single registry metric.  The
+ * prefixed field names are computed the first time they're used and then
+ * reused every report until the metric is removed from the registry.
+ */
+class MetricSeries {
+
+    private final String prefix;
+
+    private final TaggedMetric taggedMetric;
+
+    private final SeriesKey[] keys = new SeriesKey[ MetricField.values().length ];
+
+    // the count of the metric when we last reported it, so that we can tell
+    // whether it's still being used.  Starts out as something no count can
+    // be so that a new metric is seen as used.
+    private long lastCount = Long.MIN_VALUE;
+
+    public MetricSeries(String prefix, TaggedMetric taggedMetric) {
+        this.prefix = prefix;
+        this.taggedMetric = taggedMetric;
+    }
+
+    public TaggedMetric getTaggedMetric() {
+        return taggedMetric;
+    }
+
+    /**
+     * Get the series for the given field of this metric.
+     */
+    public SeriesKey key( MetricField field ) {
+
+        SeriesKey key = keys[ field.ordinal() ];
+
+        if ( key == null ) {
+
+            String name;
+
+            if ( field.getSuffix() == null ) {
+                name = MetricRegistry.name( prefix, taggedMetric.getName() );
+            } else {
+                name = MetricRegistry.name( prefix, taggedMetric.getName(), field.getSuffix() );
+            }
+
+            key = new SeriesKey( name, taggedMetric.getTags() );
+            keys[ field.ordinal() ] = key;
+
+        }
+
+        return key;
+
+    }
+
+    /**
+     * Record the count of the metric as of this report.
+     *
+     * @return true if it's changed since the last report.
+     */
+    public boolean countChanged( long count ) {
+
+        if ( count == lastCount ) {
+            return false;
+        }
+
+        lastCount = count;
+        return true;
+
+    }
+
+    @Override
+    public String toString() {
+        return "MetricSeries{" +
+                 "prefix='" + prefix + '\'' +
+                 ", taggedMetric=" + taggedMetric +
+                 '}';
+    }
+
+}
@@ -0,0 +1,343 @@
+package com.spinn3r.metrics.kairosdb;
+
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricRegistryListener;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Function;
+
+/**
+ * A metric with a fixed name and tag names, bound once, from which the metric
+ * for a tuple of tag values is fetched on the hot path:
+ *
+ * <pre>
+ *     MetricTemplate&lt;Counter&gt; requests = taggedMetrics.counterTemplate( Server.class, "requests", "method", "status" );
+ *     ...
+ *     requests.get( method, status ).inc();
+ * </pre>
+ *
+ * The metrics we've already resolved are cached in a map per tag (the first
+ * tag's value leads to a map of the second tag's values, and so on), so
+ * fetching one is a lookup per tag without locking, building the name, or
+ * allocating.  Only the first fetch of a tuple goes through
+ * {@link TaggedMetrics} to build the name (applying its tag policies and
+ * cardinality limits) and look up the registry.
+ *
+ * Tuples with a value over the cardinality limits aren't cached (there's no
+ * bound on how many of them there are), so every fetch of one goes through
+ * {@link TaggedMetrics}.
+ *
+ * When a metric is removed from the registry (for example because it
+ * expired) it's dropped from the cache, so the next fetch registers it
+ * again.  Call {@link #close()} once the template isn't needed, so the
+ * registry lets go of it.
+ */
+public class MetricTemplate<T extends Metric> {
+
+    private final TaggedMetrics taggedMetrics;
+
+    private final String name;
+
+    private final String[] tagNames;
+
+    private final Function<String,T> factory;
+
+    // the resolved metrics: nested maps, one level per tag.
+    private final ConcurrentMap<String,Object> handles = new ConcurrentHashMap<>();
+
+    // the tag values resolved to each metric name (more than one with the
+    // cardinality limits), so that a removed metric can be evicted.  Guarded
+    // by itself.
+    private final Map<String,List<String[]>> resolved = new HashMap<>();
+
+    private final Evictor evictor = new Evictor();
+
+    // once closed we wouldn't hear of removed metrics, so we stop caching.
+    // Guarded by resolved.
+    private boolean closed = false;
+
+    /**
+     * @param name the full name of the metric
+     * @param factory gets or creates the metric with the given (tagged) name,
+     *                for example {@code taggedMetrics::counter}
+     * @param tagNames the names of the tags, in the order their values are
+     *                 given to {@link #get(String...)}
+     */
+    MetricTemplate( TaggedMetrics taggedMetrics, String name, Function<String,T> factory, String... tagNames ) {
+
+        if ( tagNames.length == 0 ) {
+            throw new IllegalArgumentException( "A template needs at least one tag: " + name );
+        }
+
+        this.taggedMetrics = taggedMetrics;
+        this.name = name;
+        this.factory = factory;
+        this.tagNames = tagNames.clone();
+
+        taggedMetrics.getMetricRegistry().addListener( evictor );
+
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public List<String> getTagNames() {
+        return Arrays.asList( tagNames.clone() );
+    }
+
+    /**
+     * Get the metric for the given value of the single tag.
+     */
+    @SuppressWarnings( "unchecked" )
+    public T get( String value0 ) {
+
+        checkArity( 1 );
+
+        Object handle = value0 != null ? handles.get( value0 ) : null;
+
+        if ( handle != null ) {
+            return (T) handle;
+        }
+
+        return resolve( value0 );
+
+    }
+
+    /**
+     * Get the metric for the given values of the two tags.
+     */
+    @SuppressWarnings( "unchecked" )
+    public T get( String value0, String value1 ) {
+
+        checkArity( 2 );
+
+        Object handle = next( handles, value0 );
+        handle = next( handle, value1 );
+
+        if ( handle != null ) {
+            return (T) handle;
+        }
+
+        return resolve( value0, value1 );
+
+    }
+
+    /**
+     * Get the metric for the given values of the three tags.
+     */
+    @SuppressWarnings( "unchecked" )
+    public T get( String value0, String value1, String value2 ) {
+
+        checkArity( 3 );
+
+        Object handle = next( handles, value0 );
+        handle = next( handle, value1 );
+        handle = next( handle, value2 );
+
+        if ( handle != null ) {
+            return (T) handle;
+        }
+
+        return resolve( value0, value1, value2 );
+
+    }
+
+    /**
+     * Get the metric for the given values, one for each tag.  The fixed
+     * arity methods don't allocate the array of values.
+     */
+    @SuppressWarnings( "unchecked" )
+    public T get( String... values ) {
+
+        checkArity( values.length );
+
+        Object handle = handles;
+
+        for (String value : values) {
+            handle = next( handle, value );
+        }
+
+        if ( handle != null ) {
+            return (T) handle;
+        }
+
+        return resolve( values );
+
+    }
+
+    /**
+     * The number of tag value tuples we've resolved.
+     */
+    public int size() {
+
+        synchronized ( resolved ) {
+
+            int result = 0;
+
+            for (List<String[]> values : resolved.values()) {
+                result += values.size();
+            }
+
+            return result;
+
+        }
+
+    }
+
+    /**
+     * Stop listening to the registry and empty the cache.  The template
+     * still works, but no longer caches anything.
+     */
+    public void close() {
+
+        taggedMetrics.getMetricRegistry().removeListener( evictor );
+
+        synchronized ( resolved ) {
+            closed = true;
+            handles.clear();
+            resolved.clear();
+        }
+
+    }
+
+    @SuppressWarnings( "unchecked" )
+    private static Object next( Object level, String value ) {
+
+        if ( level == null || value == null ) {
+            return null;
+        }
+
+        return ((Map<String,Object>) level).get( value );
+
+    }
+
+    private void checkArity( int count ) {
+        if ( count != tagNames.length ) {
+            throw new IllegalArgumentException( "Expected " + tagNames.length + " tag values for " + name + " but got " + count );
+        }
+    }
+
+    @SuppressWarnings( "unchecked" )
+    private T resolve( String... values ) {
+
+        Tag[] tags = new Tag[ tagNames.length ];
+
+        for (int i = 0; i < tags.length; i++) {
+            tags[ i ] = Tag.of( tagNames[ i ], values[ i ] );
+        }
+
+        String metricName = taggedMetrics.name( name, null, tags );
+
+        T metric = factory.apply( metricName );
+
+        for (String value : values) {
+            if ( value == null ) {
+                // we can't key the cache on it, and the tag policies have
+                // either dropped the tag or failed.
+                return metric;
+            }
+        }
+
+        if ( metricName.contains( "=" + CardinalityLimiter.OVERFLOW ) ) {
+            // a value over the limits, so one of an unbounded number of
+            // tuples sharing the overflow metric.
+            return metric;
+        }
+
+        synchronized ( resolved ) {
+
+            if ( closed ) {
+                return metric;
+            }
+
+            if ( taggedMetrics.getMetricRegistry().getMetrics().get( metricName ) != metric ) {
+                // removed (and so evicted) since we got it.
+                return metric;
+            }
+
+            Map<String,Object> level = handles;
+
+            for (int i = 0; i < values.length - 1; i++) {
+                level = (Map<String,Object>) level.computeIfAbsent( values[ i ], key -> new ConcurrentHashMap<String,Object>() );
+            }
+
+            if ( level.put( values[ values.length - 1 ], metric ) == null ) {
+                resolved.computeIfAbsent( metricName, key -> new ArrayList<>() ).add( values.clone() );
+            }
+
+        }
+
+        return metric;
+
+    }
+
+    @SuppressWarnings( "unchecked" )
+    private void evict( String metricName ) {
+
+        synchronized ( resolved ) {
+
+            List<String[]> evicted = resolved.remove( metricName );
+
+            if ( evicted == null ) {
+                return;
+            }
+
+            for (String[] values : evicted) {
+
+                Map<String,Object> level = handles;
+
+                for (int i = 0; i < values.length - 1 && level != null; i++) {
+                    level = (Map<String,Object>) level.get( values[ i ] );
+                }
+
+                if ( level != null ) {
+                    // the empty maps above it are left for the next metric.
+                    level.remove( values[ values.length - 1 ] );
+                }
+
+            }
+
+        }
+
+    }
+
+    /**
+     * Evicts metrics from the cache when they're removed from the registry.
+     */
+    private class Evictor extends MetricRegistryListener.Base {
+
+        @Override
+        public void onGaugeRemoved( String name ) {
+            evict( name );
+        }
+
+        @Override
+        public void onCounterRemoved( String name ) {
+            evict( name );
+        }
+
+        @Override
+        public void onHistogramRemoved( String name ) {
+            evict( name );
+        }
+
+        @Override
+        public void onMeterRemoved( String name ) {
+            evict( name );
+        }
+
+        @Override
+        public void onTimerRemoved( String name ) {
+            evict( name );
+        }
+
+    }
+
+}
@@ -0,0 +1,285 @@
+package com.spinn3r.metrics.kairosdb;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A KairosDB client which writes to a non-blocking {@link SocketChannel}.
+ *
+ * Datapoints are encoded straight into pooled direct buffers.  Full buffers
+ * are queued and pushed to the server with gathering writes as the socket
+ * accepts them, so a slow server doesn't stall the reporter until every
+ * buffer in the pool is waiting to be written.  Flushing and closing the
+ * connection wait (up to the write timeout) for the queued buffers to be
+ * written.
+ *
+ * This is a drop-in replacement for {@link KairosDb} and can be passed to
+ * {@link KairosDbReporter.Builder#build(KairosDbTransport)}.
+ */
+public class NioKairosDb extends KairosDb {
+
+	/**
+	 * The default maximum number of direct buffers we allocate.
+	 */
+	public static final int DEFAULT_MAX_BUFFERS = 16;
+
+	/**
+	 * The default time we wait for a slow server, in milliseconds.
+	 */
+	public static final long DEFAULT_WRITE_TIMEOUT = TimeUnit.SECONDS.toMillis(10);
+
+	private final int maxBuffers;
+	private final long writeTimeout;
+
+	private SocketChannel channel;
+	private Selector selector;
+
+	// buffers which are free to be encoded into.  Kept between connections
+	// as direct buffers are expensive to allocate.
+	private final ArrayDeque<ByteBuffer> free = new ArrayDeque<>();
+
+	// the number of direct buffers we've allocated so far.
+	private int allocated = 0;
+
+	// the buffer the client is currently encoding into.
+	private ByteBuffer current;
+
+	// full buffers (in read mode) waiting to be written, oldest first.
+	private final ByteBuffer[] pending;
+	private int pendingCount = 0;
+
+	// set when writing fails, so we don't try to write the pending buffers
+	// again when the connection is closed.
+	private boolean broken = false;
+
+	/**
+	 * Creates a new non-blocking KairosDB client which connects to the given
+	 * address.
+	 *
+	 * @param address
+	 *            the address of the KairosDB server
+	 */
+	public NioKairosDb(InetSocketAddress address) {
+		this(address, UTF_8, DEFAULT_MAX_BUFFERS, DEFAULT_WRITE_TIMEOUT, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Creates a new non-blocking KairosDB client which connects to the given
+	 * address.
+	 *
+	 * @param address
+	 *            the address of the KairosDB server
+	 * @param charset
+	 *            the character set used by the server
+	 * @param maxBuffers
+	 *            the maximum number of direct buffers to allocate
+	 * @param writeTimeout
+	 *            how long to wait for a slow server when all the buffers are
+	 *            full or we're closing the connection
+	 * @param unit
+	 *            the unit of the write timeout
+	 */
+	public NioKairosDb(InetSocketAddress address, Charset charset, int maxBuffers, long writeTimeout, TimeUnit unit) {
+		super(address, charset);
+		if (maxBuffers < 2) {
+			throw new IllegalArgumentException("We need at least two buffers: " + maxBuffers);
+		}
+		this.maxBuffers = maxBuffers;
+		this.writeTimeout = unit.toMillis(writeTimeout);
+		this.pending = new ByteBuffer[maxBuffers];
+	}
+
+	@Override
+	protected void openConnection(InetSocketAddress address) throws IOException {
+		this.channel = SocketChannel.open(address);
+		this.channel.configureBlocking(false);
+		this.selector = Selector.open();
+		this.channel.register(selector, SelectionKey.OP_WRITE);
+		this.broken = false;
+	}
+
+	@Override
+	protected void closeConnection() throws IOException {
+		try {
+			if (channel != null && pendingCount > 0 && !broken) {
+				write(true);
+			}
+		} finally {
+			try {
+				if (selector != null) {
+					selector.close();
+				}
+				if (channel != null) {
+					channel.close();
+				}
+			} finally {
+				this.selector = null;
+				this.channel = null;
+				release();
+			}
+		}
+	}
+
+	@Override
+	public boolean isConnected() {
+		return channel != null;
+	}
+
+	@Override
+	protected ByteBuffer acquireBuffer() {
+		current = free.poll();
+		if (current == null) {
+			current = allocate();
+		}
+		return current;
+	}
+
+	@Override
+	protected ByteBuffer drain(ByteBuffer buffer, boolean flush) throws IOException {
+		if (buffer.position() == 0 && !flush) {
+			return buffer;
+		}
+
+		if (buffer.position() > 0) {
+			buffer.flip();
+			pending[pendingCount++] = buffer;
+			current = null;
+		}
+
+		// push whatever the socket will take, waiting for the rest when
+		// flushing so that it's all been handed to the socket when flush()
+		// returns.
+		write(flush);
+
+		if (current == null) {
+			current = free.poll();
+			if (current == null && allocated < maxBuffers) {
+				current = allocate();
+			}
+			if (current == null) {
+				// every buffer is waiting on the server so we have to wait
+				// for it to catch up.
+				write(true);
+				current = free.poll();
+			}
+		}
+
+		return current;
+	}
+
+	/**
+	 * The number of buffers waiting to be written to the server.
+	 */
+	int getPendingBuffers() {
+		return pendingCount;
+	}
+
+	/**
+	 * Writes the pending buffers with gathering writes.
+	 *
+	 * @param block
+	 *            true to wait (up to the write timeout) until every pending
+	 *            buffer has been written
+	 */
+	private void write(boolean block) throws IOException {
+		long deadline = System.currentTimeMillis() + writeTimeout;
+
+		try {
+			while (pendingCount > 0) {
+				long written = channel.write(pending, 0, pendingCount);
+				recordWrite(written);
+				compact();
+
+				if (pendingCount == 0 || !block) {
+					return;
+				}
+
+				if (written == 0) {
+					long remaining = deadline - System.currentTimeMillis();
+					if (remaining <= 0) {
+						throw new IOException("Timed out writing to " + this);
+					}
+					// this can return early with nothing selected, in which
+					// case we go round again until the deadline has passed.
+					selector.select(remaining);
+					selector.selectedKeys().clear();
+				}
+			}
+		} catch (IOException e) {
+			// the connection is going to be dropped, and the pending
+			// buffers with it once they've been spooled.
+			broken = true;
+			throw e;
+		}
+	}
+
+	@Override
+	protected ByteBuffer[] unwritten() {
+		ByteBuffer[] result = new ByteBuffer[pendingCount + 1];
+		for (int i = 0; i < pendingCount; i++) {
+			result[i] = pending[i].duplicate();
+		}
+		if (current != null && current.position() > 0) {
+			ByteBuffer data = current.duplicate();
+			data.flip();
+			result[pendingCount] = data;
+			return result;
+		}
+		return Arrays.copyOf(result, pendingCount);
+	}
+
+	/**
+	 * Return the fully written buffers to the pool.
+	 */
+	private void compact() {
+		int written = 0;
+		while (written < pendingCount && !pending[written].hasRemaining()) {
+			written(pending[written]);
+			pending[written].clear();
+			free.add(pending[written]);
+			++written;
+		}
+		if (written > 0) {
+			System.arraycopy(pending, written, pending, 0, pendingCount - written);
+			for (int i = pendingCount - written; i < pendingCount; i++) {
+				pending[i] = null;
+			}
+			pendingCount -= written;
+		}
+	}
+
+	/**
+	 * Return every buffer to the pool, dropping anything that was not written.
+	 */
+	private void release() {
+		discardPending();
+		if (current != null) {
+			current.clear();
+			free.add(current);
+			current = null;
+		}
+	}
+
+	private void discardPending() {
+		for (int i = 0; i < pendingCount; i++) {
+			pending[i].clear();
+			free.add(pending[i]);
+			pending[i] = null;
+		}
+		pendingCount = 0;
+	}
+
+	private ByteBuffer allocate() {
+		++allocated;
+		return ByteBuffer.allocateDirect(getBufferSize());
+	}
+
+}
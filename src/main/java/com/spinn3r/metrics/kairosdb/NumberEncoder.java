@@ -0,0 +1,410 @@
+package com.spinn3r.metrics.kairosdb;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes numbers as ASCII digits straight into a buffer, without going
+ * through a String.
+ *
+ * Doubles are written as the shortest decimal which parses back to the same
+ * double, using the same notation as {@link Double#toString(double)}: plain
+ * digits from 10^-3 up to 10^7 and computerized scientific notation (such as
+ * "1.0E7") outside that range.  So the output only differs where
+ * {@link Double#toString(double)} writes more digits than it needs to.  Every
+ * finite double is converted without allocating, using Giulietti's
+ * Schubfach algorithm (as in {@link Double#toString(double)} since Java 19),
+ * and zero, NaN and the infinities are written as constants.
+ */
+class NumberEncoder {
+
+    /**
+     * The most bytes we write for a single number.  The caller must make sure
+     * the buffer has at least this much room.
+     */
+    static final int MAX_LENGTH = 32;
+
+    // 10^0 to 10^18.
+    private static final long[] POWERS = new long[ 19 ];
+
+    private static final long SIGNIFICAND_MASK = ( 1L << 52 ) - 1;
+
+    private static final long HIDDEN_BIT = 1L << 52;
+
+    // the binary exponent of the smallest (subnormal) doubles.
+    private static final int MIN_EXPONENT = -1074;
+
+    // below this a subnormal significand doesn't have enough digits to be
+    // told apart from its neighbours, so it's scaled up by ten.
+    private static final long TINY_SIGNIFICAND = 3;
+
+    // the range of k for which we have 10^-k (see g1 and g0).
+    private static final int MIN_K = -324;
+
+    private static final int MAX_K = 292;
+
+    private static final long MASK_63 = ( 1L << 63 ) - 1;
+
+    // for each k, 10^-k = b * 2^r with 2^125 <= b < 2^126 and g = floor(b) + 1
+    // split into its high 63 bits (even entries) and low 63 bits (odd).
+    private static final long[] G = new long[ 2 * ( MAX_K - MIN_K + 1 ) ];
+
+    private static final byte[] ZERO = ascii( "0.0" );
+
+    private static final byte[] NEGATIVE_ZERO = ascii( "-0.0" );
+
+    private static final byte[] NAN = ascii( "NaN" );
+
+    private static final byte[] INFINITY = ascii( "Infinity" );
+
+    private static final byte[] NEGATIVE_INFINITY = ascii( "-Infinity" );
+
+    static {
+
+        POWERS[ 0 ] = 1;
+        for (int i = 1; i < POWERS.length; i++) {
+            POWERS[ i ] = POWERS[ i - 1 ] * 10;
+        }
+
+        for (int k = MIN_K; k <= MAX_K; k++) {
+
+            BigInteger g;
+
+            if ( k <= 0 ) {
+                // shifting left by a negative amount shifts right.
+                BigInteger power = BigInteger.TEN.pow( -k );
+                g = power.shiftLeft( 126 - power.bitLength() );
+            } else {
+                BigInteger power = BigInteger.TEN.pow( k );
+                g = BigInteger.ONE.shiftLeft( 125 + power.bitLength() ).divide( power );
+            }
+
+            g = g.add( BigInteger.ONE );
+
+            G[ 2 * ( k - MIN_K ) ] = g.shiftRight( 63 ).longValue();
+            G[ 2 * ( k - MIN_K ) + 1 ] = g.longValue() & MASK_63;
+
+        }
+
+    }
+
+    /**
+     * Write the given long at the buffer's position.
+     */
+    static void put( ByteBuffer buffer, long value ) {
+
+        int position = buffer.position();
+
+        if ( value < 0 ) {
+            buffer.put( position++, (byte)'-' );
+        } else {
+            // work with the negative value so that Long.MIN_VALUE fits.
+            value = -value;
+        }
+
+        int end = position + length( value );
+
+        for (int i = end - 1; i >= position; i--) {
+            buffer.put( i, (byte)( '0' - ( value % 10 ) ) );
+            value /= 10;
+        }
+
+        buffer.position( end );
+
+    }
+
+    /**
+     * Write the given double at the buffer's position.
+     */
+    static void put( ByteBuffer buffer, double value ) {
+
+        long bits = Double.doubleToRawLongBits( value );
+        int biasedExponent = (int)( bits >>> 52 ) & 0x7FF;
+        long fraction = bits & SIGNIFICAND_MASK;
+
+        if ( biasedExponent == 0x7FF ) {
+            if ( fraction != 0 ) {
+                buffer.put( NAN );
+            } else {
+                buffer.put( value > 0 ? INFINITY : NEGATIVE_INFINITY );
+            }
+            return;
+        }
+
+        if ( biasedExponent == 0 && fraction == 0 ) {
+            // the sign bit tells -0.0 from 0.0, which compare equal.
+            buffer.put( bits < 0 ? NEGATIVE_ZERO : ZERO );
+            return;
+        }
+
+        if ( bits < 0 ) {
+            buffer.put( (byte)'-' );
+        }
+
+        if ( biasedExponent == 0 ) {
+            // subnormal.
+            if ( fraction < TINY_SIGNIFICAND ) {
+                putDecimal( buffer, MIN_EXPONENT, 10 * fraction, -1 );
+            } else {
+                putDecimal( buffer, MIN_EXPONENT, fraction, 0 );
+            }
+            return;
+        }
+
+        long significand = fraction | HIDDEN_BIT;
+        int exponent = biasedExponent - 1075;
+
+        // small integers are exact, so they're their own shortest decimal.
+        if ( exponent < 0 && exponent > -53 ) {
+            long integer = significand >> -exponent;
+            if ( integer << -exponent == significand ) {
+                putScientific( buffer, integer, 0 );
+                return;
+            }
+        }
+
+        putDecimal( buffer, exponent, significand, 0 );
+
+    }
+
+    /**
+     * The given double as we'd write it, for clients which don't write into
+     * a buffer of their own.
+     */
+    static String toString( double value ) {
+
+        ByteBuffer buffer = ByteBuffer.allocate( MAX_LENGTH );
+
+        put( buffer, value );
+
+        return new String( buffer.array(), 0, buffer.position(), StandardCharsets.US_ASCII );
+
+    }
+
+    /**
+     * Write the shortest decimal which rounds to the double significand *
+     * 2^exponent * 10^scale (and the closest to it if there's more than one).
+     * The scale is -1 when a tiny subnormal's significand has been multiplied
+     * by ten to give it enough digits, and otherwise 0.
+     *
+     * Its rounding interval is scaled by 10^-k, so that it has at least 17
+     * digits before the point, using the 126 bit approximation g of 10^-k.
+     * The scaled values are rounded to odd (vb, vbl and vbr, in quarters) so
+     * they still tell us exactly which integers lie in the interval.  We
+     * then try dropping one more digit than that, and otherwise take the
+     * integer nearest the double.
+     */
+    private static void putDecimal( ByteBuffer buffer, int exponent, long significand, int scale ) {
+
+        int odd = (int) significand & 1;
+
+        long cb = significand << 2;
+        long cbr = cb + 2;
+        long cbl;
+        int k;
+
+        // the gap below a power of two is half the gap above it.
+        if ( significand != HIDDEN_BIT || exponent == MIN_EXPONENT ) {
+            cbl = cb - 2;
+            k = floorLog10Pow2( exponent );
+        } else {
+            cbl = cb - 1;
+            k = floorLog10ThreeQuartersPow2( exponent );
+        }
+
+        int h = exponent + floorLog2Pow10( -k ) + 2;
+
+        long g1 = G[ 2 * ( k - MIN_K ) ];
+        long g0 = G[ 2 * ( k - MIN_K ) + 1 ];
+
+        long vb = roundToOdd( g1, g0, cb << h );
+        long vbl = roundToOdd( g1, g0, cbl << h );
+        long vbr = roundToOdd( g1, g0, cbr << h );
+
+        long s = vb >> 2;
+
+        if ( s >= 100 ) {
+
+            // one digit fewer: the multiples of ten either side of s.
+            long sp10 = 10 * ( s / 10 );
+            long tp10 = sp10 + 10;
+
+            boolean upin = vbl + odd <= sp10 << 2;
+            boolean wpin = ( tp10 << 2 ) + odd <= vbr;
+
+            if ( upin != wpin ) {
+                putScientific( buffer, upin ? sp10 : tp10, k + scale );
+                return;
+            }
+
+        }
+
+        long t = s + 1;
+
+        boolean uin = vbl + odd <= s << 2;
+        boolean win = ( t << 2 ) + odd <= vbr;
+
+        if ( uin != win ) {
+            putScientific( buffer, uin ? s : t, k + scale );
+            return;
+        }
+
+        // both are in the interval so take the nearest, or the even one.
+        long cmp = vb - ( ( s + t ) << 1 );
+        putScientific( buffer, cmp < 0 || cmp == 0 && ( s & 1 ) == 0 ? s : t, k + scale );
+
+    }
+
+    /**
+     * The top 64 bits of g * cp / 2^127, with the lowest bit set if any of
+     * the rest were (rounding to odd).
+     */
+    private static long roundToOdd( long g1, long g0, long cp ) {
+
+        long x1 = multiplyHigh( g0, cp );
+        long y0 = g1 * cp;
+        long y1 = multiplyHigh( g1, cp );
+        long z = ( y0 >>> 1 ) + x1;
+        long vbp = y1 + ( z >>> 63 );
+
+        return vbp | ( ( z & MASK_63 ) + MASK_63 ) >>> 63;
+
+    }
+
+    /**
+     * Write digits * 10^exponent the way {@link Double#toString(double)}
+     * does: plain from 10^-3 up to 10^7, and otherwise with one digit
+     * before the point and an exponent.  There's always at least one digit
+     * after the point.
+     */
+    private static void putScientific( ByteBuffer buffer, long digits, int exponent ) {
+
+        while ( digits % 10 == 0 ) {
+            digits /= 10;
+            ++exponent;
+        }
+
+        int length = length( -digits );
+
+        // the value is 0.digits * 10^point.
+        int point = exponent + length;
+
+        int position = buffer.position();
+
+        if ( point > 0 && point <= 7 ) {
+            if ( length <= point ) {
+                // an integer, which we write with a ".0"
+                position = putDigits( buffer, position, digits, length );
+                position = putDigits( buffer, position, 0, point - length );
+                buffer.put( position++, (byte)'.' );
+                buffer.put( position++, (byte)'0' );
+            } else {
+                int fraction = length - point;
+                position = putDigits( buffer, position, digits / POWERS[ fraction ], point );
+                buffer.put( position++, (byte)'.' );
+                position = putDigits( buffer, position, digits % POWERS[ fraction ], fraction );
+            }
+        } else if ( point > -3 && point <= 0 ) {
+            buffer.put( position++, (byte)'0' );
+            buffer.put( position++, (byte)'.' );
+            position = putDigits( buffer, position, 0, -point );
+            position = putDigits( buffer, position, digits, length );
+        } else {
+            position = putDigits( buffer, position, digits / POWERS[ length - 1 ], 1 );
+            buffer.put( position++, (byte)'.' );
+            if ( length > 1 ) {
+                position = putDigits( buffer, position, digits % POWERS[ length - 1 ], length - 1 );
+            } else {
+                buffer.put( position++, (byte)'0' );
+            }
+            buffer.put( position++, (byte)'E' );
+            buffer.position( position );
+            put( buffer, (long)( point - 1 ) );
+            return;
+        }
+
+        buffer.position( position );
+
+    }
+
+    /**
+     * Write the given non-negative value as exactly the given number of
+     * digits, padded with leading zeros.
+     *
+     * @return the position after the digits.
+     */
+    private static int putDigits( ByteBuffer buffer, int position, long value, int length ) {
+
+        for (int i = position + length - 1; i >= position; i--) {
+            buffer.put( i, (byte)( '0' + ( value % 10 ) ) );
+            value /= 10;
+        }
+
+        return position + length;
+
+    }
+
+    /**
+     * The number of digits in the given non-positive value.
+     */
+    private static int length( long value ) {
+
+        int length = 1;
+
+        while ( value <= -10 ) {
+            value /= 10;
+            ++length;
+        }
+
+        return length;
+
+    }
+
+    private static byte[] ascii( String string ) {
+        return string.getBytes( StandardCharsets.US_ASCII );
+    }
+
+    /**
+     * The high 64 bits of the unsigned 128 bit product of x and y.
+     */
+    static long multiplyHigh( long x, long y ) {
+
+        long x0 = x & 0xFFFFFFFFL;
+        long x1 = x >>> 32;
+        long y0 = y & 0xFFFFFFFFL;
+        long y1 = y >>> 32;
+
+        long p00 = x0 * y0;
+        long p01 = x0 * y1;
+        long p10 = x1 * y0;
+        long p11 = x1 * y1;
+
+        long middle = ( p00 >>> 32 ) + ( p01 & 0xFFFFFFFFL ) + ( p10 & 0xFFFFFFFFL );
+
+        return p11 + ( p01 >>> 32 ) + ( p10 >>> 32 ) + ( middle >>> 32 );
+
+    }
+
+    /**
+     * floor(log10(2^e)), for |e| up to 5,456,721.
+     */
+    private static int floorLog10Pow2( int e ) {
+        return (int)( ( e * 661_971_961_083L ) >> 41 );
+    }
+
+    /**
+     * floor(log10(3/4 * 2^e)), for |e| up to 5,456,721.
+     */
+    private static int floorLog10ThreeQuartersPow2( int e ) {
+        return (int)( ( e * 661_971_961_083L - 274_743_187_321L ) >> 41 );
+    }
+
+    /**
+     * floor(log2(10^e)), for |e| up to 1,838,394.
+     */
+    private static int floorLog2Pow10( int e ) {
+        return (int)( ( e * 913_124_641_741L ) >> 38 );
+    }
+
+}
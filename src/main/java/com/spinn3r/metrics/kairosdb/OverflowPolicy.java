@@ -0,0 +1,18 @@
+package com.spinn3r.metrics.kairosdb;
+
+/**
+ * What to do when a bounded buffer of datapoints is full.
+ */
+public enum OverflowPolicy {
+
+    /**
+     * Drop the datapoint we're trying to add, keeping the older datapoints.
+     */
+    DROP_NEWEST,
+
+    /**
+     * Drop the oldest datapoint in the buffer to make room for the new one.
+     */
+    DROP_OLDEST,
+
+}
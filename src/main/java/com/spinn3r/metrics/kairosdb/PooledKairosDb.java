@@ -0,0 +1,577 @@
+package com.spinn3r.metrics.kairosdb;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricSet;
+import com.codahale.metrics.Timer;
+
+/**
+ * Sends datapoints to a single KairosDB server over several connections at
+ * once, for when one TCP stream can't keep up with a report.
+ *
+ * Each series is assigned to a connection by its hash, so the datapoints of a
+ * series are always written in order.  The caller only collects datapoints
+ * into batches; each connection has its own writer thread which encodes and
+ * writes its batches.  {@link #flush()} returns once every connection has
+ * written and flushed everything it was given.
+ *
+ * A connection fails on its writer thread, so the failure is reported by the
+ * next {@link #send(SeriesKey, String, long)} for that connection (or by
+ * {@link #flush()}).  The datapoints which were already queued for it are
+ * lost and counted as dropped.
+ */
+public class PooledKairosDb implements KairosDbTransport {
+
+	/**
+	 * The number of datapoints we hand to a writer thread at a time.
+	 */
+	static final int BATCH_SIZE = 1024;
+
+	/**
+	 * The number of batches which may be waiting for each writer thread
+	 * before the caller has to wait for it to catch up.
+	 */
+	static final int MAX_PENDING_BATCHES = 4;
+
+	private final List<KairosDb> connections;
+
+	private final Partition[] partitions;
+
+	/**
+	 * Creates a client which sends to the KairosDB server at the given address
+	 * over the given number of connections.
+	 *
+	 * @param address
+	 *            the address of the KairosDB server
+	 * @param connections
+	 *            the number of connections to open
+	 */
+	public PooledKairosDb(InetSocketAddress address, int connections) {
+		this(clients(address, connections));
+	}
+
+	/**
+	 * Creates a client which sends over the given clients, which should all
+	 * connect to the same server.
+	 *
+	 * @param connections
+	 *            a client for each connection
+	 */
+	public PooledKairosDb(KairosDb... connections) {
+		if (connections.length == 0) {
+			throw new IllegalArgumentException("We need at least one connection");
+		}
+
+		this.connections = Collections.unmodifiableList(Arrays.asList(connections));
+		this.partitions = new Partition[connections.length];
+
+		for (int i = 0; i < connections.length; i++) {
+			partitions[i] = new Partition(connections[i], i);
+		}
+	}
+
+	private static KairosDb[] clients(InetSocketAddress address, int connections) {
+		if (connections <= 0) {
+			throw new IllegalArgumentException("We need at least one connection: " + connections);
+		}
+		KairosDb[] clients = new KairosDb[connections];
+		for (int i = 0; i < connections; i++) {
+			clients[i] = new KairosDb(address);
+		}
+		return clients;
+	}
+
+	/**
+	 * The client for each connection.
+	 */
+	public List<KairosDb> getConnections() {
+		return connections;
+	}
+
+	@Override
+	public void connect() throws IllegalStateException, IOException {
+		if (isConnected()) {
+			throw new IllegalStateException("Already connected");
+		}
+		for (KairosDb connection : connections) {
+			connection.connect();
+		}
+	}
+
+	@Override
+	public void ensureConnected() throws IOException {
+		for (KairosDb connection : connections) {
+			connection.ensureConnected();
+		}
+	}
+
+	/**
+	 * True if every connection is open.
+	 */
+	@Override
+	public boolean isConnected() {
+		for (KairosDb connection : connections) {
+			if (!connection.isConnected()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public boolean isPersistent() {
+		return connections.get(0).isPersistent();
+	}
+
+	@Override
+	public void setTags(Map<String, String> tags) {
+		for (KairosDb connection : connections) {
+			connection.setTags(tags);
+		}
+	}
+
+	@Override
+	public void send(String name, String value, long timestamp, Map<String, String> tags) throws IOException {
+		send(new SeriesKey(name, tags), value, timestamp);
+	}
+
+	/**
+	 * Queues a datapoint for the connection the series is assigned to.
+	 */
+	@Override
+	public void send(SeriesKey series, String value, long timestamp) throws IOException {
+		partition(series).add(series, value, timestamp);
+	}
+
+	/**
+	 * Queues a datapoint for the connection the series is assigned to.  The
+	 * writer thread writes its digits straight into the connection's buffer.
+	 */
+	@Override
+	public void send(SeriesKey series, long value, long timestamp) throws IOException {
+		partition(series).add(series, value, false, timestamp);
+	}
+
+	/**
+	 * Queues a datapoint for the connection the series is assigned to.  The
+	 * writer thread writes its digits straight into the connection's buffer.
+	 */
+	@Override
+	public void send(SeriesKey series, double value, long timestamp) throws IOException {
+		partition(series).add(series, Double.doubleToRawLongBits(value), true, timestamp);
+	}
+
+	private Partition partition(SeriesKey series) {
+		return partitions[Math.floorMod(series.shardHash(), partitions.length)];
+	}
+
+	/**
+	 * Hands the remaining datapoints to the writer threads and waits for
+	 * every connection to write and flush them.
+	 *
+	 * @throws IOException
+	 *             if any connection failed during the report
+	 */
+	@Override
+	public void flush() throws IOException {
+		for (Partition partition : partitions) {
+			partition.flush();
+		}
+
+		IOException failure = null;
+
+		for (Partition partition : partitions) {
+			IOException e = partition.await();
+			if (failure == null) {
+				failure = e;
+			}
+		}
+
+		if (failure != null) {
+			throw failure;
+		}
+	}
+
+	/**
+	 * Flushes and closes every connection and stops the writer threads.
+	 * They're started again if we're used after closing.
+	 */
+	@Override
+	public void close() throws IOException {
+		IOException failure = null;
+
+		try {
+			flush();
+		} catch (IOException e) {
+			failure = e;
+		}
+
+		for (KairosDb connection : connections) {
+			try {
+				connection.close();
+			} catch (IOException e) {
+				if (failure == null) {
+					failure = e;
+				}
+			}
+		}
+
+		for (Partition partition : partitions) {
+			partition.stop();
+		}
+
+		if (failure != null) {
+			throw failure;
+		}
+	}
+
+	/**
+	 * Closes every connection and releases what each connection's client
+	 * keeps between connections, such as its spool.
+	 */
+	@Override
+	public void shutdown() throws IOException {
+		IOException failure = null;
+
+		try {
+			close();
+		} catch (IOException e) {
+			failure = e;
+		}
+
+		for (KairosDb connection : connections) {
+			try {
+				connection.shutdown();
+			} catch (IOException e) {
+				if (failure == null) {
+					failure = e;
+				}
+			}
+		}
+
+		if (failure != null) {
+			throw failure;
+		}
+	}
+
+	@Override
+	public long getBytesWritten() {
+		long result = 0;
+		for (KairosDb connection : connections) {
+			result += connection.getBytesWritten();
+		}
+		return result;
+	}
+
+	@Override
+	public long getWrites() {
+		long result = 0;
+		for (KairosDb connection : connections) {
+			result += connection.getWrites();
+		}
+		return result;
+	}
+
+	/**
+	 * The datapoints dropped because a connection's writer failed to send
+	 * them, which happens after send() has returned.
+	 */
+	@Override
+	public long getFailures() {
+		long result = 0;
+		for (Partition partition : partitions) {
+			result += partition.dropped.getCount() + partition.connection.getFailures();
+		}
+		return result;
+	}
+
+	/**
+	 * For every connection: the datapoints and bytes it has sent (as meters,
+	 * so they include the throughput), how long it takes to write a batch,
+	 * the datapoints lost when it failed, and its connection metrics (see
+	 * {@link KairosDb#getMetrics()}).  Each name is prefixed with
+	 * "connection_" and the connection number.
+	 */
+	public MetricSet getMetrics() {
+		return () -> {
+			Map<String, Metric> metrics = new LinkedHashMap<>();
+			for (Partition partition : partitions) {
+				String prefix = "connection_" + partition.number + ".";
+				metrics.put(prefix + "datapoints", partition.datapoints);
+				metrics.put(prefix + "bytes", partition.bytes);
+				metrics.put(prefix + "write_latency", partition.latency);
+				metrics.put(prefix + "dropped", partition.dropped);
+				for (Map.Entry<String, Metric> entry : partition.connection.getMetrics().getMetrics().entrySet()) {
+					metrics.put(prefix + entry.getKey(), entry.getValue());
+				}
+			}
+			return metrics;
+		};
+	}
+
+	@Override
+	public String toString() {
+		return connections.get(0) + " (" + connections.size() + " connections)";
+	}
+
+	/**
+	 * The datapoints assigned to a single connection and its writer thread.
+	 */
+	private static class Partition {
+
+		private final KairosDb connection;
+
+		private final int number;
+
+		// started on first use, and stopped when we're closed.
+		private ExecutorService writer;
+
+		private final Semaphore pending = new Semaphore(MAX_PENDING_BATCHES);
+
+		// batches the writer has finished with, so we don't allocate a new
+		// one every batch.  The semaphore bounds the batches in use to the
+		// pending ones and the one being filled.
+		private final BlockingQueue<Batch> free = new ArrayBlockingQueue<>(MAX_PENDING_BATCHES + 1);
+
+		private final Meter datapoints = new Meter();
+
+		private final Meter bytes = new Meter();
+
+		private final Timer latency = new Timer();
+
+		private final Counter dropped = new Counter();
+
+		// the batch the caller is filling.
+		private Batch batch = new Batch();
+
+		// the last task handed to the writer.
+		private Future<?> last = null;
+
+		// the first failure since the last flush, set by the writer thread.
+		private volatile IOException failure = null;
+
+		Partition(KairosDb connection, int number) {
+			this.connection = connection;
+			this.number = number;
+		}
+
+		void add(SeriesKey series, String value, long timestamp) throws IOException {
+			checkFailure();
+			batch.add(series, value, timestamp);
+			added();
+		}
+
+		void add(SeriesKey series, long value, boolean isDouble, long timestamp) throws IOException {
+			checkFailure();
+			batch.add(series, value, isDouble, timestamp);
+			added();
+		}
+
+		private void added() throws IOException {
+			if (batch.size == BATCH_SIZE) {
+				submit(batch, false);
+				batch = nextBatch();
+			}
+		}
+
+		void flush() throws IOException {
+			submit(batch, true);
+			batch = nextBatch();
+		}
+
+		/**
+		 * Throws the failure of the connection, if it has failed, once the
+		 * writer has finished with the batches we've given it.  The
+		 * datapoints we haven't handed to the writer yet are dropped.
+		 */
+		private void checkFailure() throws IOException {
+			if (failure == null) {
+				return;
+			}
+
+			IOException e = await();
+
+			dropped.inc(batch.size);
+			batch.clear();
+
+			if (e != null) {
+				throw e;
+			}
+		}
+
+		private Batch nextBatch() {
+			Batch result = free.poll();
+			return result != null ? result : new Batch();
+		}
+
+		private ExecutorService writer() {
+			if (writer == null) {
+				writer = Executors.newSingleThreadExecutor(runnable -> {
+					Thread thread = new Thread(runnable, "kairosdb-writer-" + number);
+					thread.setDaemon(true);
+					return thread;
+				});
+			}
+			return writer;
+		}
+
+		/**
+		 * Stop the writer thread once it's finished what it was given.
+		 */
+		void stop() {
+			if (writer == null) {
+				return;
+			}
+
+			writer.shutdown();
+
+			try {
+				writer.awaitTermination(10, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+
+			writer = null;
+			last = null;
+		}
+
+		/**
+		 * Wait for the writer to finish everything we've given it.
+		 *
+		 * @return the first failure since the last flush, if any
+		 */
+		IOException await() throws IOException {
+			try {
+				if (last != null) {
+					last.get();
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted waiting for " + connection);
+			} catch (ExecutionException e) {
+				failure = new IOException(e.getCause());
+			}
+
+			IOException result = failure;
+			failure = null;
+			return result;
+		}
+
+		private void submit(Batch batch, boolean flush) throws IOException {
+			try {
+				pending.acquire();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted waiting for " + connection);
+			}
+
+			last = writer().submit(() -> {
+				try {
+					write(batch, flush);
+				} finally {
+					batch.clear();
+					free.offer(batch);
+					pending.release();
+				}
+			});
+		}
+
+		/**
+		 * Called on the writer thread.
+		 */
+		private void write(Batch batch, boolean flush) {
+			if (failure != null) {
+				// the connection has already failed this report.
+				dropped.inc(batch.size);
+				return;
+			}
+
+			long bytesWritten = connection.getBytesWritten();
+			Timer.Context context = latency.time();
+			int i = 0;
+
+			try {
+				for (; i < batch.size; i++) {
+					if (batch.values[i] != null) {
+						connection.send(batch.series[i], batch.values[i], batch.timestamps[i]);
+					} else if (batch.doubles[i]) {
+						connection.send(batch.series[i], Double.longBitsToDouble(batch.numbers[i]), batch.timestamps[i]);
+					} else {
+						connection.send(batch.series[i], batch.numbers[i], batch.timestamps[i]);
+					}
+				}
+				// a connection which failed earlier has nothing left to flush.
+				if (flush && (batch.size > 0 || connection.isConnected())) {
+					connection.flush();
+				}
+				datapoints.mark(batch.size);
+			} catch (IOException | RuntimeException e) {
+				// a failed flush loses the whole batch, not just what was
+				// left to send.
+				dropped.inc(i < batch.size ? batch.size - i : batch.size);
+				failure = e instanceof IOException ? (IOException) e : new IOException(e);
+			} finally {
+				context.stop();
+				bytes.mark(connection.getBytesWritten() - bytesWritten);
+			}
+		}
+
+	}
+
+	private static class Batch {
+
+		private final SeriesKey[] series = new SeriesKey[BATCH_SIZE];
+		// either the formatted value, or (when it's null) the raw value
+		// and whether it's a double's bits.
+		private final String[] values = new String[BATCH_SIZE];
+		private final long[] numbers = new long[BATCH_SIZE];
+		private final boolean[] doubles = new boolean[BATCH_SIZE];
+		private final long[] timestamps = new long[BATCH_SIZE];
+
+		private int size = 0;
+
+		void add(SeriesKey key, String value, long timestamp) {
+			series[size] = key;
+			values[size] = value;
+			timestamps[size] = timestamp;
+			++size;
+		}
+
+		void add(SeriesKey key, long value, boolean isDouble, long timestamp) {
+			series[size] = key;
+			numbers[size] = value;
+			doubles[size] = isDouble;
+			timestamps[size] = timestamp;
+			++size;
+		}
+
+		/**
+		 * Empty the batch for reuse, letting go of the series and values.
+		 */
+		void clear() {
+			Arrays.fill(series, 0, size, null);
+			Arrays.fill(values, 0, size, null);
+			size = 0;
+		}
+
+	}
+
+}
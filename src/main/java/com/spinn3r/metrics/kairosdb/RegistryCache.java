@@ -0,0 +1,76 @@
+package com.spinn3r.metrics.kairosdb;
+
+import com.codahale.metrics.*;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * Caches values derived from metric names (parsed names, tags, etc) so that
+ * the reporter doesn't have to rebuild them every report.
+ *
+ * The cache listens to the registry and evicts an entry as soon as the metric
+ * is removed (including via GCMetricIndex) so sparse tagged metrics don't leak.
+ */
+class RegistryCache<V> extends MetricRegistryListener.Base {
+
+    private final Map<String,V> cache = new ConcurrentHashMap<>();
+
+    private final Function<String,V> loader;
+
+    RegistryCache( Function<String,V> loader ) {
+        this.loader = loader;
+    }
+
+    /**
+     * Get the cached value for the given metric name, computing it the first
+     * time we see the name.
+     */
+    public V get( String name ) {
+
+        V value = cache.get( name );
+
+        if ( value == null ) {
+            value = loader.apply( name );
+            cache.put( name, value );
+        }
+
+        return value;
+
+    }
+
+    public void evict( String name ) {
+        cache.remove( name );
+    }
+
+    public int size() {
+        return cache.size();
+    }
+
+    @Override
+    public void onGaugeRemoved(String name) {
+        evict( name );
+    }
+
+    @Override
+    public void onCounterRemoved(String name) {
+        evict( name );
+    }
+
+    @Override
+    public void onHistogramRemoved(String name) {
+        evict( name );
+    }
+
+    @Override
+    public void onMeterRemoved(String name) {
+        evict( name );
+    }
+
+    @Override
+    public void onTimerRemoved(String name) {
+        evict( name );
+    }
+
+}
@@ -0,0 +1,77 @@
+package com.spinn3r.metrics.kairosdb;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Timer;
+
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * One of the slices a report is split into when it's spread across the
+ * reporting period.
+ *
+ * Metrics are assigned to a slice by the hash of their name, so a metric is
+ * reported at the same point in every period.
+ */
+@SuppressWarnings( "rawtypes" )
+class ReportSlice {
+
+    final SortedMap<String,Gauge> gauges = new TreeMap<>();
+
+    final SortedMap<String,Counter> counters = new TreeMap<>();
+
+    final SortedMap<String,Histogram> histograms = new TreeMap<>();
+
+    final SortedMap<String,Meter> meters = new TreeMap<>();
+
+    final SortedMap<String,Timer> timers = new TreeMap<>();
+
+    /**
+     * Split the given metrics into the given number of slices.
+     */
+    static ReportSlice[] split( int count,
+                                SortedMap<String,Gauge> gauges,
+                                SortedMap<String,Counter> counters,
+                                SortedMap<String,Histogram> histograms,
+                                SortedMap<String,Meter> meters,
+                                SortedMap<String,Timer> timers ) {
+
+        ReportSlice[] slices = new ReportSlice[ count ];
+
+        for (int i = 0; i < count; i++) {
+            slices[ i ] = new ReportSlice();
+        }
+
+        for (Map.Entry<String,Gauge> entry : gauges.entrySet()) {
+            slices[ slice( entry.getKey(), count ) ].gauges.put( entry.getKey(), entry.getValue() );
+        }
+
+        for (Map.Entry<String,Counter> entry : counters.entrySet()) {
+            slices[ slice( entry.getKey(), count ) ].counters.put( entry.getKey(), entry.getValue() );
+        }
+
+        for (Map.Entry<String,Histogram> entry : histograms.entrySet()) {
+            slices[ slice( entry.getKey(), count ) ].histograms.put( entry.getKey(), entry.getValue() );
+        }
+
+        for (Map.Entry<String,Meter> entry : meters.entrySet()) {
+            slices[ slice( entry.getKey(), count ) ].meters.put( entry.getKey(), entry.getValue() );
+        }
+
+        for (Map.Entry<String,Timer> entry : timers.entrySet()) {
+            slices[ slice( entry.getKey(), count ) ].timers.put( entry.getKey(), entry.getValue() );
+        }
+
+        return slices;
+
+    }
+
+    static int slice( String name, int count ) {
+        return Math.floorMod( name.hashCode(), count );
+    }
+
+}
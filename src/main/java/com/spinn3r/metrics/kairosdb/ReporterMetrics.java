@@ -0,0 +1,72 @@
+package com.spinn3r.metrics.kairosdb;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+
+/**
+ * The reporter's own metrics, kept in a registry of their own so that they
+ * aren't mixed up with (or filtered and garbage collected with) the metrics
+ * being reported:
+ *
+ * <ul>
+ *     <li>report: a timer for the whole report cycle.</li>
+ *     <li>phase.connect, phase.retry, phase.gauges, phase.counters,
+ *     phase.histograms, phase.meters, phase.timers, phase.flush,
+ *     phase.finalize and phase.disconnect: a timer for each phase of the
+ *     cycle.</li>
+ *     <li>report_datapoints, report_bytes and report_writes: histograms of
+ *     the datapoints, bytes and socket writes of each cycle.</li>
+ *     <li>datapoints: a counter of every datapoint reported.</li>
+ *     <li>report_failures, connect_failures and send_failures: counters of
+ *     the cycles which failed, the connection attempts which failed, and the
+ *     cycles in which sending failed and datapoints were queued for
+ *     retry.</li>
+ * </ul>
+ */
+class ReporterMetrics {
+
+    final MetricRegistry registry = new MetricRegistry();
+
+    final Timer report = registry.timer( "report" );
+
+    final Timer connect = phase( "connect" );
+
+    final Timer retry = phase( "retry" );
+
+    final Timer gauges = phase( "gauges" );
+
+    final Timer counters = phase( "counters" );
+
+    final Timer histograms = phase( "histograms" );
+
+    final Timer meters = phase( "meters" );
+
+    final Timer timers = phase( "timers" );
+
+    final Timer flush = phase( "flush" );
+
+    final Timer finalize = phase( "finalize" );
+
+    final Timer disconnect = phase( "disconnect" );
+
+    final Histogram reportDatapoints = registry.histogram( "report_datapoints" );
+
+    final Histogram reportBytes = registry.histogram( "report_bytes" );
+
+    final Histogram reportWrites = registry.histogram( "report_writes" );
+
+    final Counter datapoints = registry.counter( "datapoints" );
+
+    final Counter reportFailures = registry.counter( "report_failures" );
+
+    final Counter connectFailures = registry.counter( "connect_failures" );
+
+    final Counter sendFailures = registry.counter( "send_failures" );
+
+    private Timer phase( String name ) {
+        return registry.timer( "phase." + name );
+    }
+
+}
@@ -0,0 +1,122 @@
+package com.spinn3r.metrics.kairosdb;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A single series in KairosDB: the final (prefixed) metric name and its tags.
+ * Built once per metric field and reused every report.
+ */
+class SeriesKey {
+
+    private final String name;
+
+    private final Map<String,String> tags;
+
+    // the telnet encoding of this series, cached by the KairosDb which sends it.
+    private volatile KairosDb.EncodedSeries encoded;
+
+    // the last value we sent (as raw bits) and when, for change-only
+    // reporting.  Only touched by the reporter thread.
+    private long lastValue;
+
+    private boolean lastIsDouble;
+
+    private long lastSent = Long.MIN_VALUE;
+
+    private long lastEpoch;
+
+    // which KairosDB server (or connection) this series goes to.
+    private int shardHash;
+
+    private boolean shardHashComputed = false;
+
+    public SeriesKey(String name, Map<String, String> tags) {
+        this.name = name;
+        this.tags = tags;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public Map<String, String> getTags() {
+        return tags;
+    }
+
+    KairosDb.EncodedSeries getEncoded() {
+        return encoded;
+    }
+
+    void setEncoded( KairosDb.EncodedSeries encoded ) {
+        this.encoded = encoded;
+    }
+
+    /**
+     * True if the given value is the same as the last one we sent for this
+     * series and we sent it less than a heartbeat ago, so it can be skipped.
+     * A value sent in an earlier epoch (before a failed report) is never
+     * treated as unchanged, as it may not have reached the server.
+     *
+     * @param value the value, or the raw bits of a double value.
+     */
+    boolean unchanged( long value, boolean isDouble, long timestamp, long heartbeat, long epoch ) {
+
+        return lastSent != Long.MIN_VALUE &&
+               lastEpoch == epoch &&
+               value == lastValue &&
+               isDouble == lastIsDouble &&
+               timestamp - lastSent < heartbeat;
+
+    }
+
+    /**
+     * Remember the given value as the last one sent for this series, once
+     * it's been written (or handed to something which will write it).
+     *
+     * @param value the value, or the raw bits of a double value.
+     */
+    void sent( long value, boolean isDouble, long timestamp, long epoch ) {
+
+        lastValue = value;
+        lastIsDouble = isDouble;
+        lastSent = timestamp;
+        lastEpoch = epoch;
+
+    }
+
+    int shardHash() {
+
+        if ( ! shardHashComputed ) {
+            shardHash = hash( name, tags );
+            shardHashComputed = true;
+        }
+
+        return shardHash;
+
+    }
+
+    /**
+     * The hash of a series (its name and tags) used to pick its server.
+     */
+    static int hash( String name, Map<String,String> tags ) {
+
+        StringBuilder series = new StringBuilder( name );
+
+        for (Map.Entry<String,String> tag : new TreeMap<>( tags ).entrySet()) {
+            series.append( ' ' ).append( tag.getKey() ).append( '=' ).append( tag.getValue() );
+        }
+
+        return ShardedKairosDb.hash( series.toString() );
+
+    }
+
+    @Override
+    public String toString() {
+        return "SeriesKey{" +
+                 "name='" + name + '\'' +
+                 ", tags=" + tags +
+                 '}';
+    }
+
+}
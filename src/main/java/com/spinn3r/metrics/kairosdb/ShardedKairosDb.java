@@ -0,0 +1,464 @@
+package com.spinn3r.metrics.kairosdb;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricSet;
+import com.google.common.hash.Hashing;
+
+/**
+ * Spreads datapoints across several KairosDB servers.  Each series (its name
+ * and tags) is assigned to one server by consistent hashing so that a series
+ * always goes to the same server, and when a server is unreachable only its
+ * series move to the next server on the ring.  They return to it once
+ * {@link #ensureConnected()} reconnects.
+ *
+ * Datapoints are encoded into a buffer per server and the servers are flushed
+ * in parallel.
+ */
+public class ShardedKairosDb implements KairosDbTransport {
+
+	/**
+	 * The number of points each server has on the hash ring.  More points
+	 * spread the series (and the series of a failed server) more evenly.
+	 */
+	static final int VIRTUAL_NODES = 128;
+
+	private final List<KairosDb> shards;
+
+	// the hash ring: sorted points and the shard owning each point.
+	private final int[] points;
+	private final KairosDb[] owners;
+
+	// only used by the reporting thread.
+	private ExecutorService executor;
+
+	// the number of times a server's connection broke while we were sending
+	// to it, losing the datapoints buffered for it.
+	private final Counter failures = new Counter();
+
+	/**
+	 * Creates a client which shards datapoints across the KairosDB servers at
+	 * the given addresses.
+	 *
+	 * @param addresses
+	 *            the addresses of the KairosDB servers
+	 */
+	public ShardedKairosDb(List<InetSocketAddress> addresses) {
+		this(clients(addresses));
+	}
+
+	/**
+	 * Creates a client which shards datapoints across the given clients.
+	 *
+	 * @param shards
+	 *            a client for each KairosDB server
+	 */
+	public ShardedKairosDb(KairosDb... shards) {
+		if (shards.length == 0) {
+			throw new IllegalArgumentException("We need at least one server");
+		}
+
+		this.shards = Collections.unmodifiableList(Arrays.asList(shards));
+
+		List<long[]> ring = new ArrayList<>(shards.length * VIRTUAL_NODES);
+
+		for (int i = 0; i < shards.length; i++) {
+			for (int node = 0; node < VIRTUAL_NODES; node++) {
+				ring.add(new long[] { hash(ringKey(shards[i]) + "#" + node), i });
+			}
+		}
+
+		ring.sort((a, b) -> Long.compare(a[0], b[0]));
+
+		this.points = new int[ring.size()];
+		this.owners = new KairosDb[ring.size()];
+
+		for (int i = 0; i < ring.size(); i++) {
+			points[i] = (int) ring.get(i)[0];
+			owners[i] = shards[(int) ring.get(i)[1]];
+		}
+
+	}
+
+	/**
+	 * The name of a server on the ring.  It's built from the address as
+	 * given rather than a resolved or reverse looked up name, so every
+	 * process puts a server (and its series) at the same points.
+	 */
+	static String ringKey(KairosDb shard) {
+		InetSocketAddress address = shard.getAddress();
+		return address.getHostString() + ":" + address.getPort();
+	}
+
+	/**
+	 * The pool flushing the servers in parallel, started on first use and
+	 * shut down when we're closed.
+	 */
+	private ExecutorService executor() {
+		if (executor == null) {
+			executor = Executors.newFixedThreadPool(shards.size(), runnable -> {
+				Thread thread = new Thread(runnable, "kairosdb-shard-flush");
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+		return executor;
+	}
+
+	private static KairosDb[] clients(List<InetSocketAddress> addresses) {
+		KairosDb[] clients = new KairosDb[addresses.size()];
+		for (int i = 0; i < clients.length; i++) {
+			clients[i] = new KairosDb(addresses.get(i));
+		}
+		return clients;
+	}
+
+	/**
+	 * The client for each server.
+	 */
+	public List<KairosDb> getShards() {
+		return shards;
+	}
+
+	/**
+	 * Connects to every server we can reach.
+	 *
+	 * @throws IOException
+	 *             if we can't reach any server
+	 */
+	@Override
+	public void connect() throws IllegalStateException, IOException {
+		if (isConnected()) {
+			throw new IllegalStateException("Already connected");
+		}
+		connectAll();
+	}
+
+	/**
+	 * Connects to every server we aren't connected to (persistent clients
+	 * back off from servers which keep failing), so the series of a server
+	 * which has come back return to it.
+	 *
+	 * @throws IOException
+	 *             if we can't reach any server
+	 */
+	@Override
+	public void ensureConnected() throws IOException {
+		connectAll();
+	}
+
+	private void connectAll() throws IOException {
+		IOException failure = null;
+
+		for (KairosDb shard : shards) {
+			if (shard.isConnected()) {
+				continue;
+			}
+			try {
+				if (shard.isPersistent()) {
+					shard.ensureConnected();
+				} else {
+					shard.connect();
+				}
+			} catch (IOException e) {
+				// its series go to the other servers until it's back.
+				failure = e;
+			}
+		}
+
+		if (!isConnected()) {
+			throw new IOException("Unable to connect to any server: " + this, failure);
+		}
+	}
+
+	/**
+	 * True if we're connected to at least one server.
+	 */
+	@Override
+	public boolean isConnected() {
+		for (KairosDb shard : shards) {
+			if (shard.isConnected()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	@Override
+	public boolean isPersistent() {
+		return shards.get(0).isPersistent();
+	}
+
+	@Override
+	public void setTags(Map<String, String> tags) {
+		for (KairosDb shard : shards) {
+			shard.setTags(tags);
+		}
+	}
+
+	@Override
+	public void send(String name, String value, long timestamp, Map<String, String> tags) throws IOException {
+		send(SeriesKey.hash(name, tags), shard -> shard.send(name, value, timestamp, tags));
+	}
+
+	/**
+	 * Sends a datapoint for the given series to the server it's assigned to.
+	 */
+	@Override
+	public void send(SeriesKey series, String value, long timestamp) throws IOException {
+		send(series.shardHash(), shard -> shard.send(series, value, timestamp));
+	}
+
+	/**
+	 * Sends a datapoint for the given series to the server it's assigned to.
+	 */
+	@Override
+	public void send(SeriesKey series, long value, long timestamp) throws IOException {
+		send(series.shardHash(), shard -> shard.send(series, value, timestamp));
+	}
+
+	/**
+	 * Sends a datapoint for the given series to the server it's assigned to.
+	 */
+	@Override
+	public void send(SeriesKey series, double value, long timestamp) throws IOException {
+		send(series.shardHash(), shard -> shard.send(series, value, timestamp));
+	}
+
+	/**
+	 * Sends a datapoint to the server owning the given hash.  If that
+	 * server's connection breaks, whatever was buffered for it is lost (and
+	 * counted in {@link #getFailures()}), and the datapoint goes to the next
+	 * server on the ring along with the rest of the failed server's series.
+	 */
+	private void send(int hash, ShardSend send) throws IOException {
+		while (true) {
+			KairosDb shard = route(hash);
+			try {
+				send.send(shard);
+				return;
+			} catch (IOException e) {
+				if (shard.isConnected() || !isConnected()) {
+					throw e;
+				}
+				failures.inc();
+			}
+		}
+	}
+
+	/**
+	 * The connected server which owns the given hash: the first one at or
+	 * after it on the ring.
+	 */
+	KairosDb route(int hash) {
+		int index = Arrays.binarySearch(points, hash);
+
+		if (index < 0) {
+			index = -index - 1;
+		}
+
+		for (int i = 0; i < owners.length; i++) {
+			KairosDb owner = owners[(index + i) % owners.length];
+			if (owner.isConnected()) {
+				return owner;
+			}
+		}
+
+		throw new IllegalStateException("Not connected");
+	}
+
+	/**
+	 * Flushes every server in parallel.
+	 *
+	 * @throws IOException
+	 *             if flushing failed for any server: the first failure, with
+	 *             the others suppressed
+	 */
+	@Override
+	public void flush() throws IOException {
+		List<Future<?>> futures = new ArrayList<>(shards.size());
+
+		for (KairosDb shard : shards) {
+			if (shard.isConnected()) {
+				futures.add(executor().submit(() -> {
+					shard.flush();
+					return null;
+				}));
+			}
+		}
+
+		IOException failure = null;
+
+		for (Future<?> future : futures) {
+			try {
+				future.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted flushing " + this, e);
+			} catch (ExecutionException e) {
+				IOException cause = e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+				// whatever was buffered for that server is lost, so the
+				// caller has to know even if the other servers are fine.
+				if (failure == null) {
+					failure = cause;
+				} else {
+					failure.addSuppressed(cause);
+				}
+			}
+		}
+
+		if (failure != null) {
+			throw failure;
+		}
+	}
+
+	/**
+	 * Closes every connection and stops the flushing threads.  They're
+	 * started again if we're used after closing.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (executor != null) {
+			executor.shutdown();
+			executor = null;
+		}
+
+		IOException failure = null;
+
+		for (KairosDb shard : shards) {
+			try {
+				shard.close();
+			} catch (IOException e) {
+				failure = e;
+			}
+		}
+
+		if (failure != null) {
+			throw failure;
+		}
+	}
+
+	/**
+	 * The number of times a server's connection broke while we were sending
+	 * to it.  The datapoints which were buffered for that server are lost,
+	 * but as the rest of the series move to another server, sending carries
+	 * on without an exception.  Also includes what each server's client
+	 * lost itself (see {@link KairosDb#getFailures()}).
+	 */
+	@Override
+	public long getFailures() {
+		long result = failures.getCount();
+		for (KairosDb shard : shards) {
+			result += shard.getFailures();
+		}
+		return result;
+	}
+
+	/**
+	 * Closes every connection and releases what each server's client keeps
+	 * between connections, such as its spool.
+	 */
+	@Override
+	public void shutdown() throws IOException {
+		IOException failure = null;
+
+		try {
+			close();
+		} catch (IOException e) {
+			failure = e;
+		}
+
+		for (KairosDb shard : shards) {
+			try {
+				shard.shutdown();
+			} catch (IOException e) {
+				if (failure == null) {
+					failure = e;
+				}
+			}
+		}
+
+		if (failure != null) {
+			throw failure;
+		}
+	}
+
+	@Override
+	public long getBytesWritten() {
+		long result = 0;
+		for (KairosDb shard : shards) {
+			result += shard.getBytesWritten();
+		}
+		return result;
+	}
+
+	@Override
+	public long getWrites() {
+		long result = 0;
+		for (KairosDb shard : shards) {
+			result += shard.getWrites();
+		}
+		return result;
+	}
+
+	/**
+	 * The number of servers we're connected to, the number of times sending
+	 * to a server failed (see {@link #getFailures()}), and the connection
+	 * metrics of each server (see {@link KairosDb#getMetrics()}) prefixed with its
+	 * address.
+	 */
+	public MetricSet getMetrics() {
+		return () -> {
+			Map<String, Metric> metrics = new LinkedHashMap<>();
+			metrics.put("connected_servers", (Gauge<Integer>) () -> {
+				int connected = 0;
+				for (KairosDb shard : shards) {
+					if (shard.isConnected()) {
+						++connected;
+					}
+				}
+				return connected;
+			});
+			metrics.put("failures", failures);
+			for (KairosDb shard : shards) {
+				for (Map.Entry<String, Metric> entry : shard.getMetrics().getMetrics().entrySet()) {
+					metrics.put(shard + "." + entry.getKey(), entry.getValue());
+				}
+			}
+			return metrics;
+		};
+	}
+
+	/**
+	 * Sends a datapoint to a single server.
+	 */
+	private interface ShardSend {
+
+		void send(KairosDb shard) throws IOException;
+
+	}
+
+	static int hash(String s) {
+		return Hashing.murmur3_32().hashUnencodedChars(s).asInt();
+	}
+
+	@Override
+	public String toString() {
+		return shards.toString();
+	}
+
+}
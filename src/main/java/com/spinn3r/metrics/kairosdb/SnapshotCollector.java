@@ -0,0 +1,100 @@
+package com.spinn3r.metrics.kairosdb;
+
+import com.codahale.metrics.Sampling;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Computes the snapshots of timers and histograms.  Taking a snapshot copies
+ * and sorts the reservoir so with a large number of metrics it dominates the
+ * report; given an executor we split the metrics into chunks and compute them
+ * across cores.
+ *
+ * The results are returned in the same order as the metrics so the reporter
+ * still writes them serially, in a deterministic order.
+ */
+class SnapshotCollector {
+
+    // the number of metrics computed per task, so that small reports (and
+    // the tail of large ones) don't pay for handing work to another thread.
+    static final int CHUNK_SIZE = 256;
+
+    private final ExecutorService executor;
+
+    /**
+     * @param executor the executor to compute snapshots on, or null to
+     *                 compute them on the calling thread.
+     */
+    SnapshotCollector( ExecutorService executor ) {
+        this.executor = executor;
+    }
+
+    /**
+     * Compute the snapshot values of every metric, in the order given.
+     */
+    public SnapshotValues[] collect( List<? extends Sampling> metrics ) throws IOException {
+        return collect( metrics, MetricField.SNAPSHOT_FIELDS );
+    }
+
+    /**
+     * Compute the given snapshot fields of every metric, in the order given.
+     */
+    public SnapshotValues[] collect( List<? extends Sampling> metrics, Set<MetricField> fields ) throws IOException {
+
+        final SnapshotValues[] result = new SnapshotValues[ metrics.size() ];
+
+        if ( executor == null || metrics.size() <= CHUNK_SIZE ) {
+            compute( metrics, fields, result, 0, metrics.size() );
+            return result;
+        }
+
+        List<Callable<Void>> tasks = new ArrayList<>( metrics.size() / CHUNK_SIZE + 1 );
+
+        for (int start = 0; start < metrics.size(); start += CHUNK_SIZE) {
+
+            final int from = start;
+            final int to = Math.min( start + CHUNK_SIZE, metrics.size() );
+
+            tasks.add( () -> {
+                compute( metrics, fields, result, from, to );
+                return null;
+            } );
+
+        }
+
+        try {
+
+            // Future.get() also makes the results written by the tasks
+            // visible to us.
+            for (Future<Void> future : executor.invokeAll( tasks )) {
+                future.get();
+            }
+
+        } catch ( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException( "Interrupted computing snapshots" );
+        } catch ( ExecutionException e ) {
+            throw new IOException( "Unable to compute snapshots", e.getCause() );
+        }
+
+        return result;
+
+    }
+
+    private static void compute( List<? extends Sampling> metrics, Set<MetricField> fields, SnapshotValues[] result, int from, int to ) {
+
+        for (int i = from; i < to; i++) {
+            result[ i ] = new SnapshotValues( metrics.get( i ).getSnapshot(), fields );
+        }
+
+    }
+
+}
@@ -0,0 +1,54 @@
+package com.spinn3r.metrics.kairosdb;
+
+import com.codahale.metrics.Snapshot;
+
+import java.util.Set;
+
+import static com.spinn3r.metrics.kairosdb.MetricField.*;
+
+/**
+ * The values we report from a single {@link Snapshot}.  Computed up front
+ * (possibly on another thread) so that writing the report doesn't have to
+ * walk the snapshot again.  Only the fields we report are computed; the
+ * rest are left at zero.
+ */
+class SnapshotValues {
+
+    final long max;
+
+    final long min;
+
+    final double mean;
+
+    final double stdDev;
+
+    final double p50;
+
+    final double p75;
+
+    final double p95;
+
+    final double p98;
+
+    final double p99;
+
+    final double p999;
+
+    SnapshotValues( Snapshot snapshot ) {
+        this( snapshot, SNAPSHOT_FIELDS );
+    }
+
+    SnapshotValues( Snapshot snapshot, Set<MetricField> fields ) {
+        this.max = fields.contains( MAX ) ? snapshot.getMax() : 0;
+        this.min = fields.contains( MIN ) ? snapshot.getMin() : 0;
+        this.mean = fields.contains( MEAN ) ? snapshot.getMean() : 0;
+        this.stdDev = fields.contains( STDDEV ) ? snapshot.getStdDev() : 0;
+        this.p50 = fields.contains( P50 ) ? snapshot.getMedian() : 0;
+        this.p75 = fields.contains( P75 ) ? snapshot.get75thPercentile() : 0;
+        this.p95 = fields.contains( P95 ) ? snapshot.get95thPercentile() : 0;
+        this.p98 = fields.contains( P98 ) ? snapshot.get98thPercentile() : 0;
+        this.p99 = fields.contains( P99 ) ? snapshot.get99thPercentile() : 0;
+        this.p999 = fields.contains( P999 ) ? snapshot.get999thPercentile() : 0;
+    }
+
+}
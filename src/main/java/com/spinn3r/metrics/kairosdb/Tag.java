@@ -1,17 +1,144 @@
 package com.spinn3r.metrics.kairosdb;
 
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
 /**
  * A tag with a name and value
+ *
+ * Tags are immutable so their validity, mangled form and name=value string
+ * are computed once.  {@link #of(String, String)} returns interned tags, so
+ * the tags used over and over on hot paths cost a hash lookup rather than an
+ * allocation and re-validation.  Tags are only interned once they've been
+ * used in a metric name (after {@link CardinalityLimiter} has had its say),
+ * so values over the limits never take up room in the pool, and the pool
+ * keeps roughly the most recently used tags.
  */
 public class Tag implements Comparable<Tag> {
 
+    /**
+     * The most tags we intern, so tagging with unbounded values can't grow
+     * the pool forever.
+     */
+    static final int MAX_INTERNED = 64 * 1024;
+
+    // the interned tags in two generations, each holding up to half of them.
+    // When the current generation is full it becomes the previous one and the
+    // old previous one is dropped.  Tags found in the previous generation are
+    // moved to the current one, so the tags still in use survive.
+    private static volatile Generation current = new Generation();
+
+    private static volatile Generation previous = new Generation();
+
+    // the valid characters below 128, indexed by character.
+    private static final boolean[] VALID_CHARS = new boolean[ 128 ];
+
+    static {
+
+        // Metric names, tag names and values are case sensitive and can only
+        // contain the following characters: alphanumeric characters, period ".",
+        // slash "/", dash "-", and underscore "_".
+
+        for (char c = 'a'; c <= 'z'; c++) {
+            VALID_CHARS[ c ] = true;
+        }
+
+        for (char c = 'A'; c <= 'Z'; c++) {
+            VALID_CHARS[ c ] = true;
+        }
+
+        for (char c = '0'; c <= '9'; c++) {
+            VALID_CHARS[ c ] = true;
+        }
+
+        for (char c : new char[] { '.', '/', '-', '_' }) {
+            VALID_CHARS[ c ] = true;
+        }
+
+    }
+
     private final String name;
 
     private final String value;
 
+    private final boolean valid;
+
+    // computed the first time they're needed.  Racing threads compute the
+    // same thing so they don't need to be volatile.
+    private String string;
+
+    private Tag mangled;
+
     public Tag(String name, String value) {
         this.name = name;
         this.value = value;
+        this.valid = name != null && value != null && isValid( name ) && isValid( value );
+    }
+
+    /**
+     * Get the tag with the given name and value, reusing an interned instance
+     * where we can.
+     */
+    public static Tag of( String name, String value ) {
+
+        if ( name == null || value == null ) {
+            return new Tag( name, value );
+        }
+
+        Tag tag = current.get( name, value );
+
+        if ( tag != null ) {
+            return tag;
+        }
+
+        tag = previous.get( name, value );
+
+        if ( tag != null ) {
+            return intern( tag );
+        }
+
+        return new Tag( name, value );
+
+    }
+
+    /**
+     * Add the given tag to the pool, if it isn't there already, for
+     * {@link #of(String, String)} to return.
+     *
+     * @return the interned instance.
+     */
+    static Tag intern( Tag tag ) {
+
+        if ( tag.name == null || tag.value == null ) {
+            return tag;
+        }
+
+        Generation generation = current;
+
+        Tag existing = generation.get( tag.name, tag.value );
+
+        if ( existing != null ) {
+            return existing;
+        }
+
+        if ( generation.size.get() >= MAX_INTERNED / 2 ) {
+
+            synchronized ( Tag.class ) {
+
+                if ( current == generation ) {
+                    previous = generation;
+                    current = new Generation();
+                }
+
+            }
+
+            generation = current;
+
+        }
+
+        return generation.putIfAbsent( tag );
+
     }
 
     public String getName() {
@@ -24,7 +151,16 @@ public class Tag implements Comparable<Tag> {
 
     @Override
     public String toString() {
-        return name + "=" + value;
+
+        String result = string;
+
+        if ( result == null ) {
+            result = name + "=" + value;
+            string = result;
+        }
+
+        return result;
+
     }
 
     @Override
@@ -58,12 +194,27 @@ public class Tag implements Comparable<Tag> {
      * @return
      */
     public boolean isValid() {
+        return valid;
+    }
 
-        if ( name == null || value == null ) {
-            return false;
+    /**
+     * This tag with its name and value mangled (see {@link #mangle(String)}),
+     * or this tag if it's already valid.
+     */
+    public Tag mangled() {
+
+        if ( valid ) {
+            return this;
+        }
+
+        Tag result = mangled;
+
+        if ( result == null ) {
+            result = new Tag( mangle( name ), mangle( value ) );
+            mangled = result;
         }
 
-        return isValid( name ) && isValid( value );
+        return result;
 
     }
 
@@ -85,7 +236,11 @@ public class Tag implements Comparable<Tag> {
             return "_";
         }
 
-        StringBuilder buff = new StringBuilder();
+        if ( isValid( data ) ) {
+            return data;
+        }
+
+        StringBuilder buff = new StringBuilder( data.length() );
 
         for (int i = 0; i < data.length(); i++) {
             char c  = data.charAt( i );
@@ -119,31 +274,46 @@ public class Tag implements Comparable<Tag> {
 
     protected static boolean isValid( char c ) {
 
-        // Metric names, tag names and values are case sensitive and can only
-        // contain the following characters: alphanumeric characters, period ".",
-        // slash "/", dash "-", and underscore "_".
+        if ( c < VALID_CHARS.length )
+            return VALID_CHARS[ c ];
+
+        // other scripts' digits have always been accepted.
+        return Character.isDigit( c );
+
+    }
+
+    /**
+     * Interned tags by name, then value.
+     */
+    private static final class Generation {
+
+        private final ConcurrentMap<String,ConcurrentMap<String,Tag>> tags = new ConcurrentHashMap<>();
 
-        if ( c >= 'a' && c <= 'z' )
-            return true;
+        private final AtomicInteger size = new AtomicInteger();
 
-        if ( c >= 'A' && c <= 'Z' )
-            return true;
+        Tag get( String name, String value ) {
 
-        if ( Character.isDigit( c ) )
-            return true;
+            ConcurrentMap<String,Tag> values = tags.get( name );
+
+            return values != null ? values.get( value ) : null;
 
-        switch( c ) {
-            case '.':
-                return true;
-            case '/':
-                return true;
-            case '-':
-                return true;
-            case '_':
-                return true;
         }
 
-        return false;
+        Tag putIfAbsent( Tag tag ) {
+
+            ConcurrentMap<String,Tag> values = tags.computeIfAbsent( tag.name, key -> new ConcurrentHashMap<>() );
+
+            Tag existing = values.putIfAbsent( tag.value, tag );
+
+            if ( existing != null ) {
+                return existing;
+            }
+
+            size.incrementAndGet();
+
+            return tag;
+
+        }
 
     }
 
@@ -6,6 +6,8 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.*;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
 /**
  * Handles working with and building tagged metrics and interacting with the
@@ -22,6 +24,11 @@ import java.util.*;
  * We support various modes including mangling the invalid characters, skipping
  * duplicate, tags, etc.
  *
+ * Given a {@link CardinalityLimiter}, tag values over its limits are replaced
+ * with {@link CardinalityLimiter#OVERFLOW} and counted in the
+ * {@link #OVERFLOW_METRIC} counter, tagged with the metric name.  Metrics
+ * removed from the registry no longer count towards the limits.
+ *
  */
 public class TaggedMetrics {
 
@@ -33,31 +40,89 @@ public class TaggedMetrics {
 
     private final DuplicateTagPolicy duplicateTagPolicy;
 
+    /**
+     * The counter of tag values replaced because they were over the limits of
+     * the {@link CardinalityLimiter}.
+     */
+    public static final String OVERFLOW_METRIC = MetricRegistry.name( TaggedMetrics.class, "tag_overflow" );
+
+    private final CardinalityLimiter cardinalityLimiter;
+
     public TaggedMetrics(MetricRegistry metricRegistry,
                          InvalidTagPolicy invalidTagPolicy,
                          DuplicateTagPolicy duplicateTagPolicy) {
 
+        this( metricRegistry, invalidTagPolicy, duplicateTagPolicy, null );
+
+    }
+
+    public TaggedMetrics(MetricRegistry metricRegistry,
+                         InvalidTagPolicy invalidTagPolicy,
+                         DuplicateTagPolicy duplicateTagPolicy,
+                         CardinalityLimiter cardinalityLimiter) {
+
         this.metricRegistry = metricRegistry;
         this.invalidTagPolicy = invalidTagPolicy;
         this.duplicateTagPolicy = duplicateTagPolicy;
+        this.cardinalityLimiter = cardinalityLimiter;
+
+        if ( cardinalityLimiter != null ) {
+            metricRegistry.addListener( new LimitTracker() );
+        }
 
     }
 
     public String name( String baseName, String name0, Tag... tags ) {
-        return createMetricWithTags( MetricRegistry.name( baseName, name0 ), join( tags ) );
+        return tagged( MetricRegistry.name( baseName, name0 ), tags );
     }
 
 
     public String name( Class<?> clazz, String name0, Tag... tags ) {
-        return createMetricWithTags( MetricRegistry.name( clazz, name0 ), join( tags ) );
+        return tagged( MetricRegistry.name( clazz, name0 ), tags );
     }
 
     public String name( Class<?> clazz, String name0, String name1, Tag... tags ) {
-        return createMetricWithTags( MetricRegistry.name( clazz, name0, name1 ), join( tags ) );
+        return tagged( MetricRegistry.name( clazz, name0, name1 ), tags );
     }
 
     public String name( Class<?> clazz, String name0, String name1, String name2, Tag... tags ) {
-        return createMetricWithTags( MetricRegistry.name( clazz, name0, name1, name2 ), join( tags ) );
+        return tagged( MetricRegistry.name( clazz, name0, name1, name2 ), tags );
+    }
+
+    /**
+     * Add the tags to the name, applying the tag policies and cardinality
+     * limits.
+     */
+    private String tagged( String namePart, Tag... tags ) {
+
+        Map<String,Tag> tagMap = normalize( tags );
+
+        if ( cardinalityLimiter != null ) {
+
+            Map<String,Tag> limited = cardinalityLimiter.limit( namePart, tagMap );
+
+            if ( limited != null ) {
+                overflow( namePart );
+                tagMap = limited;
+            }
+
+        }
+
+        // only now that they've passed the limits, so that unbounded values
+        // don't fill the pool.
+        for (Map.Entry<String,Tag> entry : tagMap.entrySet()) {
+            entry.setValue( Tag.intern( entry.getValue() ) );
+        }
+
+        return createMetricWithTags( namePart, format( tagMap.values() ) );
+
+    }
+
+    private void overflow( String namePart ) {
+
+        // looked up every time as it may be expired if it's idle.
+        metricRegistry.counter( createMetricWithTags( OVERFLOW_METRIC, tag( "metric", Tag.mangle( namePart ) ).toString() ) ).inc();
+
     }
 
     public Meter meter( Class<?> clazz, String name0, Tag... tags ) {
@@ -128,6 +193,105 @@ public class TaggedMetrics {
         return metricRegistry.timer( name );
     }
 
+    public Timer intervalTimer( Class<?> clazz, String name0, Tag... tags ) {
+        return intervalTimer( name( clazz, name0, tags ) );
+    }
+
+    public Timer intervalTimer( Class<?> clazz, String name0, String name1, Tag... tags ) {
+        return intervalTimer( name( clazz, name0, name1, tags ) );
+    }
+
+    public Timer intervalTimer( Class<?> clazz, String name0, String name1, String name2, Tag... tags ) {
+        return intervalTimer( name( clazz, name0, name1, name2, tags ) );
+    }
+
+    /**
+     * Get or create a timer backed by an {@link HdrReservoir}: recording is
+     * lock-free, the memory used is fixed, and each report covers the
+     * durations recorded since the previous one.
+     */
+    public Timer intervalTimer( String name ) {
+        return getOrAdd( name, Timer.class, () -> new Timer( HdrReservoir.forTimer() ) );
+    }
+
+    public Histogram intervalHistogram( Class<?> clazz, String name0, Tag... tags ) {
+        return intervalHistogram( name( clazz, name0, tags ) );
+    }
+
+    public Histogram intervalHistogram( Class<?> clazz, String name0, String name1, Tag... tags ) {
+        return intervalHistogram( name( clazz, name0, name1, tags ) );
+    }
+
+    public Histogram intervalHistogram( Class<?> clazz, String name0, String name1, String name2, Tag... tags ) {
+        return intervalHistogram( name( clazz, name0, name1, name2, tags ) );
+    }
+
+    /**
+     * Get or create a histogram backed by an {@link HdrReservoir} (see
+     * {@link #intervalTimer(String)}), for values from 0 to
+     * {@link HdrReservoir#HISTOGRAM_HIGHEST_TRACKABLE_VALUE}.
+     */
+    public Histogram intervalHistogram( String name ) {
+        return getOrAdd( name, Histogram.class, () -> new Histogram( HdrReservoir.forHistogram() ) );
+    }
+
+    /**
+     * Get the metric with the given name, registering a new one if there
+     * isn't one yet.
+     */
+    private <T extends Metric> T getOrAdd( String name, Class<T> type, Supplier<T> supplier ) {
+
+        // a view of the registry's map so this doesn't copy anything.
+        Metric metric = metricRegistry.getMetrics().get( name );
+
+        if ( metric == null ) {
+
+            try {
+                return metricRegistry.register( name, supplier.get() );
+            } catch ( IllegalArgumentException e ) {
+                // someone else registered it first.
+                metric = metricRegistry.getMetrics().get( name );
+            }
+
+        }
+
+        if ( type.isInstance( metric ) ) {
+            return type.cast( metric );
+        }
+
+        throw new IllegalArgumentException( name + " is already used for a different type of metric" );
+
+    }
+
+    /**
+     * A template for counters with the given name and tag names.
+     *
+     * @see MetricTemplate
+     */
+    public MetricTemplate<Counter> counterTemplate( Class<?> clazz, String name0, String... tagNames ) {
+        return template( MetricRegistry.name( clazz, name0 ), this::counter, tagNames );
+    }
+
+    public MetricTemplate<Meter> meterTemplate( Class<?> clazz, String name0, String... tagNames ) {
+        return template( MetricRegistry.name( clazz, name0 ), this::meter, tagNames );
+    }
+
+    public MetricTemplate<Histogram> histogramTemplate( Class<?> clazz, String name0, String... tagNames ) {
+        return template( MetricRegistry.name( clazz, name0 ), this::histogram, tagNames );
+    }
+
+    public MetricTemplate<Timer> timerTemplate( Class<?> clazz, String name0, String... tagNames ) {
+        return template( MetricRegistry.name( clazz, name0 ), this::timer, tagNames );
+    }
+
+    /**
+     * A template for metrics with the given name and tag names, created by
+     * the given factory (for example {@code taggedMetrics::intervalTimer}).
+     */
+    public <T extends Metric> MetricTemplate<T> template( String name, Function<String,T> factory, String... tagNames ) {
+        return new MetricTemplate<>( this, name, factory, tagNames );
+    }
+
     public TimerRunner timer( Runnable runnable ) {
         return new TimerRunner( this, runnable );
     }
@@ -190,14 +354,23 @@ public class TaggedMetrics {
      * @return
      */
     public static Tag tag( String name, String value ) {
-        return new Tag( name, value );
+        return Tag.of( name, value );
     }
 
     public static Tag tag( String name, Object value ) {
-        return new Tag( name, value.toString() );
+        return Tag.of( name, value.toString() );
     }
 
     protected String join( Tag... tags ) throws InvalidTagException {
+        return format( normalize( tags ).values() );
+    }
+
+    /**
+     * Apply the tag policies.
+     *
+     * @return the tags to use, sorted by name.
+     */
+    private Map<String,Tag> normalize( Tag... tags ) throws InvalidTagException {
 
         Map<String,Tag> tagMap = new TreeMap<>();
 
@@ -212,8 +385,7 @@ public class TaggedMetrics {
                 if ( invalidTagPolicy == InvalidTagPolicy.MANGLE ||
                      invalidTagPolicy == InvalidTagPolicy.MANGLE_AND_LOG ) {
 
-                    tag = new Tag( Tag.mangle( tag.getName() ),
-                                   Tag.mangle( tag.getValue() ) );
+                    tag = tag.mangled();
 
                 } else {
                     // we can't handle this tag as it's invalid.
@@ -238,7 +410,7 @@ public class TaggedMetrics {
 
         }
 
-        return format( tagMap.values() );
+        return tagMap;
 
     }
 
@@ -400,4 +572,83 @@ public class TaggedMetrics {
 
     }
 
+    /**
+     * Tells the {@link CardinalityLimiter} when metrics are added to and
+     * removed from the registry, so that only the tag values of registered
+     * metrics count towards its limits.
+     */
+    private class LimitTracker extends MetricRegistryListener.Base {
+
+        @Override
+        public void onGaugeAdded( String name, Gauge<?> gauge ) {
+            track( name );
+        }
+
+        @Override
+        public void onGaugeRemoved( String name ) {
+            release( name );
+        }
+
+        @Override
+        public void onCounterAdded( String name, Counter counter ) {
+            track( name );
+        }
+
+        @Override
+        public void onCounterRemoved( String name ) {
+            release( name );
+        }
+
+        @Override
+        public void onHistogramAdded( String name, Histogram histogram ) {
+            track( name );
+        }
+
+        @Override
+        public void onHistogramRemoved( String name ) {
+            release( name );
+        }
+
+        @Override
+        public void onMeterAdded( String name, Meter meter ) {
+            track( name );
+        }
+
+        @Override
+        public void onMeterRemoved( String name ) {
+            release( name );
+        }
+
+        @Override
+        public void onTimerAdded( String name, Timer timer ) {
+            track( name );
+        }
+
+        @Override
+        public void onTimerRemoved( String name ) {
+            release( name );
+        }
+
+        private void track( String name ) {
+
+            int separator = name.indexOf( '?' );
+
+            if ( separator >= 0 ) {
+                cardinalityLimiter.add( name.substring( 0, separator ), name.substring( separator + 1 ) );
+            }
+
+        }
+
+        private void release( String name ) {
+
+            int separator = name.indexOf( '?' );
+
+            if ( separator >= 0 ) {
+                cardinalityLimiter.remove( name.substring( 0, separator ), name.substring( separator + 1 ) );
+            }
+
+        }
+
+    }
+
 }
@@ -0,0 +1,103 @@
+package com.spinn3r.metrics.kairosdb;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+
+import static org.junit.Assert.*;
+
+public class DatapointBufferTest {
+
+    private final SeriesKey key = new SeriesKey( "foo", new HashMap<>() );
+
+    @Test
+    public void testDropOldest() throws Exception {
+
+        DatapointBuffer buffer = new DatapointBuffer( 2, OverflowPolicy.DROP_OLDEST );
+
+        assertTrue( buffer.add( key, 1, 1L ) );
+        assertTrue( buffer.add( key, 2, 2.5 ) );
+        assertTrue( buffer.add( key, 3, 3L ) );
+
+        assertEquals( 2, buffer.size() );
+        assertEquals( 1, buffer.getDropped() );
+
+        assertEquals( 2, buffer.timestamp( 0 ) );
+        assertTrue( buffer.isDouble( 0 ) );
+        assertEquals( 2.5, buffer.doubleValue( 0 ), 0.0 );
+
+        assertEquals( 3, buffer.timestamp( 1 ) );
+        assertFalse( buffer.isDouble( 1 ) );
+        assertEquals( 3L, buffer.longValue( 1 ) );
+
+    }
+
+    @Test
+    public void testDropNewest() throws Exception {
+
+        DatapointBuffer buffer = new DatapointBuffer( 2, OverflowPolicy.DROP_NEWEST );
+
+        assertTrue( buffer.add( key, 1, 1L ) );
+        assertTrue( buffer.add( key, 2, 2L ) );
+        assertFalse( buffer.add( key, 3, 3L ) );
+
+        assertEquals( 1, buffer.getDropped() );
+        assertEquals( 1, buffer.timestamp( 0 ) );
+        assertEquals( 2, buffer.timestamp( 1 ) );
+
+    }
+
+    @Test
+    public void testDrainTo() throws Exception {
+
+        DatapointBuffer buffer = new DatapointBuffer( 4, OverflowPolicy.DROP_OLDEST );
+        DatapointBuffer batch = new DatapointBuffer( 2, OverflowPolicy.DROP_NEWEST );
+
+        for (int i = 0; i < 6; i++) {
+            buffer.add( key, i, (long)i );
+        }
+
+        assertEquals( 2, buffer.drainTo( batch, 2 ) );
+        assertEquals( 2, buffer.size() );
+
+        assertEquals( 2, batch.timestamp( 0 ) );
+        assertEquals( 3, batch.timestamp( 1 ) );
+
+        batch.clear();
+
+        assertEquals( 2, buffer.drainTo( batch, 2 ) );
+        assertEquals( 0, buffer.drainTo( batch, 2 ) );
+
+        assertEquals( 4, batch.timestamp( 0 ) );
+        assertEquals( 5, batch.timestamp( 1 ) );
+
+    }
+
+    @Test
+    public void testGrowsUpToCapacity() throws Exception {
+
+        DatapointBuffer buffer = new DatapointBuffer( 100, OverflowPolicy.DROP_OLDEST );
+
+        // wrap the ring before it has to grow.
+        for (int i = 0; i < 10; i++) {
+            buffer.add( key, i, (long)i );
+        }
+
+        buffer.remove( 5 );
+
+        for (int i = 10; i < 110; i++) {
+            buffer.add( key, i, (long)i );
+        }
+
+        assertEquals( 100, buffer.capacity() );
+        assertEquals( 100, buffer.size() );
+        assertEquals( 5, buffer.getDropped() );
+
+        for (int i = 0; i < 100; i++) {
+            assertEquals( i + 10, buffer.timestamp( i ) );
+            assertEquals( i + 10, buffer.longValue( i ) );
+        }
+
+    }
+
+}
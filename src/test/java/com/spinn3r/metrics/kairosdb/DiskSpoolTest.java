@@ -0,0 +1,166 @@
+package com.spinn3r.metrics.kairosdb;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+public class DiskSpoolTest {
+
+    private static final long MAX_BYTES = DiskSpool.MIN_SEGMENT_SIZE * 2;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void replaysInOrder() throws Exception {
+
+        DiskSpool spool = new DiskSpool( folder.getRoot(), MAX_BYTES );
+
+        append( spool, "put a 1 1\n" );
+        append( spool, "put b 2 2\n" );
+        append( spool, "put c 3 3\n" );
+
+        ByteBuffer target = ByteBuffer.allocate( 1024 );
+
+        assertEquals( 2, spool.read( target, 2 ) );
+        assertEquals( "put a 1 1\nput b 2 2\n", string( target ) );
+
+        // not committed so we read them again.
+        target.clear();
+        assertEquals( 3, spool.read( target, 10 ) );
+        spool.commit();
+
+        assertEquals( "put a 1 1\nput b 2 2\nput c 3 3\n", string( target ) );
+        assertTrue( spool.isEmpty() );
+
+    }
+
+    @Test
+    public void onlyReadsWholeLinesThatFit() throws Exception {
+
+        DiskSpool spool = new DiskSpool( folder.getRoot(), MAX_BYTES );
+
+        append( spool, "put a 1 1\n" );
+        append( spool, "put b 2 2\n" );
+
+        ByteBuffer target = ByteBuffer.allocate( 15 );
+
+        assertEquals( 1, spool.read( target, 10 ) );
+        spool.commit();
+
+        target.clear();
+        assertEquals( 1, spool.read( target, 10 ) );
+        assertEquals( "put b 2 2\n", string( target ) );
+
+    }
+
+    @Test
+    public void recoversAfterRestart() throws Exception {
+
+        DiskSpool spool = new DiskSpool( folder.getRoot(), MAX_BYTES );
+
+        append( spool, "put a 1 1\n" );
+        append( spool, "put b 2 2\n" );
+
+        ByteBuffer target = ByteBuffer.allocate( 1024 );
+        spool.read( target, 1 );
+        spool.commit();
+        spool.close();
+
+        spool = new DiskSpool( folder.getRoot(), MAX_BYTES );
+
+        target.clear();
+        assertEquals( 1, spool.read( target, 10 ) );
+        assertEquals( "put b 2 2\n", string( target ) );
+
+    }
+
+    @Test
+    public void dropsTheOldestSegmentWhenFull() throws Exception {
+
+        DiskSpool spool = new DiskSpool( folder.getRoot(), MAX_BYTES );
+
+        // fill three segments' worth so the first is dropped.
+        int count = DiskSpool.MIN_SEGMENT_SIZE * 3 / 16;
+
+        for (int i = 0; i < count; i++) {
+            append( spool, String.format( "put m %09d\n", i ) );
+        }
+
+        assertTrue( spool.size() <= MAX_BYTES );
+        assertTrue( ((Counter) spool.getMetrics().getMetrics().get( "spool_dropped_bytes" )).getCount() > 0 );
+
+        ByteBuffer target = ByteBuffer.allocate( 16 );
+        assertEquals( 1, spool.read( target, 1 ) );
+
+        // the oldest remaining line is a whole line, just not the first.
+        assertTrue( string( target ).matches( "put m \\d{9}\n" ) );
+        assertNotEquals( "put m 000000000\n", string( target ) );
+
+    }
+
+    @Test
+    public void tracksTheBytesWaitingToBeReplayed() throws Exception {
+
+        DiskSpool spool = new DiskSpool( folder.getRoot(), MAX_BYTES );
+
+        append( spool, "put a 1 1\n" );
+        append( spool, "put b 2 2\n" );
+
+        assertEquals( 20L, spool.size() );
+        assertEquals( 20L, ((Gauge<?>) spool.getMetrics().getMetrics().get( "spool_bytes" )).getValue() );
+
+        ByteBuffer target = ByteBuffer.allocate( 1024 );
+        spool.read( target, 1 );
+
+        // still there until it's committed.
+        assertEquals( 20L, spool.size() );
+
+        spool.commit();
+        assertEquals( 10L, spool.size() );
+
+        spool.close();
+        assertEquals( 0L, spool.size() );
+
+        spool.open();
+        assertEquals( 10L, spool.size() );
+
+        // filling the spool drops whole segments, and their bytes.
+        int count = DiskSpool.MIN_SEGMENT_SIZE * 3 / 16;
+
+        for (int i = 0; i < count; i++) {
+            append( spool, String.format( "put m %09d\n", i ) );
+        }
+
+        long size = spool.size();
+        long unread = 0;
+
+        target = ByteBuffer.allocate( 16 );
+
+        while ( spool.read( target, 1 ) > 0 ) {
+            unread += target.position();
+            spool.commit();
+            target.clear();
+        }
+
+        assertEquals( size, unread );
+        assertEquals( 0L, spool.size() );
+
+    }
+
+    private static void append( DiskSpool spool, String line ) throws Exception {
+        spool.append( ByteBuffer.wrap( line.getBytes( StandardCharsets.UTF_8 ) ) );
+    }
+
+    private static String string( ByteBuffer buffer ) {
+        return new String( buffer.array(), 0, buffer.position(), StandardCharsets.UTF_8 );
+    }
+
+}
@@ -0,0 +1,267 @@
+package com.spinn3r.metrics.kairosdb;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.*;
+
+public class HttpKairosDbTest {
+
+    private final List<String> requests = new CopyOnWriteArrayList<>();
+
+    private HttpServer server;
+
+    private int status = 204;
+
+    private HttpKairosDb kairosDb;
+
+    @Before
+    public void setUp() throws Exception {
+
+        server = HttpServer.create( new InetSocketAddress( InetAddress.getLoopbackAddress(), 0 ), 0 );
+
+        server.createContext( "/api/v1/datapoints", this::handle );
+        server.createContext( "/kairos/api/v1/datapoints", this::handle );
+
+        server.start();
+
+        kairosDb = new HttpKairosDb( new URL( "http", "127.0.0.1", server.getAddress().getPort(), "/" ), 3 );
+
+    }
+
+    private void handle( HttpExchange exchange ) throws IOException {
+
+        assertEquals( "POST", exchange.getRequestMethod() );
+        assertEquals( "gzip", exchange.getRequestHeaders().getFirst( "Content-Encoding" ) );
+
+        requests.add( exchange.getRequestURI().getPath() + " " + read( new GZIPInputStream( exchange.getRequestBody() ) ) );
+
+        // so the client doesn't reuse a connection the server is closing.
+        exchange.getResponseHeaders().set( "Connection", "close" );
+        exchange.sendResponseHeaders( status, -1 );
+        exchange.close();
+
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.stop( 0 );
+    }
+
+    @Test
+    public void groupsDatapointsBySeries() throws Exception {
+
+        Map<String,String> globalTags = new LinkedHashMap<>();
+        globalTags.put( "host", "test-host" );
+
+        Map<String,String> tags = new LinkedHashMap<>();
+        tags.put( "foo", "bar" );
+
+        kairosDb.setTags( globalTags );
+        kairosDb.connect();
+
+        kairosDb.send( "requests", "1", 100, tags );
+        kairosDb.send( "requests", "2", 200, tags );
+        kairosDb.send( "latency", "1.5", 100, tags );
+
+        kairosDb.send( "latency", "NaN", 200, tags );
+
+        kairosDb.close();
+
+        assertEquals( 1, requests.size() );
+
+        assertEquals( "/api/v1/datapoints [{\"name\":\"requests\",\"tags\":{\"host\":\"test-host\",\"foo\":\"bar\"},\"datapoints\":[[100,1],[200,2]]}," +
+                      "{\"name\":\"latency\",\"tags\":{\"host\":\"test-host\",\"foo\":\"bar\"},\"datapoints\":[[100,1.5]]}]",
+                      requests.get( 0 ) );
+
+        assertEquals( 1, kairosDb.getWrites() );
+
+    }
+
+    @Test
+    public void dropsValuesWhichArentNumbers() throws Exception {
+
+        kairosDb.connect();
+
+        kairosDb.send( "status", "ok", 100, new LinkedHashMap<>() );
+        kairosDb.send( "status", "1],[200,2", 100, new LinkedHashMap<>() );
+        kairosDb.send( "status", "Infinity", 100, new LinkedHashMap<>() );
+        kairosDb.send( "status", "01", 100, new LinkedHashMap<>() );
+        kairosDb.send( "status", "-1.5E-7", 200, new LinkedHashMap<>() );
+
+        kairosDb.close();
+
+        assertEquals( "/api/v1/datapoints [{\"name\":\"status\",\"tags\":{},\"datapoints\":[[200,-1.5E-7]]}]", requests.get( 0 ) );
+
+        assertEquals( 4, ((Counter) kairosDb.getMetrics().getMetrics().get( "invalid_values" )).getCount() );
+
+    }
+
+    @Test
+    public void reportsOnlyNumericGauges() throws Exception {
+
+        MetricRegistry registry = new MetricRegistry();
+
+        MockClock clock = new MockClock();
+        clock.setTime( 1000 );
+
+        KairosDbReporter reporter = KairosDbReporter.forRegistry( registry )
+                                                    .withClock( clock )
+                                                    .build( kairosDb );
+
+        registry.register( "status", (Gauge<String>) () -> "\"ok\"]" );
+        registry.register( "load", (Gauge<Double>) () -> 1.5 );
+
+        reporter.report();
+
+        assertEquals( 1, requests.size() );
+        assertEquals( "/api/v1/datapoints [{\"name\":\"load\",\"tags\":{},\"datapoints\":[[1000,1.5]]}]", requests.get( 0 ) );
+
+    }
+
+    @Test
+    public void recognisesJsonNumbers() throws Exception {
+
+        for (String value : new String[] { "0", "-0", "12", "-3.25", "0.001", "1.0E7", "2e-5", "4.9E-324", "9223372036854775807" }) {
+            assertTrue( value, HttpKairosDb.isNumber( value ) );
+        }
+
+        for (String value : new String[] { "", "-", "NaN", "-Infinity", "1.", ".5", "1e", "1e+", "0x10", "1 ", "\"1\"" }) {
+            assertFalse( value, HttpKairosDb.isNumber( value ) );
+        }
+
+    }
+
+    @Test
+    public void postsWhenTheBatchIsFull() throws Exception {
+
+        kairosDb.connect();
+
+        for (int i = 0; i < 7; i++) {
+            kairosDb.send( "requests", Integer.toString( i ), i, new LinkedHashMap<>() );
+        }
+
+        assertEquals( 2, requests.size() );
+
+        kairosDb.flush();
+
+        assertEquals( 3, requests.size() );
+        assertEquals( "/api/v1/datapoints [{\"name\":\"requests\",\"tags\":{},\"datapoints\":[[6,6]]}]", requests.get( 2 ) );
+
+    }
+
+    @Test(expected = IOException.class)
+    public void failsOnServerErrors() throws Exception {
+
+        status = 400;
+
+        kairosDb.connect();
+        kairosDb.send( "requests", "1", 100, new LinkedHashMap<>() );
+        kairosDb.flush();
+
+    }
+
+    @Test
+    public void keepsTheBatchWhenPostingFails() throws Exception {
+
+        status = 503;
+
+        kairosDb.connect();
+        kairosDb.send( "requests", "1", 100, new LinkedHashMap<>() );
+
+        try {
+            kairosDb.flush();
+            fail( "Expected an IOException" );
+        } catch ( IOException e ) {
+            // expected
+        }
+
+        status = 204;
+
+        kairosDb.send( "requests", "2", 200, new LinkedHashMap<>() );
+        kairosDb.flush();
+
+        assertEquals( 2, requests.size() );
+        assertEquals( "/api/v1/datapoints [{\"name\":\"requests\",\"tags\":{},\"datapoints\":[[100,1],[200,2]]}]", requests.get( 1 ) );
+
+        // and nothing is left over.
+        kairosDb.flush();
+        assertEquals( 2, requests.size() );
+
+    }
+
+    @Test
+    public void dropsBatchesTheServerRejects() throws Exception {
+
+        status = 400;
+
+        kairosDb.connect();
+        kairosDb.send( "requests", "1", 100, new LinkedHashMap<>() );
+
+        try {
+            kairosDb.flush();
+            fail( "Expected an IOException" );
+        } catch ( IOException e ) {
+            // expected
+        }
+
+        kairosDb.flush();
+
+        assertEquals( 1, requests.size() );
+
+    }
+
+    @Test
+    public void keepsTheContextPath() throws Exception {
+
+        for (String path : new String[] { "/kairos", "/kairos/" }) {
+
+            requests.clear();
+
+            HttpKairosDb proxied = new HttpKairosDb( new URL( "http", "127.0.0.1", server.getAddress().getPort(), path ) );
+
+            proxied.connect();
+            proxied.send( "requests", "1", 100, new LinkedHashMap<>() );
+            proxied.close();
+
+            assertEquals( 1, requests.size() );
+            assertTrue( requests.get( 0 ), requests.get( 0 ).startsWith( "/kairos/api/v1/datapoints [" ) );
+
+        }
+
+    }
+
+    private static String read( InputStream in ) throws IOException {
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        byte[] data = new byte[ 4096 ];
+        int count;
+
+        while ( ( count = in.read( data ) ) != -1 ) {
+            out.write( data, 0, count );
+        }
+
+        return out.toString( "UTF-8" );
+
+    }
+
+}
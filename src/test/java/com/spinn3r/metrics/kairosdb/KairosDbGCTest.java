@@ -1,7 +1,7 @@
 package com.spinn3r.metrics.kairosdb;
 
-import com.codahale.metrics.Clock;
 import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
 import com.codahale.metrics.MetricRegistry;
 import org.junit.Before;
 import org.junit.Test;
@@ -11,8 +11,11 @@ import java.io.ByteArrayOutputStream;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 import static com.spinn3r.metrics.kairosdb.TaggedMetrics.*;
 import static org.junit.Assert.*;
@@ -86,6 +89,8 @@ public class KairosDbGCTest {
 
         assertEquals( 1, reporter.gcMetricIndex.size() );
 
+        assertEquals( 1, reporter.seriesCache.size() );
+
         clock.setTime( 10 * 60 * 1000 );
 
         assertTrue( clock.getTime() > 0 );
@@ -94,26 +99,104 @@ public class KairosDbGCTest {
 
         assertEquals( 0, reporter.gcMetricIndex.size() );
 
+        // the parsed name must be evicted once the counter has been collected.
+        assertEquals( 0, reporter.seriesCache.size() );
+
     }
 
-}
+    @Test
+    public void removesOnlyExpiredCounters() throws Exception {
 
-class MockClock extends Clock {
+        MockClock clock = new MockClock();
+        MetricRegistry metricRegistry = new MetricRegistry();
 
-    private long time = 0;
+        GCMetricIndex index = new GCMetricIndex( metricRegistry, clock, true );
 
-    @Override
-    public long getTick() {
-        throw new RuntimeException( "not implemented" );
-    }
+        for (int i = 0; i < 1000; i++) {
+            metricRegistry.counter( "counter" + i );
+            index.touch( "counter" + i );
+        }
+
+        // never touched so never collected.
+        metricRegistry.counter( "untracked" );
+
+        clock.setTime( 4 * 60 * 1000 );
+
+        // touched again, and still in use.
+        index.touch( "counter0" );
+        metricRegistry.counter( "counter1" ).inc();
+
+        index.gc();
+        assertEquals( 1000, index.size() );
+
+        clock.setTime( 6 * 60 * 1000 );
+        index.gc();
+
+        assertEquals( 2, index.size() );
+        assertNotNull( metricRegistry.getCounters().get( "counter0" ) );
+        assertNotNull( metricRegistry.getCounters().get( "counter1" ) );
+        assertNull( metricRegistry.getCounters().get( "counter2" ) );
+        assertNotNull( metricRegistry.getCounters().get( "untracked" ) );
+        assertEquals( 3, metricRegistry.getCounters().size() );
+
+        // counter1 is given another interval once it's reset.
+        metricRegistry.counter( "counter1" ).dec();
+
+        clock.setTime( 10 * 60 * 1000 );
+        index.gc();
+        assertEquals( 1, index.size() );
+
+        clock.setTime( 12 * 60 * 1000 );
+        index.gc();
+
+        assertEquals( 0, index.size() );
+        assertEquals( 1, metricRegistry.getCounters().size() );
 
-    @Override
-    public long getTime() {
-        return time;
     }
 
-    public void setTime(long time) {
-        this.time = time;
+    @Test
+    public void expiresIdleMetrics() throws Exception {
+
+        MockClock clock = new MockClock();
+
+        MetricRegistry metricRegistry = new MetricRegistry();
+
+        KairosDbReporter reporter
+            = KairosDbReporter.forRegistry( metricRegistry )
+              .withClock( clock )
+              .withExpiration( ExpirationPolicy.EXPIRE, 1, TimeUnit.MINUTES )
+              .build( kairosDb )
+              ;
+
+        metricRegistry.timer( "idle.timer" ).update( 1, TimeUnit.MILLISECONDS );
+        metricRegistry.meter( "idle.meter" ).mark();
+        metricRegistry.histogram( "idle.histogram" ).update( 1 );
+        metricRegistry.counter( "idle.counter" ).inc();
+        metricRegistry.register( "gauge", (Gauge<Integer>) () -> 1 );
+
+        reporter.report();
+
+        assertEquals( 4, reporter.gcMetricIndex.size() );
+
+        for (int minute = 1; minute <= 3; minute++) {
+
+            clock.setTime( TimeUnit.MINUTES.toMillis( minute ) );
+
+            metricRegistry.meter( "busy.meter" ).mark();
+            metricRegistry.counter( "busy.counter" ).inc();
+
+            reporter.report();
+
+        }
+
+        assertEquals( Arrays.asList( "busy.counter", "busy.meter", "gauge" ),
+                      new ArrayList<>( metricRegistry.getNames() ) );
+
+        assertEquals( 2, reporter.gcMetricIndex.size() );
+
+        // the idle series have been evicted too.
+        assertEquals( 3, reporter.seriesCache.size() );
+
     }
 
-}
\ No newline at end of file
+}
@@ -1,20 +1,34 @@
 package com.spinn3r.metrics.kairosdb;
 
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
 import com.codahale.metrics.Meter;
+import com.codahale.metrics.Metric;
 import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Snapshot;
+import com.codahale.metrics.UniformReservoir;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
 import javax.net.SocketFactory;
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
 
+import static com.spinn3r.metrics.kairosdb.MetricField.*;
 import static com.spinn3r.metrics.kairosdb.TaggedMetrics.tag;
 import static org.fest.assertions.api.Assertions.assertThat;
 import static org.fest.assertions.api.Fail.failBecauseExceptionWasNotThrown;
@@ -26,6 +40,9 @@ import static org.junit.Assert.*;
 
 public class KairosDbTest {
 
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
     private final Map<String,String> NO_TAGS = new HashMap<>();
 
     private final SocketFactory socketFactory = mock(SocketFactory.class);
@@ -127,6 +144,245 @@ public class KairosDbTest {
 
     }
 
+    @Test
+    public void globalTags() throws Exception {
+
+        Map<String,String> globalTags = new LinkedHashMap<>();
+        globalTags.put( "host", "a" );
+        globalTags.put( "dc", "east" );
+
+        Map<String,String> tags = new LinkedHashMap<>();
+        tags.put( "foo", "bar" );
+        tags.put( "dc", "west" );
+
+        kairosDb.setTags( globalTags );
+        kairosDb.connect();
+        kairosDb.send( "name", "1", 100, NO_TAGS );
+        kairosDb.send( "name", "2", 100, tags );
+
+        assertThat(output.toString())
+          .isEqualTo("put name 100 1 host=a dc=east\n" +
+                     "put name 100 2 host=a dc=west foo=bar\n");
+
+    }
+
+    @Test
+    public void sendSeries() throws Exception {
+
+        Map<String,String> globalTags = new LinkedHashMap<>();
+        globalTags.put( "host", "a" );
+
+        Map<String,String> tags = new LinkedHashMap<>();
+        tags.put( "foo", "bar" );
+
+        SeriesKey series = new SeriesKey( "name woo", tags );
+
+        kairosDb.setTags( globalTags );
+        kairosDb.connect();
+        kairosDb.send( series, "1", 100 );
+        kairosDb.send( series, "2", 200 );
+
+        globalTags = new LinkedHashMap<>();
+        globalTags.put( "host", "b" );
+        kairosDb.setTags( globalTags );
+
+        kairosDb.send( series, "3", 300 );
+
+        assertThat(output.toString())
+          .isEqualTo("put name-woo 100 1 host=a foo=bar\n" +
+                     "put name-woo 200 2 host=a foo=bar\n" +
+                     "put name-woo 300 3 host=b foo=bar\n");
+
+    }
+
+    @Test
+    public void batchesWritesUntilFlushed() throws Exception {
+
+        kairosDb.setBatchSize( 0 );
+        kairosDb.connect();
+
+        kairosDb.send("foo", "1", 100, NO_TAGS);
+        kairosDb.send("bar", "2", 100, NO_TAGS);
+
+        assertThat(output.toString()).isEqualTo("");
+
+        kairosDb.flush();
+
+        assertThat(output.toString())
+          .isEqualTo("put foo 100 1\nput bar 100 2\n");
+
+        assertEquals( 1, kairosDb.getWrites() );
+        assertEquals( output.size(), kairosDb.getBytesWritten() );
+
+    }
+
+    @Test
+    public void flushesAtBatchBoundaries() throws Exception {
+
+        kairosDb.setBatchSize( 2 );
+        kairosDb.connect();
+
+        kairosDb.send("foo", "1", 100, NO_TAGS);
+
+        assertThat(output.toString()).isEqualTo("");
+
+        kairosDb.send("bar", "2", 100, NO_TAGS);
+
+        assertThat(output.toString())
+          .isEqualTo("put foo 100 1\nput bar 100 2\n");
+
+    }
+
+    @Test
+    public void writesWhenBufferIsFull() throws Exception {
+
+        kairosDb.setBufferSize( 16 );
+        kairosDb.setBatchSize( 0 );
+        kairosDb.connect();
+
+        kairosDb.send("name", "value", 100, NO_TAGS);
+        kairosDb.flush();
+
+        assertThat(output.toString())
+          .isEqualTo("put name 100 value\n");
+
+        assertEquals( 2, kairosDb.getWrites() );
+
+    }
+
+    @Test
+    public void encodesMultiByteCharacters() throws Exception {
+
+        Map<String,String> tags = new TreeMap<>();
+        tags.put( "foo", "\u03b1\u0411" );
+
+        kairosDb.connect();
+        kairosDb.send("name", "value", 100, tags);
+
+        assertThat(new String( output.toByteArray(), "UTF-8" ))
+          .isEqualTo("put name 100 value foo=\u03b1\u0411\n");
+
+    }
+
+    @Test
+    public void reconnectsAfterWriteFailure() throws Exception {
+
+        OutputStream broken = mock(OutputStream.class);
+        doThrow(new IOException("broken pipe")).when(broken).write(any(byte[].class), anyInt(), anyInt());
+
+        when(socket.getOutputStream()).thenReturn(broken, output);
+
+        kairosDb.setPersistent( true );
+        kairosDb.ensureConnected();
+
+        try {
+            kairosDb.send("name", "value", 100, NO_TAGS);
+            failBecauseExceptionWasNotThrown(IOException.class);
+        } catch (IOException e) {
+            // expected
+        }
+
+        assertFalse( kairosDb.isConnected() );
+
+        kairosDb.ensureConnected();
+        kairosDb.send("name", "value", 100, NO_TAGS);
+
+        assertThat(output.toString())
+          .isEqualTo("put name 100 value\n");
+
+        assertEquals( 2, counter( "connects" ) );
+        assertEquals( 1, counter( "reconnects" ) );
+        assertEquals( 1, counter( "write_failures" ) );
+
+    }
+
+    @Test
+    public void backsOffAfterConnectFailure() throws Exception {
+
+        MockClock clock = new MockClock();
+
+        when(socketFactory.createSocket(any(InetAddress.class), anyInt()))
+          .thenThrow(new IOException("connection refused"))
+          .thenReturn(socket);
+
+        kairosDb.setPersistent( true );
+        kairosDb.setClock( clock );
+        kairosDb.setBackoff( 1, 10, TimeUnit.SECONDS );
+
+        for (int i = 0; i < 2; i++) {
+
+            try {
+                kairosDb.ensureConnected();
+                failBecauseExceptionWasNotThrown(IOException.class);
+            } catch (IOException e) {
+                // expected
+            }
+
+        }
+
+        // the second attempt must not have touched the network.
+        verify(socketFactory, times(1)).createSocket(any(InetAddress.class), anyInt());
+
+        clock.setTime( 1000 );
+        kairosDb.ensureConnected();
+
+        assertTrue( kairosDb.isConnected() );
+        assertEquals( 1, counter( "connect_failures" ) );
+
+    }
+
+    @Test
+    public void backoffGrowsExponentially() throws Exception {
+
+        kairosDb.setBackoff( 1, 8, TimeUnit.SECONDS );
+
+        for (int i = 0; i < 100; i++) {
+            assertBetween( 500, 1000, kairosDb.backoff( 1 ) );
+            assertBetween( 2000, 4000, kairosDb.backoff( 3 ) );
+            assertBetween( 4000, 8000, kairosDb.backoff( 10 ) );
+            assertBetween( 4000, 8000, kairosDb.backoff( 100 ) );
+        }
+
+    }
+
+    private static void assertBetween( long min, long max, long value ) {
+        assertTrue( value + " < " + min, value >= min );
+        assertTrue( value + " > " + max, value <= max );
+    }
+
+    private long counter( String name ) {
+        return ((Counter)kairosDb.getMetrics().getMetrics().get( name )).getCount();
+    }
+
+    @Test
+    public void testSendingAsynchronously() throws Exception {
+
+        MetricRegistry metricRegistry = new MetricRegistry();
+
+        KairosDbReporter reporter
+            = KairosDbReporter.forRegistry( metricRegistry )
+              .withTag( "host", "test-host" )
+              .withAsyncSender( 1000, OverflowPolicy.DROP_OLDEST )
+              .build( kairosDb )
+              ;
+
+        metricRegistry.counter( "requests" ).inc();
+
+        reporter.report();
+
+        long deadline = System.currentTimeMillis() + 10000;
+
+        while ( ! output.toString().contains( "\n" ) && System.currentTimeMillis() < deadline ) {
+            Thread.sleep( 10 );
+        }
+
+        reporter.stop();
+
+        assertTrue( output.toString().matches( "put requests.count \\d+ 1 host=test-host\n" ) );
+        assertEquals( 1, ((Counter)reporter.getSenderMetrics().getMetrics().get( "sent" )).getCount() );
+
+    }
+
     @Test
     public void testSendingToReporter() throws Exception {
 
@@ -155,4 +411,739 @@ public class KairosDbTest {
 
     }
 
+    @Test
+    public void changeOnlyReporting() throws Exception {
+
+        MetricRegistry metricRegistry = new MetricRegistry();
+
+        MockClock clock = new MockClock();
+
+        KairosDbReporter reporter
+            = KairosDbReporter.forRegistry( metricRegistry )
+              .withClock( clock )
+              .withChangeOnlyReporting( 1, TimeUnit.MINUTES )
+              .build( kairosDb )
+              ;
+
+        Counter requests = metricRegistry.counter( "requests" );
+        requests.inc();
+
+        clock.setTime( 1000 );
+        reporter.report();
+
+        // unchanged so skipped
+        clock.setTime( 2000 );
+        reporter.report();
+
+        requests.inc();
+
+        clock.setTime( 3000 );
+        reporter.report();
+
+        // unchanged but the heartbeat is due
+        clock.setTime( 63000 );
+        reporter.report();
+
+        assertThat( output.toString() )
+          .isEqualTo( "put requests.count 1000 1\n" +
+                      "put requests.count 3000 2\n" +
+                      "put requests.count 63000 2\n" );
+
+        assertEquals( 1, reporter.getSuppressedDatapoints() );
+
+    }
+
+    @Test
+    public void changeOnlyReportingResendsAfterAFailedReport() throws Exception {
+
+        MetricRegistry metricRegistry = new MetricRegistry();
+
+        MockClock clock = new MockClock();
+
+        KairosDbReporter reporter
+            = KairosDbReporter.forRegistry( metricRegistry )
+              .withClock( clock )
+              .withChangeOnlyReporting( 1, TimeUnit.MINUTES )
+              .build( kairosDb )
+              ;
+
+        OutputStream broken = new OutputStream() {
+            @Override
+            public void write( int b ) throws IOException {
+                throw new IOException( "broken" );
+            }
+
+            @Override
+            public void write( byte[] b, int off, int len ) throws IOException {
+                throw new IOException( "broken" );
+            }
+        };
+
+        when(socket.getOutputStream()).thenReturn(broken).thenReturn(output);
+
+        metricRegistry.counter( "requests" ).inc();
+
+        // the flush fails so the datapoint never reaches the server.
+        clock.setTime( 1000 );
+        reporter.report();
+
+        // so it isn't suppressed even though it's unchanged.
+        clock.setTime( 2000 );
+        reporter.report();
+
+        assertThat( output.toString() )
+          .isEqualTo( "put requests.count 2000 1\n" );
+
+        assertEquals( 0, reporter.getSuppressedDatapoints() );
+
+    }
+
+    @Test
+    public void changeOnlyReportingResendsAfterAFailedAsyncSend() throws Exception {
+
+        MetricRegistry metricRegistry = new MetricRegistry();
+
+        MockClock clock = new MockClock();
+
+        KairosDbReporter reporter
+            = KairosDbReporter.forRegistry( metricRegistry )
+              .withClock( clock )
+              .withChangeOnlyReporting( 1, TimeUnit.MINUTES )
+              .withAsyncSender( 1000, OverflowPolicy.DROP_OLDEST )
+              .build( kairosDb )
+              ;
+
+        OutputStream broken = mock(OutputStream.class);
+        doThrow(new IOException("broken pipe")).when(broken).write(any(byte[].class), anyInt(), anyInt());
+
+        when(socket.getOutputStream()).thenReturn(broken, output);
+
+        metricRegistry.counter( "requests" ).inc();
+
+        // the queue accepts the datapoint but the sender fails to send it.
+        clock.setTime( 1000 );
+        reporter.report();
+
+        Counter failed = (Counter) reporter.getSenderMetrics().getMetrics().get( "failed" );
+        long deadline = System.currentTimeMillis() + 10000;
+
+        while ( failed.getCount() == 0 && System.currentTimeMillis() < deadline ) {
+            Thread.sleep( 10 );
+        }
+
+        assertEquals( 1, failed.getCount() );
+
+        // so it isn't suppressed even though it's unchanged.
+        clock.setTime( 2000 );
+        reporter.report();
+
+        deadline = System.currentTimeMillis() + 10000;
+
+        while ( ! output.toString().contains( "\n" ) && System.currentTimeMillis() < deadline ) {
+            Thread.sleep( 10 );
+        }
+
+        reporter.stop();
+
+        assertThat( output.toString() )
+          .isEqualTo( "put requests.count 2000 1\n" );
+
+        assertEquals( 0, reporter.getSuppressedDatapoints() );
+
+    }
+
+    @Test
+    public void changeOnlyReportingResendsAfterAFailedAsyncFlush() throws Exception {
+
+        MetricRegistry metricRegistry = new MetricRegistry();
+
+        MockClock clock = new MockClock();
+
+        KairosDbReporter reporter
+            = KairosDbReporter.forRegistry( metricRegistry )
+              .withClock( clock )
+              .withChangeOnlyReporting( 1, TimeUnit.MINUTES )
+              .withAsyncSender( 1000, OverflowPolicy.DROP_OLDEST )
+              .build( kairosDb )
+              ;
+
+        OutputStream broken = mock(OutputStream.class);
+        doThrow(new IOException("broken pipe")).when(broken).write(any(byte[].class), anyInt(), anyInt());
+
+        when(socket.getOutputStream()).thenReturn(broken, output);
+
+        // the datapoint is only buffered until the flush, which fails.
+        kairosDb.setBatchSize( 0 );
+
+        metricRegistry.counter( "requests" ).inc();
+
+        // the queue accepts the datapoint but the sender fails to flush it.
+        clock.setTime( 1000 );
+        reporter.report();
+
+        Counter failed = (Counter) reporter.getSenderMetrics().getMetrics().get( "failed" );
+        long deadline = System.currentTimeMillis() + 10000;
+
+        while ( failed.getCount() == 0 && System.currentTimeMillis() < deadline ) {
+            Thread.sleep( 10 );
+        }
+
+        assertEquals( 1, failed.getCount() );
+
+        // so it isn't suppressed even though it's unchanged.
+        clock.setTime( 2000 );
+        reporter.report();
+
+        deadline = System.currentTimeMillis() + 10000;
+
+        while ( ! output.toString().contains( "\n" ) && System.currentTimeMillis() < deadline ) {
+            Thread.sleep( 10 );
+        }
+
+        reporter.stop();
+
+        assertThat( output.toString() )
+          .isEqualTo( "put requests.count 2000 1\n" );
+
+        assertEquals( 0, reporter.getSuppressedDatapoints() );
+
+    }
+
+    @Test
+    public void countsTheDatapointsLostWhenAnAsyncFlushFails() throws Exception {
+
+        MetricRegistry metricRegistry = new MetricRegistry();
+
+        KairosDbReporter reporter
+            = KairosDbReporter.forRegistry( metricRegistry )
+              .withAsyncSender( 1000, OverflowPolicy.DROP_OLDEST )
+              .build( kairosDb )
+              ;
+
+        OutputStream broken = mock(OutputStream.class);
+        doThrow(new IOException("broken pipe")).when(broken).write(any(byte[].class), anyInt(), anyInt());
+
+        when(socket.getOutputStream()).thenReturn(broken);
+
+        // the datapoints are only buffered until the flush, which fails.
+        kairosDb.setBatchSize( 0 );
+
+        metricRegistry.counter( "requests" ).inc();
+        metricRegistry.counter( "errors" ).inc();
+
+        reporter.report();
+
+        Counter failed = (Counter) reporter.getSenderMetrics().getMetrics().get( "failed" );
+        long deadline = System.currentTimeMillis() + 10000;
+
+        while ( failed.getCount() == 0 && System.currentTimeMillis() < deadline ) {
+            Thread.sleep( 10 );
+        }
+
+        reporter.stop();
+
+        assertEquals( 2, failed.getCount() );
+        assertEquals( 0, ((Counter) reporter.getSenderMetrics().getMetrics().get( "sent" )).getCount() );
+
+    }
+
+    @Test
+    public void closesTheSpool() throws Exception {
+
+        DiskSpool spool = new DiskSpool( folder.getRoot(), DiskSpool.MIN_SEGMENT_SIZE * 2 );
+
+        kairosDb.setSpool( spool, 2 );
+
+        when(socketFactory.createSocket(any(InetAddress.class), anyInt())).thenThrow(new IOException("down"));
+
+        kairosDb.connect();
+        assertTrue( kairosDb.isSpooling() );
+
+        kairosDb.send( "foo", "1", 100, NO_TAGS );
+        kairosDb.send( "bar", "2", 100, NO_TAGS );
+        kairosDb.close();
+
+        // the spool stays open between connections
+        assertEquals( 28, spool.size() );
+
+        kairosDb.shutdown();
+
+        // until the transport is shut down, which closes its segments.
+        assertEquals( 0, spool.size() );
+
+        // and another process picks up the spooled lines.
+        DiskSpool reopened = new DiskSpool( folder.getRoot(), DiskSpool.MIN_SEGMENT_SIZE * 2 );
+        ByteBuffer lines = ByteBuffer.allocate( 1024 );
+
+        assertEquals( 2, reopened.read( lines, 10 ) );
+
+        lines.flip();
+        assertEquals( "put foo 100 1\nput bar 100 2\n", StandardCharsets.UTF_8.decode( lines ).toString() );
+
+        reopened.close();
+
+        // as does the transport when it connects again.
+        kairosDb.connect();
+        assertEquals( 28, spool.size() );
+        kairosDb.shutdown();
+
+    }
+
+    @Test
+    public void spoolsTheBatchWhoseWriteFailed() throws Exception {
+
+        MockClock clock = new MockClock();
+        clock.setTime( 1000 );
+
+        OutputStream broken = mock(OutputStream.class);
+        doThrow(new IOException("broken pipe")).when(broken).write(any(byte[].class), anyInt(), anyInt());
+
+        when(socket.getOutputStream()).thenReturn(broken, output);
+
+        kairosDb.setClock( clock );
+        kairosDb.setBatchSize( 0 );
+        kairosDb.setPersistent( true );
+        kairosDb.setSpool( new DiskSpool( folder.getRoot(), DiskSpool.MIN_SEGMENT_SIZE * 2 ), 10 );
+
+        kairosDb.ensureConnected();
+        assertFalse( kairosDb.isSpooling() );
+
+        kairosDb.send( "foo", "1", 100, NO_TAGS );
+        kairosDb.send( "bar", "2", 100, NO_TAGS );
+
+        // the server goes away as we flush.
+        kairosDb.flush();
+
+        assertTrue( kairosDb.isSpooling() );
+        assertEquals( 2, counter( "spooled" ) );
+        assertEquals( 1, counter( "write_failures" ) );
+
+        // and is back on the next report.
+        clock.setTime( 2000 );
+        kairosDb.ensureConnected();
+        assertFalse( kairosDb.isSpooling() );
+
+        kairosDb.send( "baz", "3", 200, NO_TAGS );
+        kairosDb.flush();
+
+        assertEquals( "put baz 200 3\n" +
+                      "put foo 100 1\n" +
+                      "put bar 100 2\n", output.toString() );
+        assertEquals( 2, counter( "replayed" ) );
+
+        kairosDb.shutdown();
+
+    }
+
+    @Test
+    public void spoolsWhileTheServerIsDown() throws Exception {
+
+        MockClock clock = new MockClock();
+        clock.setTime( 1000 );
+
+        kairosDb.setClock( clock );
+        kairosDb.setPersistent( true );
+        kairosDb.setSpool( new DiskSpool( folder.getRoot(), DiskSpool.MIN_SEGMENT_SIZE * 2 ), 2 );
+
+        when(socketFactory.createSocket(any(InetAddress.class), anyInt())).thenThrow(new IOException("down"));
+
+        kairosDb.ensureConnected();
+        assertTrue( kairosDb.isSpooling() );
+
+        kairosDb.send( "foo", "1", 100, NO_TAGS );
+        kairosDb.send( "bar", "2", 100, NO_TAGS );
+        kairosDb.send( "baz", "3", 100, NO_TAGS );
+        kairosDb.flush();
+
+        assertEquals( "", output.toString() );
+        assertEquals( 3, counter( "spooled" ) );
+
+        reset( socketFactory );
+        when(socketFactory.createSocket(any(InetAddress.class), anyInt())).thenReturn(socket);
+
+        // the server is back
+        clock.setTime( 100000 );
+        kairosDb.ensureConnected();
+        assertFalse( kairosDb.isSpooling() );
+
+        kairosDb.send( "qux", "4", 200, NO_TAGS );
+
+        // we replay two a second
+        assertEquals( "put qux 200 4\n" +
+                      "put foo 100 1\n" +
+                      "put bar 100 2\n", output.toString() );
+
+        clock.setTime( 101000 );
+        kairosDb.flush();
+
+        assertEquals( "put qux 200 4\n" +
+                      "put foo 100 1\n" +
+                      "put bar 100 2\n" +
+                      "put baz 100 3\n", output.toString() );
+        assertEquals( 3, counter( "replayed" ) );
+
+    }
+
+    @Test
+    public void retriesDatapointsAfterAFailedReport() throws Exception {
+
+        MetricRegistry metricRegistry = new MetricRegistry();
+
+        MockClock clock = new MockClock();
+
+        KairosDbReporter reporter
+            = KairosDbReporter.forRegistry( metricRegistry )
+              .withClock( clock )
+              .withRetryBuffer( 1024 * 1024 )
+              .build( kairosDb )
+              ;
+
+        when(socketFactory.createSocket(any(InetAddress.class), anyInt())).thenThrow(new IOException("down"));
+
+        metricRegistry.counter( "requests" ).inc();
+
+        clock.setTime( 1000 );
+        reporter.report();
+
+        assertEquals( "", output.toString() );
+        assertEquals( 1, ((Gauge<?>) reporter.getRetryMetrics().getMetrics().get( "queued" )).getValue() );
+
+        reset( socketFactory );
+        when(socketFactory.createSocket(any(InetAddress.class), anyInt())).thenReturn(socket);
+
+        clock.setTime( 2000 );
+        reporter.report();
+
+        assertThat( output.toString() )
+          .isEqualTo( "put requests.count 1000 1\n" +
+                      "put requests.count 2000 1\n" );
+
+        Map<String, Metric> metrics = reporter.getRetryMetrics().getMetrics();
+
+        assertEquals( 0, ((Gauge<?>) metrics.get( "queued" )).getValue() );
+        assertEquals( 1L, ((Gauge<?>) metrics.get( "retried" )).getValue() );
+        assertEquals( 0L, ((Gauge<?>) metrics.get( "dropped" )).getValue() );
+
+    }
+
+    @Test
+    public void keepsRetriedDatapointsUntilTheyreFlushed() throws Exception {
+
+        MetricRegistry metricRegistry = new MetricRegistry();
+
+        MockClock clock = new MockClock();
+
+        KairosDbReporter reporter
+            = KairosDbReporter.forRegistry( metricRegistry )
+              .withClock( clock )
+              .withRetryBuffer( 1024 * 1024 )
+              .build( kairosDb )
+              ;
+
+        kairosDb.setBatchSize( 0 );
+
+        when(socketFactory.createSocket(any(InetAddress.class), anyInt())).thenThrow(new IOException("down"));
+
+        metricRegistry.counter( "requests" ).inc();
+
+        clock.setTime( 1000 );
+        reporter.report();
+
+        reset( socketFactory );
+        when(socketFactory.createSocket(any(InetAddress.class), anyInt())).thenReturn(socket);
+
+        OutputStream broken = mock(OutputStream.class);
+        doThrow(new IOException("broken pipe")).when(broken).write(any(byte[].class), anyInt(), anyInt());
+
+        when(socket.getOutputStream()).thenReturn(broken, output);
+
+        // the retried datapoint, and the new one, are only buffered when the
+        // flush fails.
+        clock.setTime( 2000 );
+        reporter.report();
+
+        Map<String, Metric> metrics = reporter.getRetryMetrics().getMetrics();
+
+        assertEquals( 2, ((Gauge<?>) metrics.get( "queued" )).getValue() );
+        assertEquals( 0L, ((Gauge<?>) metrics.get( "retried" )).getValue() );
+
+        clock.setTime( 3000 );
+        reporter.report();
+
+        assertThat( output.toString() )
+          .isEqualTo( "put requests.count 1000 1\n" +
+                      "put requests.count 2000 1\n" +
+                      "put requests.count 3000 1\n" );
+
+        assertEquals( 0, ((Gauge<?>) metrics.get( "queued" )).getValue() );
+        assertEquals( 2L, ((Gauge<?>) metrics.get( "retried" )).getValue() );
+        assertEquals( 0L, ((Gauge<?>) metrics.get( "dropped" )).getValue() );
+
+    }
+
+    @Test
+    public void retriesTheReportWhenItsFlushFails() throws Exception {
+
+        MetricRegistry metricRegistry = new MetricRegistry();
+
+        MockClock clock = new MockClock();
+
+        KairosDbReporter reporter
+            = KairosDbReporter.forRegistry( metricRegistry )
+              .withClock( clock )
+              .withRetryBuffer( 1024 * 1024 )
+              .build( kairosDb )
+              ;
+
+        kairosDb.setBatchSize( 0 );
+
+        OutputStream broken = mock(OutputStream.class);
+        doThrow(new IOException("broken pipe")).when(broken).write(any(byte[].class), anyInt(), anyInt());
+
+        when(socket.getOutputStream()).thenReturn(broken, output);
+
+        metricRegistry.counter( "requests" ).inc();
+
+        clock.setTime( 1000 );
+        reporter.report();
+
+        Map<String, Metric> metrics = reporter.getRetryMetrics().getMetrics();
+
+        assertEquals( 1, ((Gauge<?>) metrics.get( "queued" )).getValue() );
+
+        clock.setTime( 2000 );
+        reporter.report();
+
+        assertThat( output.toString() )
+          .isEqualTo( "put requests.count 1000 1\n" +
+                      "put requests.count 2000 1\n" );
+
+        assertEquals( 0, ((Gauge<?>) metrics.get( "queued" )).getValue() );
+        assertEquals( 1L, ((Gauge<?>) metrics.get( "retried" )).getValue() );
+
+    }
+
+    @Test
+    public void countsDatapointsDroppedFromAFullRetryBuffer() throws Exception {
+
+        MetricRegistry metricRegistry = new MetricRegistry();
+
+        MockClock clock = new MockClock();
+
+        // room for two datapoints.
+        KairosDbReporter reporter
+            = KairosDbReporter.forRegistry( metricRegistry )
+              .withClock( clock )
+              .withRetryBuffer( 2 * DatapointBuffer.BYTES_PER_DATAPOINT )
+              .withChangeOnlyReporting( 1, TimeUnit.MINUTES )
+              .build( kairosDb )
+              ;
+
+        kairosDb.setBatchSize( 0 );
+
+        metricRegistry.counter( "a" ).inc();
+        metricRegistry.counter( "b" ).inc();
+        metricRegistry.counter( "c" ).inc();
+
+        // a report bigger than the buffer is fine as long as it's flushed.
+        clock.setTime( 1000 );
+        reporter.report();
+
+        Map<String, Metric> metrics = reporter.getRetryMetrics().getMetrics();
+
+        assertEquals( 0, ((Gauge<?>) metrics.get( "queued" )).getValue() );
+        assertEquals( 0L, ((Gauge<?>) metrics.get( "dropped" )).getValue() );
+
+        // but when it isn't, the oldest of them are lost.
+        metricRegistry.counter( "a" ).inc();
+        metricRegistry.counter( "b" ).inc();
+        metricRegistry.counter( "c" ).inc();
+
+        OutputStream broken = mock(OutputStream.class);
+        doThrow(new IOException("broken pipe")).when(broken).write(any(byte[].class), anyInt(), anyInt());
+
+        when(socket.getOutputStream()).thenReturn(broken, output);
+
+        clock.setTime( 2000 );
+        reporter.report();
+
+        assertEquals( 2, ((Gauge<?>) metrics.get( "queued" )).getValue() );
+        assertEquals( 1L, ((Gauge<?>) metrics.get( "dropped" )).getValue() );
+
+        output.reset();
+
+        // the lost value isn't suppressed as unchanged.
+        clock.setTime( 3000 );
+        reporter.report();
+
+        assertThat( output.toString() )
+          .isEqualTo( "put b.count 2000 2\n" +
+                      "put c.count 2000 2\n" +
+                      "put a.count 3000 2\n" +
+                      "put b.count 3000 2\n" +
+                      "put c.count 3000 2\n" );
+
+    }
+
+    @Test
+    public void recordsReporterMetrics() throws Exception {
+
+        MetricRegistry metricRegistry = new MetricRegistry();
+        MockClock clock = new MockClock();
+
+        KairosDbReporter reporter
+            = KairosDbReporter.forRegistry( metricRegistry )
+              .withClock( clock )
+              .withSelfReporting( true )
+              .build( kairosDb )
+              ;
+
+        metricRegistry.counter( "requests" ).inc();
+        metricRegistry.counter( "errors" ).inc();
+
+        clock.setTime( 1000 );
+        reporter.report();
+
+        MetricRegistry metrics = reporter.getReporterMetrics();
+
+        assertEquals( 1, metrics.timer( "report" ).getCount() );
+        assertEquals( 1, metrics.timer( "phase.connect" ).getCount() );
+        assertEquals( 1, metrics.timer( "phase.counters" ).getCount() );
+        assertEquals( 1, metrics.timer( "phase.flush" ).getCount() );
+        assertEquals( 0, metrics.counter( "report_failures" ).getCount() );
+        assertEquals( 1, metrics.histogram( "report_bytes" ).getCount() );
+        assertEquals( output.size(), metrics.histogram( "report_bytes" ).getSnapshot().getMax() );
+
+        // our own metrics are reported after the registry's.
+        String[] lines = output.toString().split( "\n" );
+        assertEquals( "put errors.count 1000 1", lines[ 0 ] );
+        assertEquals( "put requests.count 1000 1", lines[ 1 ] );
+        assertThat( output.toString() ).contains( "put kairosdb_reporter.phase.counters.count 1000 1\n" );
+
+        // the datapoints include our own.
+        assertEquals( lines.length, metrics.histogram( "report_datapoints" ).getSnapshot().getMax() );
+        assertEquals( lines.length, metrics.counter( "datapoints" ).getCount() );
+
+    }
+
+    @Test
+    public void countsConnectFailures() throws Exception {
+
+        MetricRegistry metricRegistry = new MetricRegistry();
+
+        KairosDbReporter reporter
+            = KairosDbReporter.forRegistry( metricRegistry )
+              .build( kairosDb )
+              ;
+
+        when(socketFactory.createSocket(any(InetAddress.class), anyInt())).thenThrow(new IOException("down"));
+
+        metricRegistry.counter( "requests" ).inc();
+        reporter.report();
+
+        MetricRegistry metrics = reporter.getReporterMetrics();
+
+        assertEquals( 1, metrics.counter( "connect_failures" ).getCount() );
+        assertEquals( 1, metrics.counter( "report_failures" ).getCount() );
+        assertEquals( 0, metrics.timer( "phase.counters" ).getCount() );
+
+    }
+
+    @Test
+    public void reportsSelectedFields() throws Exception {
+
+        MetricRegistry metricRegistry = new MetricRegistry();
+        MockClock clock = new MockClock();
+
+        KairosDbReporter reporter
+            = KairosDbReporter.forRegistry( metricRegistry )
+              .withClock( clock )
+              .timerFields( P99, MAX, M1_RATE )
+              .histogramFields( COUNT )
+              .meterFields( COUNT )
+              .build( kairosDb )
+              ;
+
+        metricRegistry.timer( "latency" ).update( 5, TimeUnit.MILLISECONDS );
+        metricRegistry.meter( "requests" ).mark();
+
+        // without snapshot fields we never take a snapshot.
+        metricRegistry.register( "sizes", new Histogram( new UniformReservoir() ) {
+            @Override
+            public Snapshot getSnapshot() {
+                throw new AssertionError( "Snapshot taken" );
+            }
+        } ).update( 10 );
+
+        clock.setTime( 1000 );
+        reporter.report();
+
+        assertThat( output.toString() )
+          .isEqualTo( "put sizes.count 1000 1\n" +
+                      "put requests.count 1000 1\n" +
+                      "put latency.max 1000 5.0\n" +
+                      "put latency.p99 1000 5.0\n" +
+                      "put latency.m1_rate 1000 0.0\n" );
+
+    }
+
+    @Test
+    public void rejectsUnsupportedFields() throws Exception {
+
+        try {
+            KairosDbReporter.forRegistry( new MetricRegistry() ).meterFields( P99 );
+            failBecauseExceptionWasNotThrown( IllegalArgumentException.class );
+        } catch ( IllegalArgumentException e ) {
+            // expected
+        }
+
+    }
+
+    @Test
+    public void reportsInSlices() throws Exception {
+
+        MetricRegistry metricRegistry = new MetricRegistry();
+        MockClock clock = new MockClock();
+
+        KairosDbReporter reporter
+            = KairosDbReporter.forRegistry( metricRegistry )
+              .withClock( clock )
+              .withReportSlices( 2 )
+              .build( kairosDb )
+              ;
+
+        // "a" and "c" hash to the second slice, "b" and "d" to the first.
+        for (String name : new String[] { "a", "b", "c", "d" }) {
+            metricRegistry.counter( name ).inc();
+        }
+
+        // every slice is timestamped with the period boundary.
+        clock.setTime( 60010 );
+        reporter.reportSlice( 60000, 0 );
+
+        assertThat( output.toString() )
+          .isEqualTo( "put b.count 60000 1\n" +
+                      "put d.count 60000 1\n" );
+
+        output.reset();
+
+        clock.setTime( 90010 );
+        reporter.reportSlice( 60000, 0 );
+
+        assertThat( output.toString() )
+          .isEqualTo( "put a.count 60000 1\n" +
+                      "put c.count 60000 1\n" );
+
+        output.reset();
+
+        // and the next period starts again from the first slice.
+        clock.setTime( 119990 );
+        reporter.reportSlice( 60000, 0 );
+
+        assertThat( output.toString() )
+          .isEqualTo( "put b.count 120000 1\n" +
+                      "put d.count 120000 1\n" );
+
+    }
+
 }
@@ -0,0 +1,128 @@
+package com.spinn3r.metrics.kairosdb;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class MetricTemplateTest {
+
+    private MetricRegistry metricRegistry;
+
+    private TaggedMetrics taggedMetrics;
+
+    @Before
+    public void setUp() throws Exception {
+
+        metricRegistry = new MetricRegistry();
+
+        taggedMetrics = new TaggedMetrics( metricRegistry,
+                                           InvalidTagPolicy.MANGLE,
+                                           DuplicateTagPolicy.FAIL );
+
+    }
+
+    @Test
+    public void testResolvesTaggedMetrics() throws Exception {
+
+        MetricTemplate<Counter> requests = taggedMetrics.counterTemplate( MetricTemplateTest.class, "requests", "method", "status" );
+
+        Counter counter = requests.get( "GET", "200" );
+        counter.inc();
+
+        // the same metric TaggedMetrics would give us, with the tags sorted.
+        assertSame( counter, taggedMetrics.counter( MetricTemplateTest.class, "requests",
+                                                    TaggedMetrics.tag( "status", "200" ),
+                                                    TaggedMetrics.tag( "method", "GET" ) ) );
+
+        assertSame( counter, metricRegistry.getCounters().get( "com.spinn3r.metrics.kairosdb.MetricTemplateTest.requests?method=GET&status=200" ) );
+
+        assertSame( counter, requests.get( "GET", "200" ) );
+        assertSame( counter, requests.get( new String[] { "GET", "200" } ) );
+        assertNotSame( counter, requests.get( "GET", "404" ) );
+
+        assertEquals( 2, requests.size() );
+
+    }
+
+    @Test
+    public void testTagPolicies() throws Exception {
+
+        MetricTemplate<Timer> latency = taggedMetrics.template( "latency", taggedMetrics::intervalTimer, "path" );
+
+        Timer timer = latency.get( "/a b" );
+
+        assertSame( timer, metricRegistry.getTimers().get( "latency?path=/a_b" ) );
+        assertSame( timer, latency.get( "/a b" ) );
+
+    }
+
+    @Test
+    public void testEvictsRemovedMetrics() throws Exception {
+
+        MetricTemplate<Counter> requests = taggedMetrics.counterTemplate( MetricTemplateTest.class, "requests", "method" );
+
+        Counter counter = requests.get( "GET" );
+
+        metricRegistry.remove( "com.spinn3r.metrics.kairosdb.MetricTemplateTest.requests?method=GET" );
+
+        assertEquals( 0, requests.size() );
+
+        Counter recreated = requests.get( "GET" );
+
+        assertNotSame( counter, recreated );
+        assertSame( recreated, metricRegistry.getCounters().get( "com.spinn3r.metrics.kairosdb.MetricTemplateTest.requests?method=GET" ) );
+
+    }
+
+    @Test
+    public void testDoesNotCacheOverflowingValues() throws Exception {
+
+        TaggedMetrics limited = new TaggedMetrics( metricRegistry,
+                                                   InvalidTagPolicy.MANGLE,
+                                                   DuplicateTagPolicy.FAIL,
+                                                   new CardinalityLimiter( 100, 2 ) );
+
+        MetricTemplate<Counter> requests = limited.counterTemplate( MetricTemplateTest.class, "requests", "user" );
+
+        for (int i = 0; i < 1000; i++) {
+            requests.get( "user" + i ).inc();
+        }
+
+        assertEquals( 2, requests.size() );
+        assertEquals( 998, metricRegistry.getCounters().get( "com.spinn3r.metrics.kairosdb.MetricTemplateTest.requests?user=__overflow__" ).getCount() );
+
+    }
+
+    @Test
+    public void testClose() throws Exception {
+
+        MetricTemplate<Counter> requests = taggedMetrics.counterTemplate( MetricTemplateTest.class, "requests", "method" );
+
+        Counter counter = requests.get( "GET" );
+
+        requests.close();
+
+        assertEquals( 0, requests.size() );
+
+        // no longer evicted, so no longer cached.
+        assertSame( counter, requests.get( "GET" ) );
+        assertEquals( 0, requests.size() );
+
+        metricRegistry.remove( "com.spinn3r.metrics.kairosdb.MetricTemplateTest.requests?method=GET" );
+
+        assertNotSame( counter, requests.get( "GET" ) );
+
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testWrongNumberOfValues() throws Exception {
+
+        taggedMetrics.counterTemplate( MetricTemplateTest.class, "requests", "method", "status" ).get( "GET" );
+
+    }
+
+}
@@ -0,0 +1,23 @@
+package com.spinn3r.metrics.kairosdb;
+
+import com.codahale.metrics.Clock;
+
+class MockClock extends Clock {
+
+    private long time = 0;
+
+    @Override
+    public long getTick() {
+        throw new RuntimeException( "not implemented" );
+    }
+
+    @Override
+    public long getTime() {
+        return time;
+    }
+
+    public void setTime(long time) {
+        this.time = time;
+    }
+
+}
@@ -0,0 +1,120 @@
+package com.spinn3r.metrics.kairosdb;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class NioKairosDbTest {
+
+    private final Map<String,String> NO_TAGS = new HashMap<>();
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+    private ServerSocket serverSocket;
+
+    private InetSocketAddress address;
+
+    @Before
+    public void setUp() throws Exception {
+        serverSocket = new ServerSocket( 0, 1, InetAddress.getLoopbackAddress() );
+        address = new InetSocketAddress( InetAddress.getLoopbackAddress(), serverSocket.getLocalPort() );
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        serverSocket.close();
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void writesValues() throws Exception {
+
+        Future<String> received = receive();
+
+        Map<String,String> tags = new TreeMap<>();
+        tags.put( "foo", "bar" );
+
+        NioKairosDb kairosDb = new NioKairosDb( address );
+        kairosDb.setBatchSize( 0 );
+        kairosDb.connect();
+        kairosDb.send( "name woo", "value", 100, tags );
+        kairosDb.close();
+
+        assertEquals( "put name-woo 100 value foo=bar\n", received.get( 10, TimeUnit.SECONDS ) );
+
+    }
+
+    @Test
+    public void writesMoreThanTheBufferPool() throws Exception {
+
+        Future<String> received = receive();
+
+        NioKairosDb kairosDb = new NioKairosDb( address, Charset.forName( "UTF-8" ), 2, 10, TimeUnit.SECONDS );
+        kairosDb.setBufferSize( 64 );
+        kairosDb.setBatchSize( 0 );
+        kairosDb.connect();
+
+        StringBuilder expected = new StringBuilder();
+
+        for (int i = 0; i < 10000; i++) {
+            kairosDb.send( "name", Integer.toString( i ), 100, NO_TAGS );
+            expected.append( "put name 100 " ).append( i ).append( "\n" );
+        }
+
+        kairosDb.flush();
+
+        // flushing waits for everything to be handed to the socket.
+        assertEquals( 0, kairosDb.getPendingBuffers() );
+
+        kairosDb.close();
+
+        assertEquals( expected.toString(), received.get( 10, TimeUnit.SECONDS ) );
+        assertEquals( expected.length(), kairosDb.getBytesWritten() );
+
+    }
+
+    /**
+     * Accept a single connection and read everything written to it.
+     */
+    private Future<String> receive() {
+
+        return executor.submit( () -> {
+
+            try( Socket socket = serverSocket.accept() ) {
+
+                InputStream in = socket.getInputStream();
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+                byte[] data = new byte[ 4096 ];
+                int count;
+
+                while ( ( count = in.read( data ) ) != -1 ) {
+                    out.write( data, 0, count );
+                }
+
+                return out.toString( "UTF-8" );
+
+            }
+
+        } );
+
+    }
+
+}
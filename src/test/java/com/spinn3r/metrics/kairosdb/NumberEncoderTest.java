@@ -0,0 +1,118 @@
+package com.spinn3r.metrics.kairosdb;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class NumberEncoderTest {
+
+    @Test
+    public void testLongs() throws Exception {
+
+        for (long value : new long[] { 0, 1, -1, 9, 10, 99, 100, 1234567890L, Long.MAX_VALUE, Long.MIN_VALUE }) {
+            assertEquals( Long.toString( value ), encode( value ) );
+        }
+
+    }
+
+    @Test
+    public void testDoubles() throws Exception {
+
+        assertEquals( "0.0", encode( 0.0 ) );
+        assertEquals( "-0.0", encode( -0.0 ) );
+        assertEquals( "5.0", encode( 5.0 ) );
+        assertEquals( "-0.25", encode( -0.25 ) );
+        assertEquals( "100.0", encode( 100.0 ) );
+        assertEquals( "0.001", encode( 0.001 ) );
+        assertEquals( "0.002", encode( 0.002 ) );
+        assertEquals( "0.1", encode( 0.1 ) );
+        assertEquals( "0.30000000000000004", encode( 0.1 + 0.2 ) );
+        assertEquals( "123.456", encode( 123.456 ) );
+        assertEquals( "9999999.999999998", encode( Math.nextDown( 1e7 ) ) );
+        assertEquals( "1.0E7", encode( 1e7 ) );
+        assertEquals( "1.0E-4", encode( 1e-4 ) );
+        assertEquals( "NaN", encode( Double.NaN ) );
+        assertEquals( "Infinity", encode( Double.POSITIVE_INFINITY ) );
+        assertEquals( "-Infinity", encode( Double.NEGATIVE_INFINITY ) );
+        assertEquals( "4.9E-324", encode( Double.MIN_VALUE ) );
+        assertEquals( "1.7976931348623157E308", encode( Double.MAX_VALUE ) );
+
+    }
+
+    @Test
+    public void testScientificNotation() throws Exception {
+
+        // just outside the range written as plain digits.
+        assertEquals( "9.999999999999998E-4", encode( Math.nextDown( 1e-3 ) ) );
+        assertEquals( "0.0010000000000000002", encode( Math.nextUp( 1e-3 ) ) );
+        assertEquals( "1.0000000000000002E7", encode( Math.nextUp( 1e7 ) ) );
+        assertEquals( "-1.5E7", encode( -1.5e7 ) );
+
+        assertEquals( "2.5E-5", encode( 2.5e-5 ) );
+        assertEquals( "1.25E100", encode( 1.25e100 ) );
+        assertEquals( "2.2250738585072014E-308", encode( Double.MIN_NORMAL ) );
+        assertEquals( "2.225073858507201E-308", encode( Math.nextDown( Double.MIN_NORMAL ) ) );
+
+        // shorter than Double.toString before Java 19 ("9.999999999999999E22").
+        assertEquals( "1.0E23", encode( 1e23 ) );
+
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+
+        Random random = new Random( 42 );
+
+        for (int i = 0; i < 200000; i++) {
+
+            double value;
+
+            switch ( i % 6 ) {
+                case 0:
+                    value = random.nextDouble();
+                    break;
+                case 1:
+                    value = random.nextDouble() * 1e7;
+                    break;
+                case 2:
+                    // short decimals, like durations converted to millis.
+                    value = random.nextInt( 1000000 ) / 1000.0;
+                    break;
+                case 3:
+                    // large counts and rates.
+                    value = random.nextDouble() * 1e12;
+                    break;
+                case 4:
+                    // subnormals.
+                    value = Double.longBitsToDouble( random.nextLong() & 0x000FFFFFFFFFFFFFL );
+                    break;
+                default:
+                    value = Double.longBitsToDouble( random.nextLong() );
+            }
+
+            String encoded = encode( value );
+
+            assertEquals( encoded, Double.doubleToLongBits( value ), Double.doubleToLongBits( Double.parseDouble( encoded ) ) );
+            assertTrue( encoded, encoded.length() <= Double.toString( value ).length() );
+
+        }
+
+    }
+
+    private static String encode( long value ) {
+        ByteBuffer buffer = ByteBuffer.allocate( NumberEncoder.MAX_LENGTH );
+        NumberEncoder.put( buffer, value );
+        return new String( buffer.array(), 0, buffer.position(), StandardCharsets.US_ASCII );
+    }
+
+    private static String encode( double value ) {
+        ByteBuffer buffer = ByteBuffer.allocate( NumberEncoder.MAX_LENGTH );
+        NumberEncoder.put( buffer, value );
+        return new String( buffer.array(), 0, buffer.position(), StandardCharsets.US_ASCII );
+    }
+
+}
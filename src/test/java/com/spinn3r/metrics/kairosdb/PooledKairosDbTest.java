@@ -0,0 +1,262 @@
+package com.spinn3r.metrics.kairosdb;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Meter;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.net.SocketFactory;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Mockito.*;
+
+public class PooledKairosDbTest {
+
+    private static final int CONNECTIONS = 4;
+
+    private static final int SERIES = 5000;
+
+    private final Map<String,String> NO_TAGS = new HashMap<>();
+
+    private final Socket[] sockets = new Socket[ CONNECTIONS ];
+
+    private final ByteArrayOutputStream[] outputs = new ByteArrayOutputStream[ CONNECTIONS ];
+
+    private PooledKairosDb pooled;
+
+    @Before
+    public void setUp() throws Exception {
+
+        KairosDb[] connections = new KairosDb[ CONNECTIONS ];
+
+        for (int i = 0; i < CONNECTIONS; i++) {
+
+            outputs[ i ] = new ByteArrayOutputStream();
+
+            sockets[ i ] = mock( Socket.class );
+            when( sockets[ i ].getOutputStream() ).thenReturn( outputs[ i ] );
+
+            SocketFactory socketFactory = mock( SocketFactory.class );
+            when( socketFactory.createSocket( any( InetAddress.class ), anyInt() ) ).thenReturn( sockets[ i ] );
+
+            connections[ i ] = new KairosDb( new InetSocketAddress( "example.com", 4242 ), socketFactory );
+            connections[ i ].setBatchSize( 0 );
+
+        }
+
+        pooled = new PooledKairosDb( connections );
+
+    }
+
+    @Test
+    public void partitionsSeriesAcrossConnections() throws Exception {
+
+        pooled.connect();
+
+        for (int i = 0; i < SERIES; i++) {
+            pooled.send( new SeriesKey( "series" + i, NO_TAGS ), "1", 100 );
+            pooled.send( new SeriesKey( "series" + i, NO_TAGS ), "2", 200 );
+        }
+
+        pooled.flush();
+
+        int total = 0;
+
+        for (int i = 0; i < CONNECTIONS; i++) {
+
+            String output = outputs[ i ].toString();
+            String[] lines = output.split( "\n" );
+
+            assertTrue( lines.length > SERIES / CONNECTIONS );
+
+            for (String line : lines) {
+                // both datapoints of a series go down the same connection, in order.
+                String name = line.split( " " )[ 1 ];
+                assertTrue( output.indexOf( "put " + name + " 100 1\n" ) < output.indexOf( "put " + name + " 200 2\n" ) );
+            }
+
+            total += lines.length;
+
+            assertEquals( lines.length, ((Meter) pooled.getMetrics().getMetrics().get( "connection_" + i + ".datapoints" )).getCount() );
+
+        }
+
+        assertEquals( SERIES * 2, total );
+
+        pooled.close();
+
+    }
+
+    @Test
+    public void reportsFailedConnections() throws Exception {
+
+        OutputStream broken = mock( OutputStream.class );
+        doThrow( new IOException( "broken" ) ).when( broken ).write( any( byte[].class ), anyInt(), anyInt() );
+        when( sockets[ 2 ].getOutputStream() ).thenReturn( broken );
+
+        pooled.connect();
+
+        // the failure is reported by the sends after it, and the flush.
+        int failed = 0;
+
+        for (int i = 0; i < SERIES; i++) {
+            try {
+                pooled.send( "series" + i, "1", 100, NO_TAGS );
+            } catch ( IOException e ) {
+                ++failed;
+            }
+        }
+
+        try {
+            pooled.flush();
+        } catch ( IOException e ) {
+            ++failed;
+        }
+
+        assertTrue( failed > 0 );
+
+        assertFalse( pooled.isConnected() );
+
+        // the other connections still got their datapoints.
+        int total = 0;
+
+        for (int i = 0; i < CONNECTIONS; i++) {
+            if ( i != 2 ) {
+                total += outputs[ i ].toString().split( "\n" ).length;
+            }
+        }
+
+        assertTrue( total > SERIES / 2 );
+
+        pooled.close();
+
+    }
+
+    @Test
+    public void reportsFailuresFromSend() throws Exception {
+
+        OutputStream broken = mock( OutputStream.class );
+        doThrow( new IOException( "broken" ) ).when( broken ).write( any( byte[].class ), anyInt(), anyInt() );
+        when( sockets[ 2 ].getOutputStream() ).thenReturn( broken );
+
+        // so the broken connection fails as soon as it writes.
+        pooled.getConnections().get( 2 ).setBatchSize( 1 );
+
+        pooled.connect();
+
+        try {
+            for (int i = 0; i < SERIES * 10; i++) {
+                pooled.send( new SeriesKey( "series" + i, NO_TAGS ), i, 100 );
+            }
+            fail();
+        } catch ( IOException e ) {
+            assertEquals( "broken", e.getMessage() );
+        }
+
+        assertTrue( ((Counter) pooled.getMetrics().getMetrics().get( "connection_2.dropped" )).getCount() > 0 );
+
+        pooled.close();
+
+    }
+
+    @Test
+    public void countsTheWholeBatchWhenTheFlushFails() throws Exception {
+
+        OutputStream broken = mock( OutputStream.class );
+        doThrow( new IOException( "broken" ) ).when( broken ).write( any( byte[].class ), anyInt(), anyInt() );
+        when( sockets[ 2 ].getOutputStream() ).thenReturn( broken );
+
+        pooled.connect();
+
+        // few enough that every send is buffered, and only the flush writes.
+        int series = 20;
+
+        for (int i = 0; i < series; i++) {
+            pooled.send( new SeriesKey( "series" + i, NO_TAGS ), i, 100 );
+        }
+
+        try {
+            pooled.flush();
+            fail();
+        } catch ( IOException e ) {
+            assertEquals( "broken", e.getMessage() );
+        }
+
+        int written = 0;
+
+        for (int i = 0; i < CONNECTIONS; i++) {
+            if ( i != 2 && outputs[ i ].size() > 0 ) {
+                written += outputs[ i ].toString().split( "\n" ).length;
+            }
+        }
+
+        assertTrue( written < series );
+        assertEquals( series - written, ((Counter) pooled.getMetrics().getMetrics().get( "connection_2.dropped" )).getCount() );
+
+        pooled.close();
+
+    }
+
+    @Test
+    public void stopsTheWritersWhenClosed() throws Exception {
+
+        int before = writers();
+
+        pooled.connect();
+
+        for (int i = 0; i < SERIES; i++) {
+            pooled.send( new SeriesKey( "series" + i, NO_TAGS ), i, 100 );
+        }
+
+        pooled.flush();
+
+        assertEquals( before + CONNECTIONS, writers() );
+
+        pooled.close();
+
+        // the threads exit just after the executors terminate.
+        long deadline = System.currentTimeMillis() + 10000;
+
+        while ( writers() > before && System.currentTimeMillis() < deadline ) {
+            Thread.sleep( 10 );
+        }
+
+        assertEquals( before, writers() );
+
+        // and they start again when it's used again.
+        pooled.connect();
+        pooled.send( new SeriesKey( "series", NO_TAGS ), 1, 200 );
+        pooled.close();
+
+        assertTrue( outputs[ 0 ].toString().contains( "put series 200 1\n" ) ||
+                    outputs[ 1 ].toString().contains( "put series 200 1\n" ) ||
+                    outputs[ 2 ].toString().contains( "put series 200 1\n" ) ||
+                    outputs[ 3 ].toString().contains( "put series 200 1\n" ) );
+
+    }
+
+    private static int writers() {
+
+        int result = 0;
+
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if ( thread.getName().startsWith( "kairosdb-writer-" ) && thread.isAlive() ) {
+                ++result;
+            }
+        }
+
+        return result;
+
+    }
+
+}
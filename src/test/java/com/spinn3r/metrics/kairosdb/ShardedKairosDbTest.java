@@ -0,0 +1,273 @@
+package com.spinn3r.metrics.kairosdb;
+
+import com.codahale.metrics.MetricRegistry;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.net.SocketFactory;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Mockito.*;
+
+public class ShardedKairosDbTest {
+
+    private static final int SHARDS = 3;
+
+    private static final int SERIES = 300;
+
+    private final Map<String,String> NO_TAGS = new HashMap<>();
+
+    private final SocketFactory[] socketFactories = new SocketFactory[ SHARDS ];
+
+    private final ByteArrayOutputStream[] outputs = new ByteArrayOutputStream[ SHARDS ];
+
+    private ShardedKairosDb sharded;
+
+    @Before
+    public void setUp() throws Exception {
+
+        KairosDb[] shards = new KairosDb[ SHARDS ];
+
+        for (int i = 0; i < SHARDS; i++) {
+
+            outputs[ i ] = new ByteArrayOutputStream();
+
+            Socket socket = mock( Socket.class );
+            when( socket.getOutputStream() ).thenReturn( outputs[ i ] );
+
+            socketFactories[ i ] = mock( SocketFactory.class );
+            when( socketFactories[ i ].createSocket( any( InetAddress.class ), anyInt() ) ).thenReturn( socket );
+
+            shards[ i ] = new KairosDb( new InetSocketAddress( "example.com", 4242 + i ), socketFactories[ i ] );
+            shards[ i ].setBatchSize( 0 );
+
+        }
+
+        sharded = new ShardedKairosDb( shards );
+
+    }
+
+    @Test
+    public void spreadsSeriesAcrossServers() throws Exception {
+
+        sharded.connect();
+
+        for (int i = 0; i < SERIES; i++) {
+            sharded.send( "series" + i, "1", 100, NO_TAGS );
+            sharded.send( new SeriesKey( "series" + i, NO_TAGS ), "2", 200 );
+        }
+
+        sharded.close();
+
+        int total = 0;
+
+        for (int i = 0; i < SHARDS; i++) {
+
+            String[] lines = outputs[ i ].toString().split( "\n" );
+
+            // every server gets a fair share.
+            assertTrue( lines.length > SERIES / SHARDS / 2 );
+
+            total += lines.length;
+
+            // both datapoints of a series go to the same server.
+            for (String line : lines) {
+                String name = line.split( " " )[ 1 ];
+                assertTrue( outputs[ i ].toString().contains( "put " + name + " 100 1\n" ) );
+                assertTrue( outputs[ i ].toString().contains( "put " + name + " 200 2\n" ) );
+            }
+
+        }
+
+        assertEquals( SERIES * 2, total );
+
+    }
+
+    @Test
+    public void onlyRemapsTheSeriesOfAFailedServer() throws Exception {
+
+        sharded.connect();
+
+        for (int i = 0; i < SERIES; i++) {
+            sharded.send( "series" + i, "1", 100, NO_TAGS );
+        }
+
+        sharded.close();
+
+        String[] before = new String[ SHARDS ];
+
+        for (int i = 0; i < SHARDS; i++) {
+            before[ i ] = outputs[ i ].toString();
+            outputs[ i ].reset();
+        }
+
+        when( socketFactories[ 1 ].createSocket( any( InetAddress.class ), anyInt() ) ).thenThrow( new IOException( "down" ) );
+
+        sharded.connect();
+
+        for (int i = 0; i < SERIES; i++) {
+            sharded.send( "series" + i, "1", 100, NO_TAGS );
+        }
+
+        sharded.close();
+
+        assertEquals( "", outputs[ 1 ].toString() );
+
+        // the healthy servers keep their own series and take some of the failed server's.
+        for (int i : new int[] { 0, 2 }) {
+            for (String line : before[ i ].split( "\n" )) {
+                assertTrue( outputs[ i ].toString().contains( line + "\n" ) );
+            }
+        }
+
+        assertEquals( SERIES, outputs[ 0 ].toString().split( "\n" ).length + outputs[ 2 ].toString().split( "\n" ).length );
+
+    }
+
+    @Test
+    public void failsWhenAnyServerFailsToFlush() throws Exception {
+
+        Socket broken = mock( Socket.class );
+        when( broken.getOutputStream() ).thenReturn( new OutputStream() {
+            @Override
+            public void write( int b ) throws IOException {
+                throw new IOException( "broken" );
+            }
+        } );
+
+        when( socketFactories[ 1 ].createSocket( any( InetAddress.class ), anyInt() ) ).thenReturn( broken );
+
+        sharded.connect();
+
+        for (int i = 0; i < SERIES; i++) {
+            sharded.send( "series" + i, "1", 100, NO_TAGS );
+        }
+
+        try {
+            sharded.flush();
+            fail( "The datapoints buffered for the broken server were lost" );
+        } catch ( IOException e ) {
+            assertEquals( "broken", e.getMessage() );
+        }
+
+        sharded.close();
+
+    }
+
+    @Test
+    public void countsTheDatapointsLostToAFailedServer() throws Exception {
+
+        Socket broken = mock( Socket.class );
+        when( broken.getOutputStream() ).thenReturn( new OutputStream() {
+            @Override
+            public void write( int b ) throws IOException {
+                throw new IOException( "broken" );
+            }
+        } );
+
+        when( socketFactories[ 1 ].createSocket( any( InetAddress.class ), anyInt() ) ).thenReturn( broken );
+
+        // so the first datapoints for the broken server fill its buffer.
+        sharded.getShards().get( 1 ).setBufferSize( 64 );
+
+        sharded.connect();
+
+        for (int i = 0; i < SERIES; i++) {
+            sharded.send( "series" + i, "1", 100, NO_TAGS );
+        }
+
+        sharded.close();
+
+        assertEquals( 1, sharded.getFailures() );
+
+        // what was buffered for the broken server is gone, and everything
+        // after it went to the other servers.
+        int lines = outputs[ 0 ].toString().split( "\n" ).length + outputs[ 2 ].toString().split( "\n" ).length;
+
+        assertTrue( lines < SERIES );
+        assertTrue( lines > SERIES - 10 );
+
+    }
+
+    @Test
+    public void returnsSeriesToARecoveredServer() throws Exception {
+
+        MetricRegistry registry = new MetricRegistry();
+
+        for (int i = 0; i < SERIES; i++) {
+            registry.counter( "series" + i ).inc();
+        }
+
+        MockClock clock = new MockClock();
+
+        KairosDbReporter reporter = KairosDbReporter.forRegistry( registry )
+                                                    .withClock( clock )
+                                                    .withBatchSize( 0 )
+                                                    .withPersistentConnection( true )
+                                                    .withReconnectBackoff( 1, 1, TimeUnit.SECONDS )
+                                                    .build( sharded );
+
+        clock.setTime( 1000 );
+        reporter.report();
+
+        String[] before = new String[ SHARDS ];
+
+        for (int i = 0; i < SHARDS; i++) {
+            before[ i ] = outputs[ i ].toString().replace( " 1000 ", " 10000 " );
+            outputs[ i ].reset();
+        }
+
+        // the server goes away
+        sharded.getShards().get( 1 ).close();
+        when( socketFactories[ 1 ].createSocket( any( InetAddress.class ), anyInt() ) ).thenThrow( new IOException( "down" ) );
+
+        clock.setTime( 2000 );
+        reporter.report();
+
+        assertEquals( "", outputs[ 1 ].toString() );
+
+        for (int i = 0; i < SHARDS; i++) {
+            outputs[ i ].reset();
+        }
+
+        // and comes back
+        reset( socketFactories[ 1 ] );
+
+        Socket socket = mock( Socket.class );
+        when( socket.getOutputStream() ).thenReturn( outputs[ 1 ] );
+        when( socketFactories[ 1 ].createSocket( any( InetAddress.class ), anyInt() ) ).thenReturn( socket );
+
+        clock.setTime( 10000 );
+        reporter.report();
+
+        for (int i = 0; i < SHARDS; i++) {
+            assertEquals( before[ i ], outputs[ i ].toString() );
+        }
+
+        reporter.stop();
+
+    }
+
+    @Test
+    public void placesServersByTheirGivenAddress() throws Exception {
+
+        KairosDb named = new KairosDb( new InetSocketAddress( "127.0.0.1", 4242 ) );
+        KairosDb resolved = new KairosDb( new InetSocketAddress( InetAddress.getByAddress( new byte[] { 127, 0, 0, 1 } ), 4242 ) );
+
+        assertEquals( "127.0.0.1:4242", ShardedKairosDb.ringKey( named ) );
+        assertEquals( "127.0.0.1:4242", ShardedKairosDb.ringKey( resolved ) );
+
+    }
+
+}
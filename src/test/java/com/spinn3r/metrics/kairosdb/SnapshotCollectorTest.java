@@ -0,0 +1,55 @@
+package com.spinn3r.metrics.kairosdb;
+
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.UniformReservoir;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.*;
+
+public class SnapshotCollectorTest {
+
+    @Test
+    public void parallelResultsAreInOrder() throws Exception {
+
+        List<Histogram> histograms = new ArrayList<>();
+
+        for (int i = 0; i < SnapshotCollector.CHUNK_SIZE * 4 + 17; i++) {
+
+            Histogram histogram = new Histogram( new UniformReservoir() );
+
+            for (int j = 0; j <= 100; j++) {
+                histogram.update( i + j );
+            }
+
+            histograms.add( histogram );
+
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool( 4 );
+
+        try {
+
+            SnapshotValues[] serial = new SnapshotCollector( null ).collect( histograms );
+            SnapshotValues[] parallel = new SnapshotCollector( executor ).collect( histograms );
+
+            assertEquals( histograms.size(), parallel.length );
+
+            for (int i = 0; i < histograms.size(); i++) {
+                assertEquals( i, parallel[ i ].min );
+                assertEquals( i + 100, parallel[ i ].max );
+                assertEquals( serial[ i ].p50, parallel[ i ].p50, 0.0 );
+                assertEquals( serial[ i ].p999, parallel[ i ].p999, 0.0 );
+            }
+
+        } finally {
+            executor.shutdown();
+        }
+
+    }
+
+}
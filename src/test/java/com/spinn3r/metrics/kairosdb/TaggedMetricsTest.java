@@ -1,16 +1,21 @@
 package com.spinn3r.metrics.kairosdb;
 
+import com.codahale.metrics.Histogram;
 import com.codahale.metrics.Meter;
 import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Snapshot;
+import com.codahale.metrics.Timer;
 import org.junit.Test;
 
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.Assert.assertEquals;
 
 import static com.spinn3r.metrics.kairosdb.TaggedMetrics.*;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 public class TaggedMetricsTest {
@@ -279,4 +284,255 @@ public class TaggedMetricsTest {
 
     }
 
-}
\ No newline at end of file
+    @Test
+    public void testIntervalTimer() throws Exception {
+
+        MetricRegistry metricRegistry = new MetricRegistry();
+
+        TaggedMetrics taggedMetrics = new TaggedMetrics( metricRegistry,
+                                                         InvalidTagPolicy.FAIL,
+                                                         DuplicateTagPolicy.FAIL );
+
+        Timer timer = taggedMetrics.intervalTimer( TaggedMetricsTest.class, "latency", tag( "foo", "bar" ) );
+
+        assertSame( timer, taggedMetrics.intervalTimer( TaggedMetricsTest.class, "latency", tag( "foo", "bar" ) ) );
+        assertSame( timer, metricRegistry.getTimers().get( "com.spinn3r.metrics.kairosdb.TaggedMetricsTest.latency?foo=bar" ) );
+
+        for (int i = 1; i <= 100; i++) {
+            timer.update( i, TimeUnit.MILLISECONDS );
+        }
+
+        Snapshot snapshot = timer.getSnapshot();
+
+        assertEquals( 100, snapshot.size() );
+        assertEquals( TimeUnit.MILLISECONDS.toNanos( 1 ), snapshot.getMin(), TimeUnit.MILLISECONDS.toNanos( 1 ) / 100 );
+        assertEquals( TimeUnit.MILLISECONDS.toNanos( 100 ), snapshot.getMax(), TimeUnit.MILLISECONDS.toNanos( 100 ) / 100 );
+        assertEquals( TimeUnit.MILLISECONDS.toNanos( 99 ), snapshot.get99thPercentile(), TimeUnit.MILLISECONDS.toNanos( 99 ) / 100 );
+        assertEquals( TimeUnit.MILLISECONDS.toNanos( 50 ), snapshot.getMedian(), TimeUnit.MILLISECONDS.toNanos( 50 ) / 100 );
+        assertEquals( 100, snapshot.getValues().length );
+
+        // the next snapshot only covers what was recorded since.
+        assertEquals( 0, timer.getSnapshot().size() );
+
+        timer.update( 2, TimeUnit.HOURS );
+        assertEquals( HdrReservoir.TIMER_HIGHEST_TRACKABLE_VALUE, timer.getSnapshot().getMax(), HdrReservoir.TIMER_HIGHEST_TRACKABLE_VALUE / 100 );
+
+        // the count isn't reset.
+        assertEquals( 101, timer.getCount() );
+
+    }
+
+    @Test
+    public void testIntervalHistogram() throws Exception {
+
+        MetricRegistry metricRegistry = new MetricRegistry();
+
+        TaggedMetrics taggedMetrics = new TaggedMetrics( metricRegistry,
+                                                         InvalidTagPolicy.FAIL,
+                                                         DuplicateTagPolicy.FAIL );
+
+        Histogram histogram = taggedMetrics.intervalHistogram( "sizes" );
+
+        histogram.update( 10 );
+        histogram.update( 20 );
+
+        Snapshot snapshot = histogram.getSnapshot();
+
+        assertEquals( 2, snapshot.size() );
+        assertEquals( 10, snapshot.getMin() );
+        assertEquals( 20, snapshot.getMax() );
+        assertEquals( 15.0, snapshot.getMean(), 0.0 );
+
+        Snapshot empty = histogram.getSnapshot();
+
+        assertEquals( 0, empty.getMax() );
+        assertEquals( 0.0, empty.getMean(), 0.0 );
+
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testIntervalTimerNameInUse() throws Exception {
+
+        MetricRegistry metricRegistry = new MetricRegistry();
+
+        TaggedMetrics taggedMetrics = new TaggedMetrics( metricRegistry,
+                                                         InvalidTagPolicy.FAIL,
+                                                         DuplicateTagPolicy.FAIL );
+
+        metricRegistry.meter( "requests" );
+        taggedMetrics.intervalTimer( "requests" );
+
+    }
+
+    @Test
+    public void testCardinalityLimits() throws Exception {
+
+        MetricRegistry metricRegistry = new MetricRegistry();
+
+        TaggedMetrics taggedMetrics = new TaggedMetrics( metricRegistry,
+                                                         InvalidTagPolicy.FAIL,
+                                                         DuplicateTagPolicy.FAIL,
+                                                         new CardinalityLimiter( 4, 2 ) );
+
+        assertEquals( "foo?user=1", registered( metricRegistry, taggedMetrics.name( "foo", null, tag( "user", "1" ) ) ) );
+        assertEquals( "foo?user=2", registered( metricRegistry, taggedMetrics.name( "foo", null, tag( "user", "2" ) ) ) );
+
+        // over the values for the tag name.
+        assertEquals( "foo?user=__overflow__", registered( metricRegistry, taggedMetrics.name( "foo", null, tag( "user", "3" ) ) ) );
+        assertEquals( "foo?user=__overflow__", registered( metricRegistry, taggedMetrics.name( "foo", null, tag( "user", "4" ) ) ) );
+
+        // values we've already seen still work.
+        assertEquals( "foo?user=1", registered( metricRegistry, taggedMetrics.name( "foo", null, tag( "user", "1" ) ) ) );
+
+        // the limits are per metric.
+        assertEquals( "bar?user=3", registered( metricRegistry, taggedMetrics.name( "bar", null, tag( "user", "3" ) ) ) );
+
+        // over the combinations for the metric: user=1, user=2 and
+        // user=__overflow__ are already taken.
+        assertEquals( "foo?host=a&user=1", registered( metricRegistry, taggedMetrics.name( "foo", null, tag( "user", "1" ), tag( "host", "a" ) ) ) );
+        assertEquals( "foo?host=__overflow__&user=__overflow__", registered( metricRegistry, taggedMetrics.name( "foo", null, tag( "user", "2" ), tag( "host", "a" ) ) ) );
+
+        assertEquals( 3, metricRegistry.counter( TaggedMetrics.OVERFLOW_METRIC + "?metric=foo" ).getCount() );
+
+    }
+
+    @Test
+    public void testCardinalityLimitsOnlyCountRegisteredMetrics() throws Exception {
+
+        MetricRegistry metricRegistry = new MetricRegistry();
+
+        TaggedMetrics taggedMetrics = new TaggedMetrics( metricRegistry,
+                                                         InvalidTagPolicy.FAIL,
+                                                         DuplicateTagPolicy.FAIL,
+                                                         new CardinalityLimiter( 4, 2 ) );
+
+        // names nobody registers take no room.
+        for (int i = 0; i < 10; i++) {
+            assertEquals( "foo?user=" + i, taggedMetrics.name( "foo", null, tag( "user", "" + i ) ) );
+        }
+
+        registered( metricRegistry, taggedMetrics.name( "foo", null, tag( "user", "1" ), tag( "host", "a" ) ) );
+        registered( metricRegistry, taggedMetrics.name( "foo", null, tag( "user", "2" ), tag( "host", "b" ) ) );
+        registered( metricRegistry, taggedMetrics.name( "foo", null, tag( "user", "1" ), tag( "host", "b" ) ) );
+        registered( metricRegistry, taggedMetrics.name( "foo", null, tag( "user", "2" ), tag( "host", "a" ) ) );
+
+        // a combination over the limit doesn't take a value.
+        assertEquals( "foo?host=__overflow__&user=__overflow__", registered( metricRegistry, taggedMetrics.name( "foo", null, tag( "user", "1" ), tag( "host", "c" ) ) ) );
+
+        metricRegistry.remove( "foo?host=a&user=1" );
+        metricRegistry.remove( "foo?host=a&user=2" );
+        metricRegistry.remove( "foo?host=__overflow__&user=__overflow__" );
+
+        assertEquals( "foo?host=c&user=1", registered( metricRegistry, taggedMetrics.name( "foo", null, tag( "user", "1" ), tag( "host", "c" ) ) ) );
+
+        // once every metric is removed its values are all forgotten.
+        metricRegistry.remove( "foo?host=b&user=1" );
+        metricRegistry.remove( "foo?host=b&user=2" );
+        metricRegistry.remove( "foo?host=c&user=1" );
+
+        assertEquals( "foo?host=d&user=3", registered( metricRegistry, taggedMetrics.name( "foo", null, tag( "user", "3" ), tag( "host", "d" ) ) ) );
+        assertEquals( "foo?host=e&user=4", registered( metricRegistry, taggedMetrics.name( "foo", null, tag( "user", "4" ), tag( "host", "e" ) ) ) );
+
+    }
+
+    @Test
+    public void testCardinalityLimitsForgetRemovedMetrics() throws Exception {
+
+        MetricRegistry metricRegistry = new MetricRegistry();
+
+        TaggedMetrics taggedMetrics = new TaggedMetrics( metricRegistry,
+                                                         InvalidTagPolicy.FAIL,
+                                                         DuplicateTagPolicy.FAIL,
+                                                         new CardinalityLimiter( 4, 2 ) );
+
+        taggedMetrics.counter( "foo", null, tag( "user", "1" ), tag( "host", "a" ) ).inc();
+        taggedMetrics.counter( "foo", null, tag( "user", "2" ), tag( "host", "a" ) ).inc();
+
+        assertEquals( "foo?host=a&user=__overflow__", taggedMetrics.name( "foo", null, tag( "user", "3" ), tag( "host", "a" ) ) );
+
+        // user=1 expires, but host=a is still used by user=2.
+        metricRegistry.remove( "foo?host=a&user=1" );
+
+        assertEquals( "foo?host=a&user=3", registered( metricRegistry, taggedMetrics.name( "foo", null, tag( "user", "3" ), tag( "host", "a" ) ) ) );
+
+        // and user=1 has been forgotten, so it's now over the limit.
+        assertEquals( "foo?host=a&user=__overflow__", taggedMetrics.name( "foo", null, tag( "user", "1" ), tag( "host", "a" ) ) );
+
+    }
+
+    @Test
+    public void testTagInterning() throws Exception {
+
+        TaggedMetrics taggedMetrics = new TaggedMetrics( new MetricRegistry(),
+                                                         InvalidTagPolicy.FAIL,
+                                                         DuplicateTagPolicy.FAIL );
+
+        // interned once it's been used in a name.
+        Tag tag = Tag.of( "cat", "dog" );
+        taggedMetrics.name( "foo", null, tag );
+
+        assertSame( tag, Tag.of( "cat", "dog" ) );
+        assertSame( tag, tag( "cat", "dog" ) );
+        assertEquals( new Tag( "cat", "dog" ), tag );
+        assertSame( tag.toString(), tag.toString() );
+        assertSame( tag, tag.mangled() );
+
+        Tag invalid = Tag.of( "cat", "big dog" );
+
+        assertFalse( invalid.isValid() );
+        assertEquals( new Tag( "cat", "big_dog" ), invalid.mangled() );
+        assertSame( invalid.mangled(), invalid.mangled() );
+
+        assertFalse( Tag.of( "cat", null ).isValid() );
+        assertEquals( new Tag( "_", "_" ), new Tag( null, null ).mangled() );
+
+    }
+
+    @Test
+    public void testTagsOverTheLimitsArentInterned() throws Exception {
+
+        TaggedMetrics taggedMetrics = new TaggedMetrics( new MetricRegistry(),
+                                                         InvalidTagPolicy.FAIL,
+                                                         DuplicateTagPolicy.FAIL,
+                                                         new CardinalityLimiter( 4, 1 ) );
+
+        taggedMetrics.counter( "interning", null, tag( "session", "s1" ) );
+        taggedMetrics.counter( "interning", null, tag( "session", "s2" ) );
+
+        assertSame( Tag.of( "session", "s1" ), Tag.of( "session", "s1" ) );
+        assertTrue( Tag.of( "session", "s2" ) != Tag.of( "session", "s2" ) );
+
+    }
+
+    @Test
+    public void testTagPoolIsBounded() throws Exception {
+
+        TaggedMetrics taggedMetrics = new TaggedMetrics( new MetricRegistry(),
+                                                         InvalidTagPolicy.FAIL,
+                                                         DuplicateTagPolicy.FAIL );
+
+        Tag kept = Tag.of( "bounded", "kept" );
+        taggedMetrics.name( "foo", null, kept );
+
+        taggedMetrics.name( "foo", null, tag( "bounded", "dropped" ) );
+
+        for (int i = 0; i < Tag.MAX_INTERNED; i++) {
+
+            taggedMetrics.name( "foo", null, tag( "bounded", "v" + i ) );
+
+            // a tag that's still being used stays in the pool.
+            assertSame( kept, Tag.of( "bounded", "kept" ) );
+
+        }
+
+        // but one that isn't is eventually dropped.
+        assertTrue( Tag.of( "bounded", "dropped" ) != Tag.of( "bounded", "dropped" ) );
+
+    }
+
+    private static String registered( MetricRegistry metricRegistry, String name ) {
+        metricRegistry.counter( name );
+        return name;
+    }
+
+}